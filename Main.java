@@ -1,16 +1,47 @@
+import src.bench.LoadGenerator;
 import src.controller.BankingController;
+import src.event.EventPipeline;
+import src.event.ReceiptNotifier;
+import src.metrics.Metrics;
 import src.model.User;
+import src.repository.AuditLog;
+import src.repository.ChangeFeed;
+import src.repository.MappedTransactionStore;
+import src.repository.RollupRepository;
 import src.repository.TransactionRepository;
+import src.repository.TransactionStore;
 import src.repository.UserRepository;
+import src.server.BankClient;
+import src.server.BankServer;
+import src.server.Replica;
+import src.server.ReplicationServer;
+import src.service.BankService;
 import src.service.BkashService;
+import src.service.InstrumentedBankService;
+import src.service.ReadOnlyBankService;
+import src.service.SessionManager;
 import src.util.CryptoUtil;
 import src.util.SecurityUtil;
 
 import javax.crypto.SecretKey;
 import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
+    /** Directory given with --data-dir, or null for the working directory. */
+    private static File dataDir;
+    /** Held until exit so no second process opens the same data files. */
+    private static FileLock dataDirLock;
+
     public static void main(String[] args) {
         try {
             System.out.println("\n╔════════════════════════════════════════════════════════╗");
@@ -18,6 +49,26 @@ public class Main {
             System.out.println("║        Secure • Encrypted • Fast                       ║");
             System.out.println("╚════════════════════════════════════════════════════════╝\n");
 
+            // Latency histograms over JMX, plus a periodic dump with -Djavapay.metrics.dumpSeconds
+            Metrics.start();
+
+            // --load-remote host:port drives a running server with synthetic load and exits
+            String loadTarget = argValue(args, "--load-remote");
+            if (loadTarget != null) {
+                int colon = loadTarget.lastIndexOf(':');
+                String host = loadTarget.substring(0, colon);
+                int loadPort = Integer.parseInt(loadTarget.substring(colon + 1));
+                boolean conserved = new LoadGenerator(worker -> {
+                    try {
+                        return new BankClient(host, loadPort);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).run();
+                if (!conserved) System.exit(1);
+                return;
+            }
+
             // Get encryption passphrase
             Console console = System.console();
             String passphrase;
@@ -36,33 +87,128 @@ public class Main {
             byte[] keyBytes = passphrase.getBytes(StandardCharsets.UTF_8);
             SecretKey key = CryptoUtil.keyFromBytes(keyBytes);
 
-            // Initialize repositories with encryption
-            UserRepository userRepo = new UserRepository("users.dat", key);
-            TransactionRepository txRepo = new TransactionRepository("transactions.dat", key);
-            BkashService service = new BkashService(userRepo, txRepo);
-
-            // Seed admin account if missing
-            if (!userRepo.exists("9999")) {
-                String adminPinHash = SecurityUtil.hashPin("admin");
-                User admin = new User("9999", "System Admin", adminPinHash, 0.0, "ADMIN");
-                userRepo.save(admin);
-                System.out.println("✅ Admin account created (phone: 9999, PIN: admin)");
+            // --data-dir <dir> keeps every data file there instead of the working directory. Only
+            // one process may use a directory, so a replica on the same host needs its own.
+            lockDataDir(argValue(args, "--data-dir"));
+
+            // Initialize repositories with encryption; both load at the same time
+            CompletableFuture<UserRepository> users = CompletableFuture.supplyAsync(() -> new UserRepository(dataFile("users.dat"), key));
+            TransactionStore txRepo = openTransactionStore(key);
+            UserRepository userRepo = users.join();
+            userRepo.relinkLegacyHistory(txRepo);
+            RollupRepository rollups = new RollupRepository(dataFile("rollups.dat"), key, BkashService::feeMinor);
+            rollups.catchUp(txRepo);
+
+            // Rollups, the audit trail and receipts follow commits on their own threads
+            EventPipeline events = new EventPipeline(EventPipeline.DEFAULT_CAPACITY);
+            AuditLog audit = new AuditLog(dataFile("audit"), key);
+            ReceiptNotifier receipts = new ReceiptNotifier(dataFile("sms-outbox.log"), BkashService::feeMinor);
+            events.subscribe("rollups", rollups::recordAll);
+            events.subscribe("audit", audit);
+            events.subscribe("receipts", receipts);
+            events.start();
+
+            // --replica-of host:port follows a primary and serves read-only traffic with --server
+            String primary = argValue(args, "--replica-of");
+            int port = serverPort(args);
+            if (primary != null && port < 0) {
+                throw new IllegalArgumentException("--replica-of needs --server <port> to serve reads");
             }
+            boolean load = hasFlag(args, "--load");
+            if (load && primary != null) {
+                throw new IllegalArgumentException("--load writes, so it cannot run on a replica");
+            }
+            BkashService core = new BkashService(userRepo, txRepo, new SessionManager(), events);
+            BankService service = new InstrumentedBankService(primary != null ? new ReadOnlyBankService(core) : core);
+
+            Replica replica = null;
+            ReplicationServer replication = null;
+            if (primary != null) {
+                int colon = primary.lastIndexOf(':');
+                replica = new Replica(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)),
+                        key, userRepo, txRepo);
+                replica.start();
+                System.out.println("🔁 Replicating from " + primary + " (read-only)");
+            } else {
+                // Seed admin account if missing
+                if (!userRepo.exists("9999")) {
+                    String adminPinHash = SecurityUtil.hashPin("admin");
+                    User admin = new User("9999", "System Admin", adminPinHash, 0.0, "ADMIN");
+                    userRepo.save(admin);
+                    System.out.println("✅ Admin account created (phone: 9999, PIN: admin)");
+                }
+
+                // Create demo user with initial balance
+                if (!userRepo.exists("01700000000")) {
+                    String demoPinHash = SecurityUtil.hashPin("1234");
+                    User demo = new User("01700000000", "Demo User", demoPinHash, 2000.0, "USER");
+                    userRepo.save(demo);
+                    System.out.println("✅ Demo user created (phone: 01700000000, PIN: 1234, Balance: 2000 BDT)");
+                }
 
-            // Create demo user with initial balance
-            if (!userRepo.exists("01700000000")) {
-                String demoPinHash = SecurityUtil.hashPin("1234");
-                User demo = new User("01700000000", "Demo User", demoPinHash, 2000.0, "USER");
-                userRepo.save(demo);
-                System.out.println("✅ Demo user created (phone: 01700000000, PIN: 1234, Balance: 2000 BDT)");
+                // --replication <port> ships every committed change to read replicas
+                String replicationPort = argValue(args, "--replication");
+                if (replicationPort != null) {
+                    ChangeFeed feed = new ChangeFeed(Integer.getInteger("javapay.replication.backlog", 100_000));
+                    userRepo.publishTo(feed);
+                    txRepo.publishTo(feed);
+                    replication = new ReplicationServer(feed, userRepo, txRepo, key, bindAddress(args),
+                            Integer.parseInt(replicationPort));
+                    replication.start();
+                    System.out.println("🔁 Shipping changes to replicas on port " + replication.getPort());
+                }
             }
 
             System.out.println("\n🔒 Database files encrypted with AES-256-GCM");
-            System.out.println("🔐 All PINs hashed with SHA-256");
+            System.out.println("🔐 All PINs hashed with PBKDF2-HmacSHA256");
+
+            // --load runs synthetic traffic against this process instead of the console
+            if (load) {
+                boolean conserved = new LoadGenerator(worker -> service).run();
+                if (replication != null) replication.close();
+                events.close();
+                receipts.close();
+                audit.close();
+                rollups.close();
+                txRepo.close();
+                userRepo.close();
+                if (!conserved) System.exit(1);
+                return;
+            }
+
+            // --server <port> serves BankService over the network instead of the console, on
+            // loopback unless --bind <address> says otherwise
+            if (port >= 0) {
+                BankServer server = new BankServer(service, bindAddress(args), port);
+                Replica follower = replica;
+                ReplicationServer shipper = replication;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.close();
+                    if (follower != null) follower.close();
+                    if (shipper != null) shipper.close();
+                    events.close();
+                    receipts.close();
+                    audit.close();
+                    rollups.close();
+                    txRepo.close();
+                    userRepo.close();
+                }));
+                System.out.println("🌐 Serving on " + server.getBindAddress().getHostAddress() + ":" + server.getPort()
+                        + " (Ctrl+C to stop)");
+                server.serve();
+                return;
+            }
 
             // Start the banking controller
-            BankingController controller = new BankingController(service, userRepo, txRepo);
+            BankingController controller = new BankingController(service, userRepo, txRepo, rollups);
             controller.start();
+            if (replication != null) replication.close();
+            events.close();
+            receipts.close();
+            audit.close();
+            rollups.close();
+            txRepo.close();
+            userRepo.close();
 
         } catch (Exception e) {
             System.out.println("\n❌ System initialization failed: " + e.getMessage());
@@ -70,4 +216,71 @@ public class Main {
             System.exit(1);
         }
     }
+
+    private static int serverPort(String[] args) {
+        String port = argValue(args, "--server");
+        return port == null ? -1 : Integer.parseInt(port);
+    }
+
+    /** --bind <address> exposes the servers on that address; by default they listen on loopback only. */
+    private static InetAddress bindAddress(String[] args) throws UnknownHostException {
+        String address = argValue(args, "--bind");
+        return address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address);
+    }
+
+    private static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static String argValue(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return null;
+    }
+
+    /**
+     * Takes the lock file of the data directory, creating the directory if needed, and fails
+     * if another process, such as a primary started from the same place, already holds it.
+     */
+    private static void lockDataDir(String dir) throws IOException {
+        if (dir != null) {
+            dataDir = new File(dir);
+            if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+                throw new IOException("Cannot create data directory " + dataDir);
+            }
+        }
+        FileChannel channel = FileChannel.open(new File(dataFile("javapay.lock")).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        dataDirLock = channel.tryLock();
+        if (dataDirLock == null) {
+            channel.close();
+            String where = dataDir == null ? "the working directory" : dataDir.getPath();
+            throw new IOException("Another JavaPay process is using the data files in " + where
+                    + "; give this one its own --data-dir");
+        }
+    }
+
+    private static String dataFile(String name) {
+        return dataDir == null ? name : new File(dataDir, name).getPath();
+    }
+
+    /** -Djavapay.txStore=mapped selects the memory-mapped columnar store instead of the record log. */
+    private static TransactionStore openTransactionStore(SecretKey key) {
+        String logFile = dataFile("transactions.dat");
+        if (!"mapped".equals(System.getProperty("javapay.txStore", "log"))) {
+            return new TransactionRepository(logFile, key);
+        }
+        MappedTransactionStore store = new MappedTransactionStore(dataFile("transactions.col"), key);
+        if (store.isEmpty() && new File(logFile).exists()) {
+            TransactionRepository log = new TransactionRepository(logFile, key);
+            store.importFrom(log);
+            log.close();
+            System.out.println("✅ Imported transactions.dat into the columnar store");
+        }
+        return store;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+package src.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal timing harness: timed throughput runs across N threads with a warmup phase, and
+ * single-shot runs for one-off work such as loading a store. Results are collected in the
+ * same shape as JMH's JSON output (benchmark, mode, threads, params, score, scoreUnit).
+ */
+final class BenchRunner {
+    interface Op {
+        void run(int thread) throws Exception;
+    }
+
+    private static final int WARMUP = 0, MEASURE = 1, STOP = 2;
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final Pattern filter;
+    private final List<String> results = new ArrayList<>();
+    private volatile int phase;
+
+    BenchRunner(long warmupMillis, long measureMillis, Pattern filter) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+        this.filter = filter;
+    }
+
+    /** True if the name filter matches any of the given benchmarks. */
+    boolean selected(String... names) {
+        for (String name : names) {
+            if (filter.matcher(name).find()) return true;
+        }
+        return false;
+    }
+
+    void throughput(String name, Map<String, Object> params, int threads, Op op) throws Exception {
+        if (!selected(name)) return;
+        long[] counts = new long[threads * 8]; // padded so counters do not share a cache line
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        phase = WARMUP;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    int p;
+                    while ((p = phase) != STOP) {
+                        op.run(id);
+                        if (p == MEASURE) n++;
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                counts[id * 8] = n;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        Thread.sleep(warmupMillis);
+        phase = MEASURE;
+        long start = System.nanoTime();
+        Thread.sleep(measureMillis);
+        phase = STOP;
+        long elapsed = System.nanoTime() - start;
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (failure.get() != null) throw new Exception(name + " failed", failure.get());
+        long ops = 0;
+        for (int t = 0; t < threads; t++) {
+            ops += counts[t * 8];
+        }
+        double opsPerSec = ops * 1e9 / elapsed;
+        record(name, "thrpt", threads, params, opsPerSec, "ops/s", ops, elapsed);
+    }
+
+    /** Times one call of task; ops is how many records it handled, for an ops/s figure. */
+    void singleShot(String name, Map<String, Object> params, long ops, Callable<?> task) throws Exception {
+        if (!selected(name)) return;
+        long start = System.nanoTime();
+        task.call();
+        long elapsed = System.nanoTime() - start;
+        record(name, "ss", 1, params, elapsed / 1e9, "s", ops, elapsed);
+    }
+
+    private void record(String name, String mode, int threads, Map<String, Object> params,
+                        double score, String unit, long ops, long elapsedNanos) {
+        StringBuilder p = new StringBuilder();
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            if (p.length() > 0) p.append(", ");
+            p.append('"').append(e.getKey()).append("\": \"").append(e.getValue()).append('"');
+        }
+        double nsPerOp = ops == 0 ? 0 : (double) elapsedNanos * (mode.equals("thrpt") ? threads : 1) / ops;
+        String json = String.format(Locale.ROOT,
+                "{\"benchmark\": \"%s\", \"mode\": \"%s\", \"threads\": %d, \"params\": {%s}, "
+                        + "\"score\": %.3f, \"scoreUnit\": \"%s\", \"ops\": %d, \"nsPerOp\": %.1f}",
+                name, mode, threads, p, score, unit, ops, nsPerOp);
+        results.add(json);
+        System.err.println(json);
+    }
+
+    String toJson() {
+        return "[\n  " + String.join(",\n  ", results) + "\n]\n";
+    }
+}
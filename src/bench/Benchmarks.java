@@ -0,0 +1,225 @@
+package src.bench;
+
+import src.model.Transaction;
+import src.model.User;
+import src.repository.MappedTransactionStore;
+import src.repository.TransactionRepository;
+import src.repository.TransactionStore;
+import src.repository.UserRepository;
+import src.service.BkashService;
+import src.service.SessionManager;
+import src.util.CryptoUtil;
+import src.util.SecurityUtil;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for the service, repository and crypto hot paths.
+ *
+ * Usage: java -cp build src.bench.Benchmarks [name-regex]
+ *   -Dbench.threads=1,4,16          thread counts for throughput runs
+ *   -Dbench.records=10000,100000,1000000   store sizes for load/persist runs
+ *   -Dbench.accounts=1000           accounts behind the service runs
+ *   -Dbench.warmupMillis=1000 -Dbench.measureMillis=3000
+ *   -Dbench.out=results.json        JSON results file (stdout if unset)
+ */
+public class Benchmarks {
+    private static final String PIN = "1234";
+    private static final int FILL_CONCURRENCY = 256;
+
+    private final BenchRunner runner;
+    private final int[] threads;
+    private final long[] records;
+    private final int accounts;
+    private final SecretKey key = CryptoUtil.keyFromBytes("javapay-bench".getBytes(StandardCharsets.UTF_8));
+
+    private Benchmarks(BenchRunner runner, int[] threads, long[] records, int accounts) {
+        this.runner = runner;
+        this.threads = threads;
+        this.records = records;
+        this.accounts = accounts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchRunner runner = new BenchRunner(
+                Long.getLong("bench.warmupMillis", 1000),
+                Long.getLong("bench.measureMillis", 3000),
+                Pattern.compile(args.length > 0 ? args[0] : ""));
+        Benchmarks b = new Benchmarks(runner,
+                Stream.of(System.getProperty("bench.threads", "1,4,16").split(",")).mapToInt(Integer::parseInt).toArray(),
+                Stream.of(System.getProperty("bench.records", "10000,100000,1000000").split(",")).mapToLong(Long::parseLong).toArray(),
+                Integer.getInteger("bench.accounts", 1000));
+        b.crypto();
+        b.service();
+        b.transactionStores();
+        b.userRepository();
+
+        String out = System.getProperty("bench.out");
+        if (out == null) {
+            System.out.print(runner.toJson());
+        } else {
+            Files.writeString(Path.of(out), runner.toJson());
+            System.err.println("Results written to " + out);
+        }
+    }
+
+    private void crypto() throws Exception {
+        for (int size : new int[]{256, 4096}) {
+            byte[] plain = new byte[size];
+            ThreadLocalRandom.current().nextBytes(plain);
+            byte[] sealed = CryptoUtil.encrypt(plain, key);
+            Map<String, Object> params = params("bytes", size);
+            for (int t : threads) {
+                runner.throughput("crypto.encrypt", params, t, id -> CryptoUtil.encrypt(plain, key));
+                runner.throughput("crypto.decrypt", params, t, id -> CryptoUtil.decrypt(sealed, key));
+            }
+        }
+        SessionManager sessions = new SessionManager();
+        String token = sessions.issue(phone(0));
+        for (int t : threads) {
+            runner.throughput("security.hashPin", params(), t, id -> SecurityUtil.hashPin(PIN));
+            runner.throughput("security.sessionLookup", params(), t, id -> sessions.phoneOf(token));
+        }
+    }
+
+    private void service() throws Exception {
+        if (!runner.selected("service.sendMoney", "service.addMoney", "service.checkBalance",
+                "service.getTransactions")) return;
+        Path dir = Files.createTempDirectory("javapay-bench");
+        try {
+            UserRepository users = new UserRepository(dir.resolve("users.dat").toString(), key);
+            TransactionStore txs = new TransactionRepository(dir.resolve("transactions.dat").toString(), key);
+            String pinHash = SecurityUtil.hashPin(PIN);
+            fill(accounts, i -> users.save(new User(phone(i), "Bench " + i, pinHash, 1_000_000_000.0, "USER")));
+            SessionManager sessions = new SessionManager();
+            BkashService service = new BkashService(users, txs, sessions);
+            String[] tokens = new String[accounts];
+            for (int i = 0; i < accounts; i++) {
+                tokens[i] = sessions.issue(phone(i));
+            }
+            Map<String, Object> params = params("accounts", accounts);
+            for (int t : threads) {
+                runner.throughput("service.sendMoney", params, t, id -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    int from = r.nextInt(accounts);
+                    int to = (from + 1 + r.nextInt(accounts - 1)) % accounts;
+                    service.sendMoney(phone(from), phone(to), 10, tokens[from]);
+                });
+                runner.throughput("service.addMoney", params, t, id -> {
+                    int i = ThreadLocalRandom.current().nextInt(accounts);
+                    service.addMoney(phone(i), 10, tokens[i]);
+                });
+                runner.throughput("service.checkBalance", params, t,
+                        id -> service.checkBalance(phone(ThreadLocalRandom.current().nextInt(accounts))));
+                runner.throughput("service.getTransactions", params, t,
+                        id -> service.getTransactions(phone(ThreadLocalRandom.current().nextInt(accounts)), null, 20, true));
+            }
+            txs.close();
+            users.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private void transactionStores() throws Exception {
+        storeRuns("log", dir -> new TransactionRepository(new File(dir, "transactions.dat").getPath(), key));
+        storeRuns("mapped", dir -> new MappedTransactionStore(new File(dir, "transactions.col").getPath(), key));
+    }
+
+    private void storeRuns(String kind, Function<File, TransactionStore> open) throws Exception {
+        if (!runner.selected("repository.transactions.persist", "repository.transactions.load")) return;
+        for (long n : records) {
+            Path dir = Files.createTempDirectory("javapay-bench");
+            try {
+                Map<String, Object> params = params("store", kind, "records", n);
+                TransactionStore store = open.apply(dir.toFile());
+                runner.singleShot("repository.transactions.persist", params, n, () -> {
+                    fill(n, i -> store.save(new Transaction(Transaction.Type.SEND_MONEY,
+                            phone(i % accounts), phone((i + 1) % accounts), 1000L)));
+                    return null;
+                });
+                store.close();
+                TransactionStore[] loaded = new TransactionStore[1];
+                runner.singleShot("repository.transactions.load", params, n, () -> loaded[0] = open.apply(dir.toFile()));
+                if (loaded[0] != null) loaded[0].close();
+            } finally {
+                delete(dir);
+            }
+        }
+    }
+
+    private void userRepository() throws Exception {
+        if (!runner.selected("repository.users.persist", "repository.users.load")) return;
+        String pinHash = SecurityUtil.hashPin(PIN);
+        for (long n : records) {
+            Path dir = Files.createTempDirectory("javapay-bench");
+            try {
+                String file = dir.resolve("users.dat").toString();
+                Map<String, Object> params = params("records", n);
+                UserRepository repo = new UserRepository(file, key);
+                runner.singleShot("repository.users.persist", params, n, () -> {
+                    fill(n, i -> repo.save(new User(phone(i), "Bench " + i, pinHash, 100.0, "USER")));
+                    return null;
+                });
+                repo.close();
+                UserRepository[] loaded = new UserRepository[1];
+                runner.singleShot("repository.users.load", params, n, () -> loaded[0] = new UserRepository(file, key));
+                if (loaded[0] != null) loaded[0].close();
+            } finally {
+                delete(dir);
+            }
+        }
+    }
+
+    /** Runs save(i) for i in [0, n) on virtual threads, FILL_CONCURRENCY at a time, so commits batch up. */
+    private static void fill(long n, LongConsumer save) throws InterruptedException {
+        Semaphore permits = new Semaphore(FILL_CONCURRENCY);
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; i < n; i++) {
+                permits.acquire();
+                long id = i;
+                pool.execute(() -> {
+                    try {
+                        save.accept(id);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+    }
+
+    private static String phone(long i) {
+        return String.format("017%08d", i);
+    }
+
+    private static Map<String, Object> params(Object... kv) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            m.put((String) kv[i], kv[i + 1]);
+        }
+        return m;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package src.bench;
+
+import src.metrics.LatencyHistogram;
+import src.model.Transaction.Type;
+import src.service.BankService;
+import src.service.BkashService;
+import src.util.Money;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic load for capacity tests, driven through BankService so it covers whatever sits
+ * behind it: the in-process service (java Main --load) or a server over the network
+ * (java Main --load-remote host:port, one connection per worker).
+ *
+ * Seeds javapay.load.accounts accounts, registering the missing ones and topping each up to
+ * javapay.load.initialBalance, and opens a session per account so calls skip the PIN hash.
+ * Balance and history reads first sign the worker in to the account with its session token
+ * unless it already is, since a server connection only answers reads for its own account.
+ * Keep the account count under javapay.session.max. Then javapay.load.threads workers run the
+ * operation mix (javapay.load.mix, weights per operation) for javapay.load.warmupSeconds
+ * unmeasured and javapay.load.seconds measured. Accounts are picked with Zipf-distributed
+ * popularity (javapay.load.zipf is the exponent, 0 is uniform), so a few hot accounts take
+ * most of the traffic and contend for the same locks, as in a real wallet.
+ *
+ * With javapay.load.rate > 0 the run is open loop: workers start calls on a fixed schedule
+ * that adds up to that many per second, whether or not earlier calls have returned, and
+ * latency is taken from the scheduled start, so a stalled server shows up as queueing delay
+ * rather than as fewer samples. With rate 0 each worker calls back to back.
+ *
+ * At the end the balances of all synthetic accounts are summed and compared with the starting
+ * sum plus what the successful calls moved in and out. The run only passes if they agree and
+ * no balance went negative; a call that failed with an error leaves the expected sum unknown.
+ */
+public class LoadGenerator {
+    private static final String PIN = "1234";
+    private static final String PHONE_PREFIX = "019";
+    private static final int MERCHANTS = 100;
+    private static final int HISTORY_PAGE = 20;
+    private static final long SESSION_REFRESH_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("javapay.session.ttlSeconds", 900)) / 2;
+
+    enum Op {
+        ADD("add"), SEND("send"), CASH_OUT("cashout"), PAYMENT("payment"), RECHARGE("recharge"),
+        BALANCE("balance"), HISTORY("history");
+
+        final String key;
+
+        Op(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final int OK = 0, REJECTED = 1, ERROR = 2;
+
+    private final IntFunction<BankService> connect;
+    private final int accounts;
+    private final int threads;
+    private final long warmupSeconds;
+    private final long seconds;
+    private final double rate;
+    private final long initialBalanceMinor;
+    private final Op[] mix;
+    private final Zipf popularity;
+
+    private final String[] tokens;
+    private final long[] tokenIssued;
+    private final OpStats[] stats = new OpStats[Op.values().length];
+    private final LongAdder expectedDelta = new LongAdder();
+    private final LongAdder uncertain = new LongAdder();
+
+    /** connect(i) gives worker i the service it calls; it is only used by that worker. */
+    public LoadGenerator(IntFunction<BankService> connect) {
+        this.connect = connect;
+        this.accounts = Integer.getInteger("javapay.load.accounts", 10_000);
+        this.threads = Integer.getInteger("javapay.load.threads", 16);
+        this.warmupSeconds = Long.getLong("javapay.load.warmupSeconds", 5);
+        this.seconds = Long.getLong("javapay.load.seconds", 30);
+        this.rate = Double.parseDouble(System.getProperty("javapay.load.rate", "0"));
+        this.initialBalanceMinor = Money.toMinor(Double.parseDouble(System.getProperty("javapay.load.initialBalance", "5000")));
+        this.mix = parseMix(System.getProperty("javapay.load.mix",
+                "send:40,balance:20,history:10,add:10,cashout:8,payment:8,recharge:4"));
+        this.popularity = new Zipf(accounts, Double.parseDouble(System.getProperty("javapay.load.zipf", "1.0")));
+        if (accounts < 2 || threads < 1 || seconds < 1) {
+            throw new IllegalArgumentException("Load needs at least 2 accounts, 1 thread and 1 second");
+        }
+        this.tokens = new String[accounts];
+        this.tokenIssued = new long[accounts];
+        for (Op op : Op.values()) {
+            stats[op.ordinal()] = new OpStats();
+        }
+    }
+
+    /** Expands "send:40,balance:20" into a table with one entry per unit of weight. */
+    private static Op[] parseMix(String spec) {
+        Map<String, Op> byKey = Stream.of(Op.values()).collect(Collectors.toMap(op -> op.key, op -> op));
+        List<Op> table = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            Op op = byKey.get(kv[0].trim());
+            if (op == null || kv.length != 2) throw new IllegalArgumentException("Bad load mix entry: " + part);
+            for (int i = Integer.parseInt(kv[1].trim()); i > 0; i--) {
+                table.add(op);
+            }
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("Load mix is empty");
+        return table.toArray(new Op[0]);
+    }
+
+    static String phone(int account) {
+        return PHONE_PREFIX + String.format("%08d", account);
+    }
+
+    /** Seeds, runs and reports; returns true if money was conserved. */
+    public boolean run() throws Exception {
+        BankService[] services = new BankService[threads];
+        for (int i = 0; i < threads; i++) {
+            services[i] = connect.apply(i);
+        }
+
+        long seedStart = System.nanoTime();
+        onEachWorker("seed", services, (w, service) -> {
+            for (int a = w; a < accounts; a += threads) {
+                seed(service, a);
+            }
+        });
+        System.out.printf("✅ Seeded %d accounts in %.1f s%n", accounts, (System.nanoTime() - seedStart) / 1e9);
+
+        Balances before = balances(services);
+        String pacing = rate > 0 ? String.format("open loop at %.0f ops/s", rate) : "closed loop";
+        System.out.printf("🚀 Running %d workers, %s, %d s warmup + %d s measured%n", threads, pacing, warmupSeconds, seconds);
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        onEachWorker("load", services, (w, service) -> work(service, start, measureFrom, end));
+        long measuredNanos = Math.min(System.nanoTime(), end) - measureFrom;
+
+        Balances after = balances(services);
+        for (BankService service : services) {
+            if (service instanceof Closeable c) c.close();
+        }
+        System.out.print(report(measuredNanos));
+        return checkConservation(before, after);
+    }
+
+    private interface WorkerTask {
+        void run(int worker, BankService service) throws Exception;
+    }
+
+    private void onEachWorker(String name, BankService[] services, WorkerTask task) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    task.run(id, services[id]);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, name + "-" + t);
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (failure.get() != null) throw new Exception("Load " + name + " failed", failure.get());
+    }
+
+    private void seed(BankService service, int account) {
+        String phone = phone(account);
+        service.register(phone, "Load " + account, PIN);
+        String token = service.openSession(phone, PIN);
+        if (token == null) throw new IllegalStateException("Cannot sign in to " + phone + " with the load PIN");
+        tokens[account] = token;
+        tokenIssued[account] = System.nanoTime();
+        long balance = Money.toMinor(service.checkBalance(phone));
+        if (balance < initialBalanceMinor && !service.addMoney(phone, Money.toMajor(initialBalanceMinor - balance), token)) {
+            throw new IllegalStateException("Cannot top up " + phone);
+        }
+    }
+
+    private void work(BankService service, long start, long measureFrom, long end) {
+        SplittableRandom r = new SplittableRandom();
+        int signedIn = -1;
+        long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+        long next = start + (interval > 0 ? r.nextLong(interval) : 0);
+        while (true) {
+            long scheduled;
+            if (interval > 0) {
+                if (next >= end) return;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                scheduled = next;
+                next += interval;
+            } else {
+                scheduled = System.nanoTime();
+                if (scheduled >= end) return;
+            }
+
+            Op op = mix[r.nextInt(mix.length)];
+            int account = popularity.sample(r);
+            String token = token(service, account);
+            int outcome;
+            try {
+                if ((op == Op.BALANCE || op == Op.HISTORY) && signedIn != account) {
+                    signedIn = service.resumeSession(phone(account), token) ? account : -1;
+                }
+                outcome = call(service, op, account, token, r) ? OK : REJECTED;
+            } catch (RuntimeException e) {
+                outcome = ERROR;
+                if (op != Op.BALANCE && op != Op.HISTORY) uncertain.increment();
+            }
+            if (scheduled >= measureFrom) stats[op.ordinal()].record(outcome, System.nanoTime() - scheduled);
+        }
+    }
+
+    /** Session of the account, reopened once it is halfway to expiring. */
+    private String token(BankService service, int account) {
+        if (System.nanoTime() - tokenIssued[account] < SESSION_REFRESH_NANOS) return tokens[account];
+        String token = service.openSession(phone(account), PIN);
+        if (token != null) {
+            tokens[account] = token;
+            tokenIssued[account] = System.nanoTime();
+        }
+        return tokens[account];
+    }
+
+    private boolean call(BankService service, Op op, int account, String token, SplittableRandom r) {
+        String phone = phone(account);
+        switch (op) {
+            case ADD -> {
+                long amount = wholeTaka(r, 100, 1000);
+                if (!service.addMoney(phone, Money.toMajor(amount), token)) return false;
+                expectedDelta.add(amount);
+            }
+            case SEND -> {
+                long amount = wholeTaka(r, 10, 500);
+                if (!service.sendMoney(phone, phone(otherAccount(account, r)), Money.toMajor(amount), token)) return false;
+                expectedDelta.add(-BkashService.feeMinor(Type.SEND_MONEY));
+            }
+            case CASH_OUT -> {
+                long amount = wholeTaka(r, 50, 500);
+                if (!service.cashOut(phone, Money.toMajor(amount), token)) return false;
+                expectedDelta.add(-amount - BkashService.feeMinor(Type.CASH_OUT));
+            }
+            case PAYMENT -> {
+                long amount = wholeTaka(r, 10, 300);
+                if (!service.payment(phone, "M" + r.nextInt(MERCHANTS), Money.toMajor(amount), token)) return false;
+                expectedDelta.add(-amount - BkashService.feeMinor(Type.PAYMENT));
+            }
+            case RECHARGE -> {
+                long amount = wholeTaka(r, 10, 100);
+                if (!service.recharge(phone, phone(otherAccount(account, r)), Money.toMajor(amount), token)) return false;
+                expectedDelta.add(-amount - BkashService.feeMinor(Type.RECHARGE));
+            }
+            case BALANCE -> {
+                return service.checkBalance(phone) >= 0;
+            }
+            case HISTORY -> {
+                return service.getTransactions(phone, null, HISTORY_PAGE, true) != null;
+            }
+        }
+        return true;
+    }
+
+    private int otherAccount(int account, SplittableRandom r) {
+        int other = popularity.sample(r);
+        return other != account ? other : (account + 1) % accounts;
+    }
+
+    private static long wholeTaka(SplittableRandom r, int min, int max) {
+        return (long) r.nextInt(min, max + 1) * Money.MINOR_PER_MAJOR;
+    }
+
+    private record Balances(long sumMinor, int negative) {
+    }
+
+    private Balances balances(BankService[] services) throws Exception {
+        LongAdder sum = new LongAdder();
+        LongAdder negative = new LongAdder();
+        onEachWorker("audit", services, (w, service) -> {
+            for (int a = w; a < accounts; a += threads) {
+                service.resumeSession(phone(a), token(service, a));
+                long balance = Money.toMinor(service.checkBalance(phone(a)));
+                sum.add(balance);
+                if (balance < 0) negative.increment();
+            }
+        });
+        return new Balances(sum.sum(), negative.intValue());
+    }
+
+    private boolean checkConservation(Balances before, Balances after) {
+        long expected = before.sumMinor() + expectedDelta.sum();
+        System.out.printf("💰 Balances: start %.2f, expected %.2f, actual %.2f BDT%n",
+                Money.toMajor(before.sumMinor()), Money.toMajor(expected), Money.toMajor(after.sumMinor()));
+        if (after.negative() > 0) {
+            System.out.println("❌ " + after.negative() + " accounts have a negative balance");
+            return false;
+        }
+        if (uncertain.sum() > 0) {
+            System.out.println("⚠️  Conservation not checked: " + uncertain.sum() + " money calls failed with errors");
+            return false;
+        }
+        if (expected != after.sumMinor()) {
+            System.out.printf("❌ Money not conserved: off by %.2f BDT%n", Money.toMajor(after.sumMinor() - expected));
+            return false;
+        }
+        System.out.println("✅ Money conserved");
+        return true;
+    }
+
+    /** Text table per operation, latencies in milliseconds from the scheduled start. */
+    private String report(long measuredNanos) {
+        double secs = measuredNanos / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %10s %10s %10s %10s %9s %9s %9s %9s %9s%n",
+                "op (ms)", "ops/s", "ok", "rejected", "errors", "p50", "p90", "p99", "p999", "max"));
+        LatencyHistogram.Snapshot all = LatencyHistogram.Snapshot.empty();
+        long total = 0, ok = 0, rejected = 0, errors = 0;
+        for (Op op : Op.values()) {
+            OpStats s = stats[op.ordinal()];
+            LatencyHistogram.Snapshot snap = s.latency.snapshot();
+            if (snap.getCount() == 0) continue;
+            all = all.merge(snap);
+            total += snap.getCount();
+            ok += s.ok.sum();
+            rejected += s.rejected.sum();
+            errors += s.errors.sum();
+            row(sb, op.key, snap, secs, s.ok.sum(), s.rejected.sum(), s.errors.sum());
+        }
+        row(sb, "total", all, secs, ok, rejected, errors);
+        if (rate > 0) {
+            sb.append(String.format("target %.0f ops/s, achieved %.0f ops/s%n", rate, total / secs));
+        }
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, LatencyHistogram.Snapshot s, double secs,
+                            long ok, long rejected, long errors) {
+        sb.append(String.format("%-10s %10.0f %10d %10d %10d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                s.getCount() / secs, ok, rejected, errors, millis(s.percentile(0.5)), millis(s.percentile(0.9)),
+                millis(s.percentile(0.99)), millis(s.percentile(0.999)), millis(s.getMax())));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        void record(int outcome, long nanos) {
+            latency.record(nanos);
+            (outcome == OK ? ok : outcome == REJECTED ? rejected : errors).increment();
+        }
+    }
+
+    /** Draws account indexes with probability proportional to 1 / (rank + 1)^exponent. */
+    static final class Zipf {
+        private final double[] cumulative;
+        private final int n;
+
+        Zipf(int n, double exponent) {
+            this.n = n;
+            if (exponent <= 0) {
+                this.cumulative = null;
+                return;
+            }
+            this.cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int sample(SplittableRandom r) {
+            if (cumulative == null) return r.nextInt(n);
+            int i = Arrays.binarySearch(cumulative, r.nextDouble());
+            return Math.min(i < 0 ? -i - 1 : i, n - 1);
+        }
+    }
+}
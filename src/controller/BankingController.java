@@ -1,25 +1,38 @@
 package src.controller;
 
 import src.model.Transaction;
+import src.model.TransactionPage;
 import src.model.User;
-import src.repository.TransactionRepository;
+import src.repository.RollupRepository;
+import src.repository.TransactionStore;
 import src.repository.UserRepository;
 import src.service.BankService;
 import src.util.InputUtil;
 
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.Function;
 
 public class BankingController {
+    private static final int PAGE_SIZE = 20;
+    private static final int REPORT_DAYS = 14;
+    private static final int TOP_N = 10;
+
     private final BankService service;
     private final UserRepository userRepo;
-    private final TransactionRepository txRepo;
+    private final TransactionStore txRepo;
+    private final RollupRepository rollups;
     private String currentUserPhone = null;
+    private String sessionToken = null;
 
-    public BankingController(BankService service, UserRepository userRepo, TransactionRepository txRepo) {
+    public BankingController(BankService service, UserRepository userRepo, TransactionStore txRepo,
+                             RollupRepository rollups) {
         this.service = service;
         this.userRepo = userRepo;
         this.txRepo = txRepo;
+        this.rollups = rollups;
     }
 
     public void start() {
@@ -68,9 +81,10 @@ public class BankingController {
             return;
         }
 
-        boolean ok = service.login(phone, pin);
-        if (ok) {
+        String token = service.openSession(phone, pin);
+        if (token != null) {
             currentUserPhone = phone;
+            sessionToken = token;
             System.out.println("✅ Login successful. Welcome, " + user.getName() + "!");
 
             if ("ADMIN".equals(user.getRole())) {
@@ -97,7 +111,7 @@ public class BankingController {
                 case 7 -> handleTransactionHistory();
                 case 8 -> handleChangePin();
                 case 9 -> {
-                    currentUserPhone = null;
+                    logout();
                     System.out.println("✅ Logged out successfully.");
                     return;
                 }
@@ -125,25 +139,22 @@ public class BankingController {
         System.out.println("\n--- ADD MONEY (Cash In) ---");
         System.out.println("💡 Add money via agent or bank deposit");
         double amount = InputUtil.readDouble("Enter amount to add: ");
-        String pin = InputUtil.readLine("Enter PIN to confirm: ");
-        boolean ok = service.addMoney(currentUserPhone, amount, pin);
-        System.out.println(ok ? "✅ Add Money: SUCCESS - Balance updated!" : "❌ Add Money: FAILED (invalid PIN/amount)");
+        boolean ok = service.addMoney(currentUserPhone, amount, sessionToken);
+        System.out.println(ok ? "✅ Add Money: SUCCESS - Balance updated!" : "❌ Add Money: FAILED (invalid amount or session expired)");
     }
 
     private void handleSendMoney() {
         System.out.println("\n--- SEND MONEY (Fee: 3.0) ---");
         String to = InputUtil.readLine("Enter recipient phone: ");
         double amount = InputUtil.readDouble("Enter amount: ");
-        String pin = InputUtil.readLine("Enter PIN to confirm: ");
-        boolean ok = service.sendMoney(currentUserPhone, to, amount, pin);
+        boolean ok = service.sendMoney(currentUserPhone, to, amount, sessionToken);
         System.out.println(ok ? "✅ Send Money: SUCCESS" : "❌ Send Money: FAILED (insufficient balance/bad details)");
     }
 
     private void handleCashOut() {
         System.out.println("\n--- CASH OUT (Fee: 5.0) ---");
         double amount = InputUtil.readDouble("Enter amount to cash out: ");
-        String pin = InputUtil.readLine("Enter PIN to confirm: ");
-        boolean ok = service.cashOut(currentUserPhone, amount, pin);
+        boolean ok = service.cashOut(currentUserPhone, amount, sessionToken);
         System.out.println(ok ? "✅ Cash Out: SUCCESS" : "❌ Cash Out: FAILED (insufficient balance/bad details)");
     }
 
@@ -151,8 +162,7 @@ public class BankingController {
         System.out.println("\n--- PAYMENT ---");
         String merchant = InputUtil.readLine("Enter merchant ID: ");
         double amount = InputUtil.readDouble("Enter amount: ");
-        String pin = InputUtil.readLine("Enter PIN to confirm: ");
-        boolean ok = service.payment(currentUserPhone, merchant, amount, pin);
+        boolean ok = service.payment(currentUserPhone, merchant, amount, sessionToken);
         System.out.println(ok ? "✅ Payment: SUCCESS" : "❌ Payment: FAILED (insufficient balance/bad details)");
     }
 
@@ -160,8 +170,7 @@ public class BankingController {
         System.out.println("\n--- MOBILE RECHARGE ---");
         String topup = InputUtil.readLine("Enter number to top-up: ");
         double amount = InputUtil.readDouble("Enter amount: ");
-        String pin = InputUtil.readLine("Enter PIN to confirm: ");
-        boolean ok = service.recharge(currentUserPhone, topup, amount, pin);
+        boolean ok = service.recharge(currentUserPhone, topup, amount, sessionToken);
         System.out.println(ok ? "✅ Recharge: SUCCESS" : "❌ Recharge: FAILED (insufficient balance/bad details)");
     }
 
@@ -171,16 +180,27 @@ public class BankingController {
     }
 
     private void handleTransactionHistory() {
-        List<Transaction> txs = service.getTransactions(currentUserPhone);
-        if (txs.isEmpty()) {
+        TransactionPage first = service.getTransactions(currentUserPhone, null, PAGE_SIZE, true);
+        if (first.getItems().isEmpty()) {
             System.out.println("\n📋 No transactions found.");
             return;
         }
         System.out.println("\n╔════════════════════════════════════════════════════════════╗");
         System.out.println("║                   Transaction History                      ║");
         System.out.println("╚════════════════════════════════════════════════════════════╝");
-        for (Transaction t : txs) {
-            System.out.println(t.toString());
+        printPages(first, cursor -> service.getTransactions(currentUserPhone, cursor, PAGE_SIZE, true));
+    }
+
+    /** Prints one page at a time, newest first, until the user stops or the history ends. */
+    private void printPages(TransactionPage page, Function<String, TransactionPage> next) {
+        while (true) {
+            for (Transaction t : page.getItems()) {
+                System.out.println(t.toString());
+            }
+            if (!page.hasMore()) return;
+            String more = InputUtil.readLine("-- Enter for older transactions, q to stop: ");
+            if (more.equalsIgnoreCase("q")) return;
+            page = next.apply(page.getNextCursor());
         }
     }
 
@@ -190,6 +210,14 @@ public class BankingController {
         String newPin = InputUtil.readLine("Enter new PIN: ");
         boolean ok = service.changePin(currentUserPhone, oldPin, newPin);
         System.out.println(ok ? "✅ PIN changed successfully." : "❌ PIN change failed. Check current PIN.");
+        // Changing the PIN ends all sessions of the account, this one included
+        if (ok) sessionToken = service.openSession(currentUserPhone, newPin);
+    }
+
+    private void logout() {
+        service.closeSession(sessionToken);
+        sessionToken = null;
+        currentUserPhone = null;
     }
 
     private void adminMenu() {
@@ -199,8 +227,12 @@ public class BankingController {
             switch (sel) {
                 case 1 -> viewAllUsers();
                 case 2 -> viewAllTransactions();
-                case 3 -> {
-                    currentUserPhone = null;
+                case 3 -> viewVolumeByType();
+                case 4 -> viewDailyVolume();
+                case 5 -> viewTopAccounts("Top Merchants by Payment Volume", rollups.topMerchants(TOP_N));
+                case 6 -> viewTopAccounts("Top Agent Cash In/Out Accounts", rollups.topAgentAccounts(TOP_N));
+                case 7 -> {
+                    logout();
                     System.out.println("✅ Logged out successfully.");
                     return;
                 }
@@ -215,7 +247,11 @@ public class BankingController {
         System.out.println("╚════════════════════════════════╝");
         System.out.println("1. View All Users");
         System.out.println("2. View All Transactions");
-        System.out.println("3. Logout");
+        System.out.println("3. Volume & Fees by Type");
+        System.out.println("4. Daily Volume");
+        System.out.println("5. Top Merchants");
+        System.out.println("6. Top Agent Cash In/Out");
+        System.out.println("7. Logout");
     }
 
     private void viewAllUsers() {
@@ -236,16 +272,65 @@ public class BankingController {
     }
 
     private void viewAllTransactions() {
-        List<Transaction> txs = txRepo.findAll();
-        if (txs.isEmpty()) {
+        TransactionPage first = txRepo.findAll(null, PAGE_SIZE, true);
+        if (first.getItems().isEmpty()) {
             System.out.println("\n📋 No transactions in the system.");
             return;
         }
         System.out.println("\n╔════════════════════════════════════════════════════════════╗");
         System.out.println("║                   All Transactions                         ║");
         System.out.println("╚════════════════════════════════════════════════════════════╝");
-        for (Transaction t : txs) {
-            System.out.println(t.toString());
+        printPages(first, cursor -> txRepo.findAll(cursor, PAGE_SIZE, true));
+    }
+
+    private void viewVolumeByType() {
+        Map<Transaction.Type, RollupRepository.Totals> byType = rollups.byType();
+        System.out.println("\n╔════════════════════════════════════════════════════════════╗");
+        System.out.println("║                  Volume & Fees by Type                     ║");
+        System.out.println("╚════════════════════════════════════════════════════════════╝");
+        System.out.printf("%-12s %10s %18s %12s\n", "Type", "Count", "Volume", "Fees");
+        System.out.println("─".repeat(60));
+        for (Map.Entry<Transaction.Type, RollupRepository.Totals> e : byType.entrySet()) {
+            RollupRepository.Totals t = e.getValue();
+            System.out.printf("%-12s %10d %18.2f %12.2f\n", e.getKey(), t.getCount(), t.getAmount(), t.getFees());
+        }
+        RollupRepository.Totals all = rollups.total();
+        System.out.println("─".repeat(60));
+        System.out.printf("%-12s %10d %18.2f %12.2f\n", "TOTAL", all.getCount(), all.getAmount(), all.getFees());
+    }
+
+    private void viewDailyVolume() {
+        NavigableMap<LocalDate, Map<Transaction.Type, RollupRepository.Totals>> days = rollups.byDay(REPORT_DAYS);
+        if (days.isEmpty()) {
+            System.out.println("\n📋 No transactions in the system.");
+            return;
+        }
+        System.out.println("\n╔════════════════════════════════════════════════════════════╗");
+        System.out.println("║                  Daily Volume by Type                      ║");
+        System.out.println("╚════════════════════════════════════════════════════════════╝");
+        System.out.printf("%-12s %-12s %10s %18s %12s\n", "Date", "Type", "Count", "Volume", "Fees");
+        System.out.println("─".repeat(68));
+        for (Map.Entry<LocalDate, Map<Transaction.Type, RollupRepository.Totals>> day : days.descendingMap().entrySet()) {
+            for (Map.Entry<Transaction.Type, RollupRepository.Totals> e : day.getValue().entrySet()) {
+                RollupRepository.Totals t = e.getValue();
+                System.out.printf("%-12s %-12s %10d %18.2f %12.2f\n",
+                        day.getKey(), e.getKey(), t.getCount(), t.getAmount(), t.getFees());
+            }
+        }
+    }
+
+    private void viewTopAccounts(String title, List<Map.Entry<String, RollupRepository.Totals>> top) {
+        if (top.isEmpty()) {
+            System.out.println("\n📋 Nothing to report yet.");
+            return;
+        }
+        System.out.println("\n--- " + title + " ---");
+        System.out.printf("%-4s %-20s %10s %18s\n", "#", "Account", "Count", "Volume");
+        System.out.println("─".repeat(56));
+        int rank = 1;
+        for (Map.Entry<String, RollupRepository.Totals> e : top) {
+            System.out.printf("%-4d %-20s %10d %18.2f\n",
+                    rank++, e.getKey(), e.getValue().getCount(), e.getValue().getAmount());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,15 @@
+package src.event;
+
+import src.model.Transaction;
+
+import java.util.List;
+
+/**
+ * Handles committed transactions in commit order, a batch at a time, on its own thread. A batch
+ * that throws is handed again, as the same list, until it goes through, so a consumer that may
+ * have handled part of it has to skip that part or tolerate seeing it twice.
+ */
+@FunctionalInterface
+public interface EventConsumer {
+    void onBatch(List<Transaction> batch) throws Exception;
+}
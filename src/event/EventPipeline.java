@@ -0,0 +1,243 @@
+package src.event;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+import src.model.Transaction;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands committed transactions to consumers off the request path. publish() claims the next
+ * slot of a preallocated ring with one atomic increment, stores the transaction and marks the
+ * slot available; the claiming thread is the slot's only writer. Each consumer drains, on its
+ * own thread and in order, whatever has become available (up to MAX_BATCH at a time) and then
+ * releases those slots by advancing its sequence.
+ *
+ * A publisher that would overwrite a slot the slowest consumer has not handled yet waits, so
+ * nothing is dropped; that wait is recorded in events.backpressure. Each consumer reports
+ * events.<name>.lag (published but not yet handled) and events.<name>.batch (time per batch).
+ * A consumer that throws has the failure counted in events.<name>.errors and is handed the
+ * same batch again, backing off up to a second between attempts, so a consumer that keeps
+ * failing holds the ring and eventually its publishers rather than losing events.
+ *
+ * close() lets publishes already under way finish and the consumers drain them. Only if that
+ * takes longer than CLOSE_TIMEOUT_MILLIS does it give up: consumers stop, publishers still
+ * waiting for a slot return, and every event left unhandled is reported.
+ */
+public class EventPipeline implements Closeable {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("javapay.events.capacity", 1 << 16);
+
+    private static final int MAX_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long RETRY_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long RETRY_MAX_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final LatencyHistogram BACKPRESSURE = Metrics.timer("events.backpressure");
+    private static final LongAdder PUBLISHED = Metrics.counter("events.published");
+    private static final LongAdder DROPPED = Metrics.counter("events.dropped");
+
+    private final Transaction[] slots;
+    private final AtomicLongArray available;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    /** Publishes between their closed check and marking their slot available. */
+    private final AtomicInteger publishing = new AtomicInteger();
+    private final List<Worker> pending = new ArrayList<>();
+    private volatile Worker[] workers = new Worker[0];
+    private volatile long gate = -1;
+    private volatile boolean closed;
+    /** Set when close() gave up waiting; consumers stop and waiting publishers return. */
+    private volatile boolean stopped;
+
+    /** capacity is rounded up to a power of two. */
+    public EventPipeline(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Transaction[size];
+        this.available = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            available.set(i, -1);
+        }
+        this.mask = size - 1;
+    }
+
+    /** Adds a consumer; all consumers must be added before start(). */
+    public synchronized void subscribe(String name, EventConsumer consumer) {
+        if (workers.length > 0) throw new IllegalStateException("Pipeline already started");
+        pending.add(new Worker(name, consumer));
+    }
+
+    public synchronized void start() {
+        if (workers.length > 0 || pending.isEmpty()) return;
+        Worker[] started = pending.toArray(new Worker[0]);
+        workers = started;
+        for (Worker w : started) {
+            w.thread.start();
+        }
+    }
+
+    /** Queues a committed transaction for every consumer; waits only if the ring is full. */
+    public void publish(Transaction tx) {
+        Worker[] ws = workers;
+        if (ws.length == 0) return;
+        // Consumers do not exit while a publish is under way, so one that got past the closed
+        // check is drained like any other.
+        publishing.incrementAndGet();
+        try {
+            if (closed) {
+                drop(tx, "published after close");
+                return;
+            }
+            long seq = claimed.incrementAndGet();
+            if (seq - slots.length > gate && !awaitSlot(seq, ws)) {
+                drop(tx, "still waiting for a slot when the consumers stopped");
+                return;
+            }
+            int i = (int) seq & mask;
+            slots[i] = tx;
+            available.set(i, seq);
+        } finally {
+            publishing.decrementAndGet();
+        }
+        PUBLISHED.increment();
+        for (Worker w : ws) {
+            if (w.idle) LockSupport.unpark(w.thread);
+        }
+    }
+
+    private static void drop(Transaction tx, String why) {
+        DROPPED.increment();
+        System.out.println("[EventPipeline] Dropped transaction " + tx.getId() + " " + why);
+    }
+
+    public void publishAll(List<Transaction> txs) {
+        for (Transaction tx : txs) {
+            publish(tx);
+        }
+    }
+
+    /**
+     * Waits until every consumer has released the slot seq is about to reuse; false if the
+     * consumers were stopped first.
+     */
+    private boolean awaitSlot(long seq, Worker[] ws) {
+        long start = 0;
+        while (true) {
+            long min = Long.MAX_VALUE;
+            for (Worker w : ws) {
+                min = Math.min(min, w.sequence);
+            }
+            gate = min;
+            if (seq - slots.length <= min) break;
+            if (stopped) return false;
+            if (start == 0) start = System.nanoTime();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        if (start != 0) BACKPRESSURE.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Lets the consumers drain everything published so far, including publishes already under
+     * way, then stops them. Gives up after CLOSE_TIMEOUT_MILLIS.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        boolean drained = true;
+        for (Worker w : workers) {
+            LockSupport.unpark(w.thread);
+            try {
+                w.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drained = false;
+                break;
+            }
+            if (w.thread.isAlive()) drained = false;
+        }
+        if (drained) return;
+        stopped = true;
+        for (Worker w : workers) {
+            LockSupport.unpark(w.thread);
+            if (w.thread.isAlive() || w.sequence < claimed.get()) {
+                System.out.println("[EventPipeline] Consumer " + w.name + " did not drain in time; "
+                        + Math.max(0, claimed.get() - w.sequence) + " transactions not handled");
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final String name;
+        final EventConsumer consumer;
+        final Thread thread;
+        final LatencyHistogram batchTime;
+        final LongAdder errors;
+        /** Last handled sequence; slots up to here may be reused. */
+        volatile long sequence = -1;
+        volatile boolean idle;
+
+        Worker(String name, EventConsumer consumer) {
+            this.name = name;
+            this.consumer = consumer;
+            this.thread = new Thread(this, "events-" + name);
+            thread.setDaemon(true);
+            this.batchTime = Metrics.timer("events." + name + ".batch");
+            this.errors = Metrics.counter("events." + name + ".errors");
+            Metrics.gauge("events." + name + ".lag", () -> Math.max(0, claimed.get() - sequence));
+        }
+
+        @Override
+        public void run() {
+            List<Transaction> batch = new ArrayList<>(MAX_BATCH);
+            long next = sequence + 1;
+            while (true) {
+                while (batch.size() < MAX_BATCH && available.get((int) next & mask) == next) {
+                    batch.add(slots[(int) next & mask]);
+                    next++;
+                }
+                if (batch.isEmpty()) {
+                    // publishing is read before claimed: a publish that finished in between
+                    // has raised claimed by then.
+                    if (stopped || closed && publishing.get() == 0 && next > claimed.get()) return;
+                    idle = true;
+                    if (available.get((int) next & mask) != next) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    idle = false;
+                    continue;
+                }
+                long start = System.nanoTime();
+                if (!handle(batch)) return;
+                batchTime.recordSince(start);
+                sequence = next - 1;
+                batch.clear();
+            }
+        }
+
+        /** Hands the batch to the consumer until it succeeds; false if the pipeline stopped first. */
+        private boolean handle(List<Transaction> batch) {
+            long backoff = RETRY_MIN_NANOS;
+            while (true) {
+                try {
+                    consumer.onBatch(batch);
+                    return true;
+                } catch (Exception e) {
+                    errors.increment();
+                    System.out.println("[EventPipeline] Consumer " + name + " failed, retrying "
+                            + batch.size() + " transactions: " + e.getMessage());
+                }
+                if (stopped) return false;
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, RETRY_MAX_NANOS);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package src.event;
+
+import src.model.Transaction;
+import src.util.Money;
+
+import java.io.*;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Stand-in for an SMS gateway: appends the receipt each account holder of a transaction would
+ * be texted to an outbox file, flushed once per batch.
+ */
+public class ReceiptNotifier implements EventConsumer, Closeable {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Writer out;
+    private final ToLongFunction<Transaction> feeOf;
+
+    /** feeOf gives the fee the sender paid on top of a transaction's amount, in minor units. */
+    public ReceiptNotifier(String filename, ToLongFunction<Transaction> feeOf) throws IOException {
+        this.out = new BufferedWriter(new FileWriter(filename, true));
+        this.feeOf = feeOf;
+    }
+
+    @Override
+    public void onBatch(List<Transaction> batch) throws IOException {
+        for (Transaction tx : batch) {
+            String amount = String.format("%.2f BDT", tx.getAmount());
+            String time = tx.getTimestamp().format(FORMATTER);
+            switch (tx.getType()) {
+                case SEND_MONEY -> {
+                    sms(tx.getFrom(), time, "Sent " + amount + " to " + tx.getTo() + fee(tx), tx);
+                    sms(tx.getTo(), time, "Received " + amount + " from " + tx.getFrom(), tx);
+                }
+                case TOPUP -> sms(tx.getTo(), time, "Added " + amount, tx);
+                case CASH_OUT -> sms(tx.getFrom(), time, "Cash out " + amount + fee(tx), tx);
+                case PAYMENT -> sms(tx.getFrom(), time, "Paid " + amount + " to merchant " + tx.getTo() + fee(tx), tx);
+                case RECHARGE -> sms(tx.getFrom(), time, "Recharged " + amount + " to " + tx.getTo() + fee(tx), tx);
+            }
+        }
+        out.flush();
+    }
+
+    private String fee(Transaction tx) {
+        long fee = feeOf.applyAsLong(tx);
+        return fee == 0 ? "" : String.format(", fee %.2f BDT", Money.toMajor(fee));
+    }
+
+    private void sms(String phone, String time, String text, Transaction tx) throws IOException {
+        if (phone == null) return;
+        out.write(time + " SMS to " + phone + ": " + text + ". TrxID " + tx.getId() + "\n");
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.out.println("[ReceiptNotifier] Close failed: " + e.getMessage());
+        }
+    }
+}
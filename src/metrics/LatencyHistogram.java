@@ -0,0 +1,122 @@
+package src.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram in the HdrHistogram layout: values are grouped by power of two,
+ * and each power of two is split into 64 linear sub-buckets, so every recorded value is kept
+ * to within 1/64 (about 1.6%) of its true value from 1 ns up to MAX_VALUE. Recording is one
+ * array increment. Histograms with this layout merge by adding their counts, which lets
+ * per-node or per-interval histograms be combined before reading percentiles.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    /** Largest value kept exactly (about 18 minutes in nanoseconds); longer ones are clamped. */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int LENGTH = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(long value) {
+        int bucket = 63 - Long.numberOfLeadingZeros(value | (SUB_BUCKETS - 1)) - (SUB_BUCKET_BITS - 1);
+        return (bucket << (SUB_BUCKET_BITS - 1)) + (int) (value >>> bucket);
+    }
+
+    /** Largest value that falls into the same slot as the value at this index. */
+    static long highestEquivalent(int index) {
+        int bucket = Math.max(0, (index >> (SUB_BUCKET_BITS - 1)) - 1);
+        long sub = index - ((long) bucket << (SUB_BUCKET_BITS - 1));
+        return ((sub + 1) << bucket) - 1;
+    }
+
+    public void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(v));
+        sum.add(v);
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    /** Records the time elapsed since a System.nanoTime() reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Consistent-enough copy for reporting; recording continues concurrently. */
+    public Snapshot snapshot() {
+        long[] c = new long[LENGTH];
+        long total = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        return new Snapshot(c, total, sum.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < LENGTH; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+
+    /** Immutable counts of one histogram, or the merge of several. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public static Snapshot empty() {
+            return new Snapshot(new long[LENGTH], 0, 0, 0);
+        }
+
+        public Snapshot merge(Snapshot other) {
+            long[] c = counts.clone();
+            for (int i = 0; i < LENGTH; i++) {
+                c[i] += other.counts[i];
+            }
+            return new Snapshot(c, count + other.count, sum + other.sum, Math.max(max, other.max));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** Value at or below which the given fraction (0..1) of recorded values fall. */
+        public long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < LENGTH; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestEquivalent(i), max);
+            }
+            return max;
+        }
+    }
+}
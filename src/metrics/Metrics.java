@@ -0,0 +1,201 @@
+package src.metrics;
+
+import javax.management.*;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of latency histograms (nanoseconds), counters and gauges, looked up by name.
+ * Callers keep the returned instance in a static field so the hot path is only the record call.
+ *
+ * Everything registered here is published under the JMX name {@code javapay:type=Metrics}:
+ * for each histogram the attributes {@code <name>.count}, {@code .p50}, {@code .p99},
+ * {@code .p999}, {@code .max} and {@code .mean} (microseconds), and one attribute per counter
+ * and per gauge.
+ * -Djavapay.metrics.dumpSeconds=N also prints the same table every N seconds, to
+ * -Djavapay.metrics.dumpFile when set and to standard output otherwise.
+ */
+public final class Metrics {
+    public static final String OBJECT_NAME = "javapay:type=Metrics";
+
+    private static final Map<String, LatencyHistogram> TIMERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private Metrics() {
+    }
+
+    public static LatencyHistogram timer(String name) {
+        return TIMERS.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /** Registers a value read whenever metrics are reported; a later registration replaces it. */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    public static void reset() {
+        TIMERS.values().forEach(LatencyHistogram::reset);
+        COUNTERS.values().forEach(LongAdder::reset);
+    }
+
+    /** Registers the MBean and starts the periodic dump if configured; safe to call repeatedly. */
+    public static void start() {
+        if (!STARTED.compareAndSet(false, true)) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MetricsBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("[Metrics] JMX registration failed: " + e.getMessage());
+        }
+        long seconds = Long.getLong("javapay.metrics.dumpSeconds", 0);
+        if (seconds <= 0) return;
+        String file = System.getProperty("javapay.metrics.dumpFile");
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private static void dump(String file) {
+        if (file == null) {
+            System.out.print(report());
+            return;
+        }
+        try (PrintWriter w = new PrintWriter(new FileWriter(file, true))) {
+            w.print(report());
+        } catch (IOException e) {
+            System.out.println("[Metrics] Dump failed: " + e.getMessage());
+        }
+    }
+
+    /** Text table of every histogram and counter, latencies in microseconds. */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== metrics ").append(LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)).append(" ===\n");
+        sb.append(String.format("%-32s %10s %10s %10s %10s %10s %10s%n",
+                "timer (us)", "count", "p50", "p99", "p999", "max", "mean"));
+        for (Map.Entry<String, LatencyHistogram> e : TIMERS.entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue().snapshot();
+            if (s.getCount() == 0) continue;
+            sb.append(String.format("%-32s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), s.getCount(),
+                    micros(s.percentile(0.5)), micros(s.percentile(0.99)), micros(s.percentile(0.999)),
+                    micros(s.getMax()), s.getMean() / 1000.0));
+        }
+        for (Map.Entry<String, LongAdder> e : COUNTERS.entrySet()) {
+            sb.append(String.format("%-32s %10d%n", e.getKey(), e.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> e : GAUGES.entrySet()) {
+            sb.append(String.format("%-32s %10d%n", e.getKey(), e.getValue().getAsLong()));
+        }
+        return sb.toString();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /** Attributes are read from the registry on every call, so metrics added later show up too. */
+    private static final class MetricsBean implements DynamicMBean {
+        private static final String[] STATS = {"count", "p50", "p99", "p999", "max", "mean"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = COUNTERS.get(attribute);
+            if (counter != null) return counter.sum();
+            LongSupplier gauge = GAUGES.get(attribute);
+            if (gauge != null) return gauge.getAsLong();
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram h = dot < 0 ? null : TIMERS.get(attribute.substring(0, dot));
+            if (h == null) throw new AttributeNotFoundException(attribute);
+            LatencyHistogram.Snapshot s = h.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count": return (double) s.getCount();
+                case "p50": return micros(s.percentile(0.5));
+                case "p99": return micros(s.percentile(0.99));
+                case "p999": return micros(s.percentile(0.999));
+                case "max": return micros(s.getMax());
+                case "mean": return s.getMean() / 1000.0;
+                default: throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException ignored) {
+                    // skipped, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            switch (actionName) {
+                case "report": return report();
+                case "reset": reset(); return null;
+                default: throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (String name : TIMERS.keySet()) {
+                for (String stat : STATS) {
+                    attrs.add(new MBeanAttributeInfo(name + "." + stat, "double",
+                            stat.equals("count") ? "samples" : stat + " latency in microseconds", true, false, false));
+                }
+            }
+            for (String name : COUNTERS.keySet()) {
+                attrs.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+            }
+            for (String name : GAUGES.keySet()) {
+                attrs.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+            }
+            MBeanOperationInfo[] ops = {
+                    new MBeanOperationInfo("report", "Text table of all metrics", new MBeanParameterInfo[0],
+                            "java.lang.String", MBeanOperationInfo.INFO),
+                    new MBeanOperationInfo("reset", "Clears all histograms and counters", new MBeanParameterInfo[0],
+                            "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "JavaPay latency histograms and counters",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+        }
+    }
+}
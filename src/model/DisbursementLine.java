@@ -0,0 +1,20 @@
+package src.model;
+
+/** One recipient and amount of a bulk disbursement. */
+public class DisbursementLine {
+    private final String recipient;
+    private final double amount;
+
+    public DisbursementLine(String recipient, double amount) {
+        this.recipient = recipient;
+        this.amount = amount;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+}
@@ -0,0 +1,64 @@
+package src.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/** Outcome of a bulk disbursement, with one status per input line in input order. */
+public class DisbursementReport {
+    public enum Status {
+        PAID,
+        INVALID_AMOUNT,
+        /** Unknown account, or the sender itself. */
+        INVALID_RECIPIENT,
+        INSUFFICIENT_FUNDS,
+        /** Unknown sender or wrong PIN; nothing was checked further. */
+        UNAUTHORIZED,
+        /** The line was valid but not paid because the all-or-nothing batch was rejected. */
+        NOT_ATTEMPTED
+    }
+
+    private final List<Status> lines;
+    private final long[] transactionIds;
+    private final double debited;
+
+    public DisbursementReport(List<Status> lines, long[] transactionIds, double debited) {
+        this.lines = Collections.unmodifiableList(lines);
+        this.transactionIds = transactionIds;
+        this.debited = debited;
+    }
+
+    /** Rejects every line, e.g. for an unknown sender or a wrong PIN. */
+    public static DisbursementReport rejected(int lineCount, Status status) {
+        return new DisbursementReport(Collections.nCopies(lineCount, status), new long[lineCount], 0.0);
+    }
+
+    public List<Status> getLines() {
+        return lines;
+    }
+
+    public Status getStatus(int line) {
+        return lines.get(line);
+    }
+
+    /** Id of the transaction that paid the line, or 0 when it was not paid. */
+    public long getTransactionId(int line) {
+        return transactionIds[line];
+    }
+
+    /** Total taken from the sender, fees included. */
+    public double getDebited() {
+        return debited;
+    }
+
+    public int getPaidCount() {
+        int n = 0;
+        for (Status s : lines) {
+            if (s == Status.PAID) n++;
+        }
+        return n;
+    }
+
+    public boolean isFullyPaid() {
+        return getPaidCount() == lines.size();
+    }
+}
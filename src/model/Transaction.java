@@ -1,37 +1,106 @@
 package src.model;
 
+import src.util.AccountKey;
+import src.util.Money;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.UUID;
 
+/**
+ * Stored compactly: a 64-bit sequence id assigned by the store, epoch-millis timestamp,
+ * amount in minor units (paisa), and digit-only account ids packed into longs. Only ids
+ * that do not pack (e.g. merchant names) and non-default descriptions are kept as strings.
+ */
 public class Transaction implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public enum Type {
-        SEND_MONEY, CASH_OUT, PAYMENT, RECHARGE, TOPUP
+        SEND_MONEY("Send money"),
+        CASH_OUT("Cash out via agent"),
+        PAYMENT("Payment to merchant"),
+        RECHARGE("Mobile recharge"),
+        TOPUP("Add money via agent/bank");
+
+        private final String description;
+
+        Type(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
     }
 
-    private String id;
+    private long seq;
     private Type type;
-    private String from;
-    private String to;
-    private double amount;
-    private LocalDateTime timestamp;
-    private String description;
+    private long fromKey;
+    private long toKey;
+    private String fromText;
+    private String toText;
+    private long amountMinor;
+    private long epochMillis;
+    private String customDescription;
+
+    public Transaction(Type type, String from, String to, long amountMinor) {
+        this(type, from, to, amountMinor, null);
+    }
 
     public Transaction(Type type, String from, String to, double amount, String description) {
-        this.id = UUID.randomUUID().toString();
+        this(type, from, to, Money.toMinor(amount), description);
+    }
+
+    private Transaction(Type type, String from, String to, long amountMinor, String description) {
         this.type = type;
-        this.from = from;
-        this.to = to;
-        this.amount = amount;
-        this.timestamp = LocalDateTime.now();
-        this.description = description;
+        setFrom(from);
+        setTo(to);
+        this.amountMinor = amountMinor;
+        this.epochMillis = System.currentTimeMillis();
+        this.customDescription = type.getDescription().equals(description) ? null : description;
+    }
+
+    /** Rebuilds a stored transaction with its original id and timestamp. */
+    public static Transaction restore(long id, Type type, String from, String to, long amountMinor,
+                                      long epochMillis, String description) {
+        Transaction tx = new Transaction(type, from, to, amountMinor, description);
+        tx.seq = id;
+        tx.epochMillis = epochMillis;
+        return tx;
+    }
+
+    /** Called once by the store that persists the transaction. */
+    public void assignId(long id) {
+        if (seq != 0) throw new IllegalStateException("Transaction already has id " + seq);
+        this.seq = id;
+    }
+
+    private void setFrom(String from) {
+        fromKey = keyOf(from);
+        fromText = fromKey == AccountKey.NOT_PACKABLE ? from : null;
     }
 
-    public String getId() {
-        return id;
+    private void setTo(String to) {
+        toKey = keyOf(to);
+        toText = toKey == AccountKey.NOT_PACKABLE ? to : null;
+    }
+
+    private static long keyOf(String account) {
+        return account == null ? 0 : AccountKey.pack(account);
+    }
+
+    private static String accountOf(long key, String text) {
+        if (key == 0) return null;
+        return key == AccountKey.NOT_PACKABLE ? text : AccountKey.unpack(key);
+    }
+
+    public long getId() {
+        return seq;
     }
 
     public Type getType() {
@@ -39,34 +108,73 @@ public class Transaction implements Serializable {
     }
 
     public String getFrom() {
-        return from;
+        return accountOf(fromKey, fromText);
     }
 
     public String getTo() {
-        return to;
+        return accountOf(toKey, toText);
     }
 
     public double getAmount() {
-        return amount;
+        return Money.toMajor(amountMinor);
+    }
+
+    public long getAmountMinor() {
+        return amountMinor;
     }
 
     public LocalDateTime getTimestamp() {
-        return timestamp;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
     }
 
     public String getDescription() {
-        return description;
+        return customDescription != null ? customDescription : type.getDescription();
+    }
+
+    /** True when the description is the shared default of the transaction type. */
+    public boolean hasDefaultDescription() {
+        return customDescription == null;
+    }
+
+    /** Accepts both this layout and the original one with UUID ids and boxed fields. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        type = (Type) f.get("type", null);
+        if (!f.defaulted("amountMinor")) {
+            seq = f.get("seq", 0L);
+            fromKey = f.get("fromKey", 0L);
+            toKey = f.get("toKey", 0L);
+            fromText = (String) f.get("fromText", null);
+            toText = (String) f.get("toText", null);
+            amountMinor = f.get("amountMinor", 0L);
+            epochMillis = f.get("epochMillis", 0L);
+            customDescription = (String) f.get("customDescription", null);
+            return;
+        }
+        // Original layout: the store assigns a sequence id in place of the UUID.
+        setFrom((String) f.get("from", null));
+        setTo((String) f.get("to", null));
+        amountMinor = Money.toMinor(f.get("amount", 0.0));
+        LocalDateTime ts = (LocalDateTime) f.get("timestamp", null);
+        epochMillis = ts == null ? 0 : ts.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String description = (String) f.get("description", null);
+        customDescription = type.getDescription().equals(description) ? null : description;
     }
 
     @Override
     public String toString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return String.format("[%s] %s -> %s : %.2f (%s) - %s", 
-            timestamp.format(formatter),
-            from == null ? "SYSTEM" : from, 
-            to == null ? "SYSTEM" : to, 
-            amount, 
+        String from = getFrom();
+        String to = getTo();
+        return String.format("[%s] %s -> %s : %.2f (%s) - %s",
+            getTimestamp().format(FORMATTER),
+            from == null ? "SYSTEM" : from,
+            to == null ? "SYSTEM" : to,
+            getAmount(),
             type.name(),
-            description);
+            getDescription());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package src.model;
+
+import java.util.List;
+
+public class TransactionPage {
+    private final List<Transaction> items;
+    private final String nextCursor;
+
+    public TransactionPage(List<Transaction> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Transaction> getItems() {
+        return items;
+    }
+
+    /** Opaque cursor for the following page, or null when this is the last page. */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
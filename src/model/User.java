@@ -1,29 +1,63 @@
 package src.model;
 
+import src.util.Money;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class User implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final VarHandle BALANCE;
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(User.class, "balanceMinor", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     private String phoneNumber;
     private String name;
     private String pinHash;
-    private double balance;
+    /** Changed only by compare-and-set, so reads never wait for writers or the monitor. */
+    private volatile long balanceMinor;
     private String role; // "USER" or "ADMIN"
     private LocalDateTime createdAt;
-    private List<String> transactions;
+    private long[] txIds;
+    private int txCount;
+    private transient boolean legacyHistory;
 
     public User(String phoneNumber, String name, String pinHash, double balance, String role) {
         this.phoneNumber = phoneNumber;
         this.name = name;
         this.pinHash = pinHash;
-        this.balance = balance;
+        this.balanceMinor = Money.toMinor(balance);
         this.role = role;
         this.createdAt = LocalDateTime.now();
-        this.transactions = new ArrayList<>();
+        this.txIds = new long[4];
+    }
+
+    /** For subclasses that keep the account's state elsewhere and override every accessor. */
+    protected User() {
+    }
+
+    /** Rebuilds a stored account with its original creation time and history. */
+    public static User restore(String phoneNumber, String name, String pinHash, long balanceMinor, String role,
+                               LocalDateTime createdAt, long[] txIds) {
+        User u = new User(phoneNumber, name, pinHash, 0.0, role);
+        u.balanceMinor = balanceMinor;
+        u.createdAt = createdAt;
+        u.txIds = txIds.length == 0 ? new long[4] : txIds;
+        u.txCount = txIds.length;
+        return u;
     }
 
     public String getPhoneNumber() {
@@ -38,45 +72,115 @@ public class User implements Serializable {
         return pinHash;
     }
 
-    public void setPinHash(String pinHash) {
+    public synchronized void setPinHash(String pinHash) {
         this.pinHash = pinHash;
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toMajor(balanceMinor);
+    }
+
+    public long getBalanceMinor() {
+        return balanceMinor;
     }
 
     public String getRole() {
         return role;
     }
 
-    public synchronized void deposit(double amount) {
-        this.balance += amount;
+    public void deposit(long amountMinor) {
+        requirePositive(amountMinor);
+        BALANCE.getAndAdd(this, amountMinor);
     }
 
-    public synchronized boolean withdraw(double amount) {
-        if (amount <= balance) {
-            balance -= amount;
-            return true;
-        }
-        return false;
+    /** Takes the amount only if the balance covers it, retrying if another update got in first. */
+    public boolean withdraw(long amountMinor) {
+        requirePositive(amountMinor);
+        long current;
+        do {
+            current = balanceMinor;
+            if (amountMinor > current) return false;
+        } while (!BALANCE.weakCompareAndSet(this, current, current - amountMinor));
+        return true;
+    }
+
+    protected static void requirePositive(long amountMinor) {
+        if (amountMinor <= 0) throw new IllegalArgumentException("Amount must be positive: " + amountMinor);
+    }
+
+    /** Restores journaled state when the repository replays its change log. */
+    public synchronized void restore(long balanceMinor, String pinHash) {
+        this.balanceMinor = balanceMinor;
+        this.pinHash = pinHash;
     }
 
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
 
-    public List<String> getTransactions() {
-        return transactions;
+    public synchronized long[] getTransactions() {
+        return Arrays.copyOf(txIds, txCount);
     }
 
-    public void addTransaction(String txId) {
-        transactions.add(txId);
+    public synchronized int getTransactionCount() {
+        return txCount;
+    }
+
+    public synchronized long[] getTransactionsSince(int index) {
+        return Arrays.copyOfRange(txIds, index, txCount);
+    }
+
+    public synchronized void addTransaction(long txId) {
+        if (txCount == txIds.length) txIds = Arrays.copyOf(txIds, Math.max(4, txCount * 2));
+        txIds[txCount++] = txId;
+    }
+
+    /** True when loaded from the original format, whose UUID history could not be carried over. */
+    public synchronized boolean hasLegacyHistory() {
+        return legacyHistory;
+    }
+
+    public synchronized void markLegacyHistory() {
+        legacyHistory = true;
+    }
+
+    /** Replaces the history with ids looked up from the transaction store. */
+    public synchronized void relinkHistory(List<Transaction> history) {
+        txIds = new long[Math.max(4, history.size())];
+        txCount = 0;
+        for (Transaction t : history) {
+            txIds[txCount++] = t.getId();
+        }
+        legacyHistory = false;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /** Accepts both this layout and the original one with a double balance and UUID list. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        phoneNumber = (String) f.get("phoneNumber", null);
+        name = (String) f.get("name", null);
+        pinHash = (String) f.get("pinHash", null);
+        role = (String) f.get("role", null);
+        createdAt = (LocalDateTime) f.get("createdAt", null);
+        if (!f.defaulted("txIds")) {
+            balanceMinor = f.get("balanceMinor", 0L);
+            txIds = (long[]) f.get("txIds", null);
+            txCount = f.get("txCount", 0);
+            return;
+        }
+        balanceMinor = Money.toMinor(f.get("balance", 0.0));
+        List<?> legacy = (List<?>) f.get("transactions", null);
+        legacyHistory = legacy != null && !legacy.isEmpty();
+        txIds = new long[4];
     }
 
     @Override
     public String toString() {
-        return String.format("User[name=%s, phone=%s, balance=%.2f, role=%s]", 
-            name, phoneNumber, balance, role);
+        return String.format("User[name=%s, phone=%s, balance=%.2f, role=%s]",
+            getName(), getPhoneNumber(), getBalance(), getRole());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+package src.repository;
+
+import src.model.Transaction;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Secondary index from account to the positions of its transactions in the log, so a
+ * history lookup only touches that account's records. Not thread-safe; the owning
+ * repository guards it with its own lock.
+ */
+class AccountIndex {
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, Positions> byAccount = new HashMap<>();
+    private int covered;
+
+    /** Position up to which the index already reflects the log, counted from the very first record. */
+    int covered() {
+        return covered;
+    }
+
+    void add(Transaction tx) {
+        add(tx.getFrom(), tx.getTo());
+    }
+
+    void add(String from, String to) {
+        int pos = covered++;
+        if (from != null) {
+            byAccount.computeIfAbsent(from, k -> new Positions()).add(pos);
+        }
+        if (to != null && !to.equals(from)) {
+            byAccount.computeIfAbsent(to, k -> new Positions()).add(pos);
+        }
+    }
+
+    /**
+     * Forgets every position before the given one, as when those records move to the cold
+     * archive; the index then covers at least up to it.
+     */
+    void dropBefore(int position) {
+        Iterator<Positions> it = byAccount.values().iterator();
+        while (it.hasNext()) {
+            Positions p = it.next();
+            int cut = lowerBound(p, position);
+            if (cut == p.size) {
+                it.remove();
+            } else if (cut > 0) {
+                p.items = Arrays.copyOfRange(p.items, cut, p.size);
+                p.size -= cut;
+            }
+        }
+        covered = Math.max(covered, position);
+    }
+
+    int[] positions(String phone) {
+        Positions p = byAccount.get(phone);
+        return p == null ? new int[0] : Arrays.copyOf(p.items, p.size);
+    }
+
+    /**
+     * Returns up to limit positions of the account strictly after (ascending) or before
+     * (descending) the given log position; pass -1 to start from the oldest or newest end.
+     */
+    int[] page(String phone, int from, int limit, boolean descending) {
+        Positions p = byAccount.get(phone);
+        if (p == null) return new int[0];
+        int start;
+        if (descending) {
+            start = from < 0 ? p.size - 1 : lowerBound(p, from) - 1;
+        } else {
+            start = from < 0 ? 0 : lowerBound(p, from + 1);
+        }
+        int n = descending ? Math.min(limit, start + 1) : Math.min(limit, p.size - start);
+        int[] out = new int[Math.max(0, n)];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = p.items[descending ? start - i : start + i];
+        }
+        return out;
+    }
+
+    /** Index of the first stored position that is >= pos. */
+    private static int lowerBound(Positions p, int pos) {
+        int lo = 0, hi = p.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (p.items[mid] < pos) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * A point-in-time view for checkpoints, taken under the owner's lock in time proportional
+     * to the number of accounts rather than positions. Position arrays are only appended to
+     * past the captured size or replaced whole, so the view stays intact while the index keeps
+     * changing and can be written out after the lock is released.
+     */
+    Snapshot snapshot() {
+        String[] phones = new String[byAccount.size()];
+        int[][] items = new int[phones.length][];
+        int[] sizes = new int[phones.length];
+        int i = 0;
+        for (Map.Entry<String, Positions> e : byAccount.entrySet()) {
+            phones[i] = e.getKey();
+            items[i] = e.getValue().items;
+            sizes[i++] = e.getValue().size;
+        }
+        return new Snapshot(covered, phones, items, sizes);
+    }
+
+    record Snapshot(int covered, String[] phones, int[][] items, int[] sizes) {
+        void writeTo(OutputStream stream) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(covered);
+            out.writeInt(phones.length);
+            for (int a = 0; a < phones.length; a++) {
+                out.writeUTF(phones[a]);
+                out.writeInt(sizes[a]);
+                for (int i = 0; i < sizes[a]; i++) {
+                    out.writeInt(items[a][i]);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    static AccountIndex readFrom(InputStream stream) throws IOException {
+        AccountIndex index = new AccountIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported index version");
+            index.covered = in.readInt();
+            int accounts = in.readInt();
+            for (int a = 0; a < accounts; a++) {
+                String phone = in.readUTF();
+                Positions p = new Positions();
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    p.add(in.readInt());
+                }
+                index.byAccount.put(phone, p);
+            }
+        }
+        return index;
+    }
+
+    static void write(File file, SecretKey key, Snapshot snapshot) throws Exception {
+        EncryptedFiles.write(file, key, snapshot::writeTo);
+    }
+
+    /** Reads a persisted index, or returns an empty one if it is missing or unreadable. */
+    static AccountIndex read(File file, SecretKey key) {
+        if (!file.exists()) return new AccountIndex();
+        try {
+            return readFrom(EncryptedFiles.open(file, key));
+        } catch (Exception e) {
+            System.out.println("[AccountIndex] Rebuilding index: " + e.getMessage());
+            return new AccountIndex();
+        }
+    }
+
+    private static final class Positions {
+        private int[] items = new int[4];
+        private int size;
+
+        void add(int pos) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = pos;
+        }
+    }
+}
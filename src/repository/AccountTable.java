@@ -0,0 +1,602 @@
+package src.repository;
+
+import src.model.Transaction;
+import src.model.User;
+import src.util.AccountKey;
+import src.util.Money;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * One shard's accounts, stored outside the Java heap so heap size and GC work do not grow with
+ * the number of subscribers. Each account is a fixed-width record in chunked direct buffers:
+ * packed phone, balance, creation time, role, flags, transaction count, and addresses of the
+ * name, PIN hash and transaction-id history in an OffHeapArena. Records never move, so the
+ * Row handed out for an account stays valid for the life of the table.
+ *
+ * Phone numbers of up to 15 digits, the E.164 maximum, are packed into a long by AccountKey and
+ * found through an off-heap open-addressing index with linear probing. Lookups read the index
+ * without locking; inserts are rare, synchronize on the table and publish each entry with a
+ * release store after its record is written. Any other phone string goes through a small
+ * on-heap map.
+ *
+ * Balances change by compare-and-set on the record, as User's do. History and flags change
+ * under a per-record spin lock, since a history that outgrows its block moves and the old
+ * block is reused. A changed PIN hash is stored anew and the old bytes stay unused until the
+ * table is next loaded.
+ */
+final class AccountTable {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    // Record layout
+    private static final int KEY = 0;
+    private static final int BALANCE = 8;
+    private static final int CREATED_SECONDS = 16;
+    private static final int CREATED_NANOS = 24;
+    private static final int LOCK = 28;
+    private static final int NAME = 32;
+    private static final int PIN_HASH = 40;
+    private static final int HISTORY = 48;
+    private static final int TX_COUNT = 56;
+    private static final int HISTORY_CAPACITY = 60;
+    private static final int JOURNALED = 64;
+    private static final int ROLE = 68;
+    private static final int FLAGS = 69;
+    private static final int PHONE = 72;
+    private static final int RECORD_BYTES = 80;
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int INITIAL_INDEX_ENTRIES = 1024;
+    private static final int MIN_HISTORY = 4;
+    private static final byte LEGACY_HISTORY = 1;
+
+    /** Roles are few; records store an index into this list. */
+    private static final List<String> ROLES = new CopyOnWriteArrayList<>(List.of("USER", "ADMIN"));
+
+    private final OffHeapArena arena = new OffHeapArena();
+    private final Map<String, Integer> otherPhones = new ConcurrentHashMap<>();
+    private volatile ByteBuffer[] records = new ByteBuffer[0];
+    private volatile ByteBuffer index = OffHeapArena.allocate(INITIAL_INDEX_ENTRIES * INDEX_ENTRY_BYTES);
+    private volatile int size;
+    private int indexed;
+
+    /** The AccountKey of a digits-only phone, or 0, which marks an empty index slot, if it has none. */
+    private static long pack(String phone) {
+        long key = AccountKey.pack(phone);
+        return key == AccountKey.NOT_PACKABLE ? 0 : key;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private ByteBuffer chunkOf(int record) {
+        return records[record >>> CHUNK_BITS];
+    }
+
+    private static int base(int record) {
+        return (record & (CHUNK_RECORDS - 1)) * RECORD_BYTES;
+    }
+
+    /** Record number of the account, or -1; never locks or allocates. */
+    private int recordOf(String phone) {
+        long key = pack(phone);
+        if (key == 0) {
+            Integer record = otherPhones.get(phone);
+            return record == null ? -1 : record;
+        }
+        ByteBuffer idx = index;
+        int mask = idx.capacity() / INDEX_ENTRY_BYTES - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            int off = i * INDEX_ENTRY_BYTES;
+            long k = (long) LONGS.getAcquire(idx, off);
+            if (k == key) return idx.getInt(off + 8);
+            if (k == 0) return -1;
+        }
+    }
+
+    boolean contains(String phone) {
+        return recordOf(phone) >= 0;
+    }
+
+    /** The account as a Row of this table, or null if it is any other User. */
+    Row rowOf(User user) {
+        return user instanceof Row row && row.table == this ? row : null;
+    }
+
+    Row find(String phone) {
+        int record = recordOf(phone);
+        return record < 0 ? null : new Row(this, record, phone);
+    }
+
+    /** Balance in minor units, or -1 if there is no such account. */
+    long balanceMinor(String phone) {
+        int record = recordOf(phone);
+        return record < 0 ? -1 : balance(record);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Stores the account: a Row of this table as is, anything else copied over the record. */
+    Row put(User user) {
+        if (user instanceof Row row && row.table == this) return row;
+        String phone = user.getPhoneNumber();
+        int record = recordOf(phone);
+        if (record < 0) {
+            synchronized (this) {
+                record = recordOf(phone);
+                if (record < 0) return insert(phone, user);
+            }
+        }
+        overwrite(record, user);
+        return new Row(this, record, phone);
+    }
+
+    private Row insert(String phone, User user) {
+        int record = size;
+        if ((record >>> CHUNK_BITS) == records.length) {
+            ByteBuffer[] grown = Arrays.copyOf(records, records.length + 1);
+            grown[records.length] = OffHeapArena.allocate(CHUNK_RECORDS * RECORD_BYTES);
+            records = grown;
+        }
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        long key = pack(phone);
+        c.putLong(b + KEY, key);
+        c.putLong(b + PHONE, key == 0 ? arena.putString(phone) : 0);
+        c.putLong(b + NAME, arena.putString(user.getName()));
+        c.putInt(b + JOURNALED, -1);
+        write(c, b, user);
+        size = record + 1;
+        if (key == 0) {
+            otherPhones.put(phone, record);
+        } else {
+            index(key, record);
+        }
+        return new Row(this, record, phone);
+    }
+
+    /** Adds an index entry, doubling the index first past two-thirds full; caller holds the table lock. */
+    private void index(long key, int record) {
+        ByteBuffer idx = index;
+        int entries = idx.capacity() / INDEX_ENTRY_BYTES;
+        if ((indexed + 1) * 3L > entries * 2L) {
+            ByteBuffer grown = OffHeapArena.allocate(entries * 2 * INDEX_ENTRY_BYTES);
+            for (int i = 0; i < entries; i++) {
+                long k = idx.getLong(i * INDEX_ENTRY_BYTES);
+                if (k != 0) place(grown, k, idx.getInt(i * INDEX_ENTRY_BYTES + 8));
+            }
+            index = grown;
+            OffHeapArena.OFF_HEAP_BYTES.add(-idx.capacity());
+            idx = grown;
+        }
+        place(idx, key, record);
+        indexed++;
+    }
+
+    private static void place(ByteBuffer idx, long key, int record) {
+        int mask = idx.capacity() / INDEX_ENTRY_BYTES - 1;
+        int i = slot(key, mask);
+        while (idx.getLong(i * INDEX_ENTRY_BYTES) != 0) {
+            i = (i + 1) & mask;
+        }
+        idx.putInt(i * INDEX_ENTRY_BYTES + 8, record);
+        LONGS.setRelease(idx, i * INDEX_ENTRY_BYTES, key);
+    }
+
+    /** Replaces everything but the phone and journal position with the given account's state. */
+    private void overwrite(int record, User user) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            LONGS.setRelease(c, b + NAME, arena.replaceString(c.getLong(b + NAME), user.getName()));
+            write(c, b, user);
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    private void write(ByteBuffer c, int b, User user) {
+        LocalDateTime created = user.getCreatedAt();
+        c.putLong(b + CREATED_SECONDS, created.toEpochSecond(ZoneOffset.UTC));
+        c.putInt(b + CREATED_NANOS, created.getNano());
+        c.put(b + ROLE, roleCode(user.getRole()));
+        c.put(b + FLAGS, user.hasLegacyHistory() ? LEGACY_HISTORY : 0);
+        LONGS.setRelease(c, b + PIN_HASH, arena.replaceString(c.getLong(b + PIN_HASH), user.getPinHash()));
+        LONGS.setVolatile(c, b + BALANCE, user.getBalanceMinor());
+        setHistory(c, b, user.getTransactions());
+    }
+
+    private static byte roleCode(String role) {
+        int i = ROLES.indexOf(role);
+        if (i >= 0) return (byte) i;
+        synchronized (ROLES) {
+            i = ROLES.indexOf(role);
+            if (i < 0) {
+                ROLES.add(role);
+                i = ROLES.size() - 1;
+            }
+        }
+        if (i > Byte.MAX_VALUE) throw new IllegalStateException("Too many roles");
+        return (byte) i;
+    }
+
+    /** Every account, in insertion order. */
+    void forEach(Consumer<Row> action) {
+        int n = size;
+        for (int record = 0; record < n; record++) {
+            action.accept(new Row(this, record, phoneOf(record)));
+        }
+    }
+
+    List<Row> all() {
+        List<Row> all = new ArrayList<>(size);
+        forEach(all::add);
+        return all;
+    }
+
+    /** Accounts with record numbers in [from, to); records are only ever appended, so any to <= size() stays valid. */
+    List<Row> range(int from, int to) {
+        List<Row> rows = new ArrayList<>(to - from);
+        for (int record = from; record < to; record++) {
+            rows.add(new Row(this, record, phoneOf(record)));
+        }
+        return rows;
+    }
+
+    private String phoneOf(int record) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        long key = c.getLong(b + KEY);
+        return key != 0 ? AccountKey.unpack(key) : arena.getString(c.getLong(b + PHONE));
+    }
+
+    synchronized void clear() {
+        for (ByteBuffer c : records) {
+            OffHeapArena.OFF_HEAP_BYTES.add(-c.capacity());
+        }
+        OffHeapArena.OFF_HEAP_BYTES.add(-index.capacity());
+        records = new ByteBuffer[0];
+        index = OffHeapArena.allocate(INITIAL_INDEX_ENTRIES * INDEX_ENTRY_BYTES);
+        otherPhones.clear();
+        arena.release();
+        indexed = 0;
+        size = 0;
+    }
+
+    // Per-record operations behind Row
+
+    private static void lock(ByteBuffer c, int b) {
+        int spins = 0;
+        while (!INTS.compareAndSet(c, b + LOCK, 0, 1)) {
+            if (++spins % 64 == 0) Thread.yield();
+            else Thread.onSpinWait();
+        }
+    }
+
+    private static void unlock(ByteBuffer c, int b) {
+        INTS.setRelease(c, b + LOCK, 0);
+    }
+
+    long balance(int record) {
+        return (long) LONGS.getVolatile(chunkOf(record), base(record) + BALANCE);
+    }
+
+    void deposit(int record, long amountMinor) {
+        LONGS.getAndAdd(chunkOf(record), base(record) + BALANCE, amountMinor);
+    }
+
+    boolean withdraw(int record, long amountMinor) {
+        ByteBuffer c = chunkOf(record);
+        int off = base(record) + BALANCE;
+        long current;
+        do {
+            current = (long) LONGS.getVolatile(c, off);
+            if (amountMinor > current) return false;
+        } while (!LONGS.weakCompareAndSet(c, off, current, current - amountMinor));
+        return true;
+    }
+
+    String name(int record) {
+        return arena.getString((long) LONGS.getAcquire(chunkOf(record), base(record) + NAME));
+    }
+
+    String pinHash(int record) {
+        return arena.getString((long) LONGS.getAcquire(chunkOf(record), base(record) + PIN_HASH));
+    }
+
+    void setPinHash(int record, String pinHash) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        LONGS.setRelease(c, b + PIN_HASH, arena.replaceString((long) LONGS.getAcquire(c, b + PIN_HASH), pinHash));
+    }
+
+    String role(int record) {
+        return ROLES.get(chunkOf(record).get(base(record) + ROLE));
+    }
+
+    LocalDateTime createdAt(int record) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        return LocalDateTime.ofEpochSecond(c.getLong(b + CREATED_SECONDS), c.getInt(b + CREATED_NANOS), ZoneOffset.UTC);
+    }
+
+    void restore(int record, long balanceMinor, String pinHash) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        LONGS.setRelease(c, b + PIN_HASH, arena.replaceString((long) LONGS.getAcquire(c, b + PIN_HASH), pinHash));
+        LONGS.setVolatile(c, b + BALANCE, balanceMinor);
+    }
+
+    int txCount(int record) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            return c.getInt(b + TX_COUNT);
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    long[] history(int record, int from) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            int count = c.getInt(b + TX_COUNT);
+            long[] ids = new long[Math.max(0, count - from)];
+            long block = c.getLong(b + HISTORY);
+            ByteBuffer h = block == 0 ? null : arena.chunk(block);
+            int off = OffHeapArena.offset(block);
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = h.getLong(off + (from + i) * 8);
+            }
+            return ids;
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    void addTransaction(int record, long txId) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            int count = c.getInt(b + TX_COUNT);
+            int capacity = c.getInt(b + HISTORY_CAPACITY);
+            long block = c.getLong(b + HISTORY);
+            if (count == capacity) {
+                int grown = Math.max(MIN_HISTORY, capacity * 2);
+                long moved = arena.allocate(grown * 8L);
+                if (count > 0) {
+                    arena.chunk(moved).put(OffHeapArena.offset(moved), arena.chunk(block), OffHeapArena.offset(block), count * 8);
+                }
+                if (block != 0) arena.free(block, capacity * 8L);
+                block = moved;
+                c.putLong(b + HISTORY, block);
+                c.putInt(b + HISTORY_CAPACITY, grown);
+            }
+            arena.chunk(block).putLong(OffHeapArena.offset(block) + count * 8, txId);
+            c.putInt(b + TX_COUNT, count + 1);
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    private void setHistory(ByteBuffer c, int b, long[] ids) {
+        long old = c.getLong(b + HISTORY);
+        if (old != 0) arena.free(old, c.getInt(b + HISTORY_CAPACITY) * 8L);
+        int capacity = Math.max(MIN_HISTORY, Integer.highestOneBit(Math.max(1, ids.length - 1)) << 1);
+        long block = arena.allocate(capacity * 8L);
+        ByteBuffer h = arena.chunk(block);
+        int off = OffHeapArena.offset(block);
+        for (int i = 0; i < ids.length; i++) {
+            h.putLong(off + i * 8, ids[i]);
+        }
+        c.putLong(b + HISTORY, block);
+        c.putInt(b + HISTORY_CAPACITY, capacity);
+        c.putInt(b + TX_COUNT, ids.length);
+    }
+
+    void relinkHistory(int record, List<Transaction> history) {
+        long[] ids = new long[history.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = history.get(i).getId();
+        }
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            setHistory(c, b, ids);
+            c.put(b + FLAGS, (byte) (c.get(b + FLAGS) & ~LEGACY_HISTORY));
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    boolean hasLegacyHistory(int record) {
+        return (chunkOf(record).get(base(record) + FLAGS) & LEGACY_HISTORY) != 0;
+    }
+
+    void markLegacyHistory(int record) {
+        ByteBuffer c = chunkOf(record);
+        int b = base(record);
+        lock(c, b);
+        try {
+            c.put(b + FLAGS, (byte) (c.get(b + FLAGS) | LEGACY_HISTORY));
+        } finally {
+            unlock(c, b);
+        }
+    }
+
+    /** Transaction count already written to the shard's journal, or -1 if the account never was. */
+    int journaled(int record) {
+        return (int) INTS.getAcquire(chunkOf(record), base(record) + JOURNALED);
+    }
+
+    void setJournaled(int record, int txCount) {
+        INTS.setRelease(chunkOf(record), base(record) + JOURNALED, txCount);
+    }
+
+    /** Records every account as journaled up to its current history, after a load. */
+    void markJournaled() {
+        int n = size;
+        for (int record = 0; record < n; record++) {
+            setJournaled(record, txCount(record));
+        }
+    }
+
+    /**
+     * An account in the table, as handed to the service. It holds no state of its own: every
+     * read and update goes to the record, so any number of Rows for one account agree.
+     * Serializing a Row writes a detached User copy, since the record cannot leave the table.
+     */
+    static final class Row extends User {
+        private static final long serialVersionUID = 1L;
+
+        private final transient AccountTable table;
+        private final int record;
+        private final String phone;
+
+        private Row(AccountTable table, int record, String phone) {
+            this.table = table;
+            this.record = record;
+            this.phone = phone;
+        }
+
+        int record() {
+            return record;
+        }
+
+        private Object writeReplace() {
+            return User.restore(phone, getName(), getPinHash(), getBalanceMinor(), getRole(), getCreatedAt(),
+                    getTransactions());
+        }
+
+        AccountTable table() {
+            return table;
+        }
+
+        @Override
+        public String getPhoneNumber() {
+            return phone;
+        }
+
+        @Override
+        public String getName() {
+            return table.name(record);
+        }
+
+        @Override
+        public String getPinHash() {
+            return table.pinHash(record);
+        }
+
+        @Override
+        public void setPinHash(String pinHash) {
+            table.setPinHash(record, pinHash);
+        }
+
+        @Override
+        public double getBalance() {
+            return Money.toMajor(table.balance(record));
+        }
+
+        @Override
+        public long getBalanceMinor() {
+            return table.balance(record);
+        }
+
+        @Override
+        public String getRole() {
+            return table.role(record);
+        }
+
+        @Override
+        public void deposit(long amountMinor) {
+            requirePositive(amountMinor);
+            table.deposit(record, amountMinor);
+        }
+
+        @Override
+        public boolean withdraw(long amountMinor) {
+            requirePositive(amountMinor);
+            return table.withdraw(record, amountMinor);
+        }
+
+        @Override
+        public void restore(long balanceMinor, String pinHash) {
+            table.restore(record, balanceMinor, pinHash);
+        }
+
+        @Override
+        public LocalDateTime getCreatedAt() {
+            return table.createdAt(record);
+        }
+
+        @Override
+        public long[] getTransactions() {
+            return table.history(record, 0);
+        }
+
+        @Override
+        public int getTransactionCount() {
+            return table.txCount(record);
+        }
+
+        @Override
+        public long[] getTransactionsSince(int index) {
+            return table.history(record, index);
+        }
+
+        @Override
+        public void addTransaction(long txId) {
+            table.addTransaction(record, txId);
+        }
+
+        @Override
+        public boolean hasLegacyHistory() {
+            return table.hasLegacyHistory(record);
+        }
+
+        @Override
+        public void markLegacyHistory() {
+            table.markLegacyHistory(record);
+        }
+
+        @Override
+        public void relinkHistory(List<Transaction> history) {
+            table.relinkHistory(record, history);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Row r && r.table == table && r.record == record;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(table) * 31 + record;
+        }
+    }
+}
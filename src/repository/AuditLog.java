@@ -0,0 +1,97 @@
+package src.repository;
+
+import src.event.EventConsumer;
+import src.model.Transaction;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only audit trail of committed transactions, fed by the event pipeline. There is one
+ * sealed record file per day (audit-2024-05-01.dat), each batch is forced to disk before the
+ * pipeline moves on, and nothing is ever rewritten, so a day's file is complete once the day is over.
+ * A batch that failed is retried by the pipeline; the days of it already committed are skipped
+ * and the file that failed is reopened, which drops whatever the failed write left behind.
+ */
+public class AuditLog implements EventConsumer, Closeable {
+    private final String prefix;
+    private final SecretKey key;
+    private RecordLog log;
+    private LocalDate day;
+    /** A batch that failed after committing its first unfinishedDone transactions. */
+    private List<Transaction> unfinished;
+    private int unfinishedDone;
+
+    /** prefix "audit" writes audit-<date>.dat in the working directory; "data/audit" writes them in data. */
+    public AuditLog(String prefix, SecretKey key) {
+        this.prefix = prefix;
+        this.key = key;
+    }
+
+    @Override
+    public void onBatch(List<Transaction> batch) throws Exception {
+        int done = batch == unfinished ? unfinishedDone : 0;
+        unfinished = batch;
+        unfinishedDone = done;
+        List<byte[]> frames = new ArrayList<>(batch.size());
+        try {
+            for (int i = done; i < batch.size(); i++) {
+                Transaction tx = batch.get(i);
+                LocalDate txDay = tx.getTimestamp().toLocalDate();
+                if (!txDay.equals(day)) {
+                    commit(frames);
+                    unfinishedDone = i;
+                    roll(txDay);
+                }
+                frames.add(log.seal(RecordCodec.encodeTransaction(tx)));
+            }
+            commit(frames);
+        } catch (Exception e) {
+            close();
+            log = null;
+            day = null;
+            throw e;
+        }
+        unfinished = null;
+    }
+
+    private void commit(List<byte[]> frames) throws IOException {
+        if (frames.isEmpty()) return;
+        log.commit(frames);
+        frames.clear();
+    }
+
+    /** Switches to the given day's file, keeping what an earlier run appended to it. */
+    private void roll(LocalDate next) throws Exception {
+        if (log != null) log.close();
+        log = new RecordLog(file(prefix, next), key);
+        log.open(plain -> null);
+        day = next;
+    }
+
+    private static File file(String prefix, LocalDate day) {
+        return new File(prefix + "-" + day + ".dat");
+    }
+
+    /** Reads one day's audit trail back, in commit order. */
+    public static List<Transaction> read(String prefix, LocalDate day, SecretKey key) throws Exception {
+        File f = file(prefix, day);
+        if (!f.exists()) return List.of();
+        return RecordLog.readAll(f, key, RecordCodec::decodeTransaction);
+    }
+
+    @Override
+    public void close() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.out.println("[AuditLog] Close failed: " + e.getMessage());
+        }
+    }
+}
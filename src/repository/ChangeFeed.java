@@ -0,0 +1,107 @@
+package src.repository;
+
+import src.model.Transaction;
+import src.model.User;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Committed account and transaction changes in commit order, numbered from 1, for shipping
+ * to read replicas. Each change is the full binary record of the account or transaction, so
+ * applying one twice, or an older one after a newer one of another account, is harmless.
+ *
+ * Only the last {@code capacity} changes are kept; a reader that falls further behind gets
+ * null from after() and has to start over from a full copy. The epoch is random per process,
+ * so readers notice when numbering restarted.
+ */
+public class ChangeFeed {
+    private final long epoch = new SecureRandom().nextLong();
+    private final Change[] ring;
+    private long lastSeq;
+
+    public ChangeFeed(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.ring = new Change[capacity];
+    }
+
+    public long epoch() {
+        return epoch;
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    void publishUsers(Collection<User> users) {
+        List<byte[]> records = new ArrayList<>(users.size());
+        for (User u : users) {
+            records.add(RecordCodec.encodeUser(u));
+        }
+        append(records);
+    }
+
+    void publishTransactions(List<Transaction> txs) {
+        List<byte[]> records = new ArrayList<>(txs.size());
+        for (Transaction tx : txs) {
+            records.add(RecordCodec.encodeTransaction(tx));
+        }
+        append(records);
+    }
+
+    private synchronized void append(List<byte[]> records) {
+        long now = System.currentTimeMillis();
+        for (byte[] record : records) {
+            lastSeq++;
+            ring[(int) (lastSeq % ring.length)] = new Change(lastSeq, now, record);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Up to max changes numbered after afterSeq, waiting up to waitMillis for the first one;
+     * empty if none arrived in time, null if some were already overwritten or afterSeq is
+     * from the future.
+     */
+    public synchronized List<Change> after(long afterSeq, int max, long waitMillis) throws InterruptedException {
+        if (afterSeq > lastSeq) return null;
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (lastSeq == afterSeq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return List.of();
+            wait(remaining);
+        }
+        if (lastSeq - afterSeq > ring.length) return null;
+        int n = (int) Math.min(max, lastSeq - afterSeq);
+        List<Change> out = new ArrayList<>(n);
+        for (long seq = afterSeq + 1; seq <= afterSeq + n; seq++) {
+            out.add(ring[(int) (seq % ring.length)]);
+        }
+        return out;
+    }
+
+    public static byte[] encode(User u) {
+        return RecordCodec.encodeUser(u);
+    }
+
+    public static byte[] encode(Transaction tx) {
+        return RecordCodec.encodeTransaction(tx);
+    }
+
+    /** Decodes a change record back into a User or a Transaction. */
+    public static Object decode(byte[] record) throws IOException {
+        if (record.length > 0 && record[0] == RecordCodec.TRANSACTION) {
+            return RecordCodec.decodeTransaction(record);
+        }
+        Object decoded = RecordCodec.decodeUserRecord(record);
+        if (!(decoded instanceof User)) throw new IOException("Not a change record");
+        return decoded;
+    }
+
+    /** One committed change; committedAtMillis is the primary's wall clock when it became durable. */
+    public record Change(long seq, long committedAtMillis, byte[] record) {
+    }
+}
@@ -0,0 +1,313 @@
+package src.repository;
+
+import src.metrics.Metrics;
+import src.model.Transaction;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cold tier of the transaction history: immutable segments of consecutive log positions that
+ * have aged out of the hot window. A segment is two files in the archive directory, each
+ * deflated and then encrypted: seg-<first>.idx maps every account in it to its positions, and
+ * seg-<first>.dat holds the records. Only the manifest, one position and time range per
+ * segment, is read at startup; segment files are read when a query reaches back that far,
+ * and the most recently used ones stay cached.
+ */
+final class ColdArchive {
+    private static final int FORMAT_VERSION = 1;
+    private static final int CACHED_SEGMENTS = Math.max(1, Integer.getInteger("javapay.tx.coldCacheSegments", 2));
+    private static final LongAdder SEGMENT_READS = Metrics.counter("tx.coldSegmentReads");
+
+    private final File dir;
+    private final SecretKey key;
+    private volatile List<Segment> segments = List.of();
+    private final Map<Integer, Map<String, int[]>> indexes = lru();
+    private final Map<Integer, List<Transaction>> records = lru();
+
+    /** Positions [first, first + count) with their largest id and oldest/newest timestamps. */
+    record Segment(int first, int count, long maxId, long oldestMillis, long newestMillis) {
+        int end() {
+            return first + count;
+        }
+    }
+
+    /** An empty archive; open() reads an existing one. */
+    ColdArchive(File dir, SecretKey key) {
+        this.dir = dir;
+        this.key = key;
+    }
+
+    /** Reads the manifest in dir, if there is one; the segments themselves stay on disk. */
+    static ColdArchive open(File dir, SecretKey key) throws Exception {
+        ColdArchive archive = new ColdArchive(dir, key);
+        File manifest = new File(dir, "manifest");
+        if (!manifest.exists()) return archive;
+        List<Segment> segments = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(EncryptedFiles.open(manifest, key)))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported archive manifest version");
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                segments.add(new Segment(in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong()));
+            }
+        }
+        archive.segments = List.copyOf(segments);
+        return archive;
+    }
+
+    /** First position that is not archived; everything before it is. */
+    int end() {
+        List<Segment> s = segments;
+        return s.isEmpty() ? 0 : s.get(s.size() - 1).end();
+    }
+
+    long maxId() {
+        long max = 0;
+        for (Segment s : segments) {
+            max = Math.max(max, s.maxId());
+        }
+        return max;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Writes txs, which must start at end(), as a new segment. The manifest is rewritten last,
+     * so a crash before it leaves only stray files that the next seal overwrites.
+     */
+    synchronized void seal(List<Transaction> txs) throws Exception {
+        int first = end();
+        Map<String, int[]> index = accountsOf(first, txs);
+        long maxId = 0, oldest = Long.MAX_VALUE, newest = Long.MIN_VALUE;
+        for (Transaction tx : txs) {
+            maxId = Math.max(maxId, tx.getId());
+            oldest = Math.min(oldest, tx.getEpochMillis());
+            newest = Math.max(newest, tx.getEpochMillis());
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+        EncryptedFiles.write(file(first, ".dat"), key, out -> {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+            DataOutputStream data = new DataOutputStream(deflated);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(txs.size());
+            for (Transaction tx : txs) {
+                byte[] record = RecordCodec.encodeTransaction(tx);
+                data.writeInt(record.length);
+                data.write(record);
+            }
+            data.flush();
+            deflated.finish();
+        });
+        EncryptedFiles.write(file(first, ".idx"), key, out -> {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+            DataOutputStream data = new DataOutputStream(deflated);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(index.size());
+            for (Map.Entry<String, int[]> e : index.entrySet()) {
+                data.writeUTF(e.getKey());
+                data.writeInt(e.getValue().length);
+                for (int pos : e.getValue()) {
+                    data.writeInt(pos - first);
+                }
+            }
+            data.flush();
+            deflated.finish();
+        });
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(new Segment(first, txs.size(), maxId, oldest, newest));
+        writeManifest(next);
+        segments = List.copyOf(next);
+    }
+
+    private void writeManifest(List<Segment> next) throws Exception {
+        EncryptedFiles.write(new File(dir, "manifest"), key, out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(next.size());
+            for (Segment s : next) {
+                data.writeInt(s.first());
+                data.writeInt(s.count());
+                data.writeLong(s.maxId());
+                data.writeLong(s.oldestMillis());
+                data.writeLong(s.newestMillis());
+            }
+            data.flush();
+        });
+    }
+
+    /** Each account's positions within txs, which start at position first, in ascending order. */
+    private static Map<String, int[]> accountsOf(int first, List<Transaction> txs) {
+        Map<String, int[]> byAccount = new HashMap<>();
+        Map<String, Integer> filled = new HashMap<>();
+        for (Transaction tx : txs) {
+            for (String phone : parties(tx)) {
+                filled.merge(phone, 1, Integer::sum);
+            }
+        }
+        filled.forEach((phone, n) -> byAccount.put(phone, new int[n]));
+        filled.replaceAll((phone, n) -> 0);
+        for (int i = 0; i < txs.size(); i++) {
+            for (String phone : parties(txs.get(i))) {
+                byAccount.get(phone)[filled.merge(phone, 1, Integer::sum) - 1] = first + i;
+            }
+        }
+        return byAccount;
+    }
+
+    private static List<String> parties(Transaction tx) {
+        if (tx.getFrom() == null) return tx.getTo() == null ? List.of() : List.of(tx.getTo());
+        if (tx.getTo() == null || tx.getTo().equals(tx.getFrom())) return List.of(tx.getFrom());
+        return List.of(tx.getFrom(), tx.getTo());
+    }
+
+    /** The archived transaction at pos, or null if no segment holds it. */
+    Transaction get(int pos) throws Exception {
+        Segment s = segmentAt(pos);
+        return s == null ? null : records(s).get(pos - s.first());
+    }
+
+    /**
+     * Same contract as AccountIndex.page, limited to archived positions below the given one.
+     * Segments are visited from the cursor outwards, so a page only reads the segments it spans.
+     */
+    int[] page(String phone, int from, int limit, boolean descending, int below) throws Exception {
+        List<Segment> segs = segments;
+        int[] out = new int[Math.min(Math.max(0, limit), 64)];
+        int n = 0;
+        if (descending) {
+            int upper = from < 0 ? below : Math.min(from, below);
+            for (int i = indexOf(segs, upper - 1); i >= 0 && n < limit; i--) {
+                int[] ps = index(segs.get(i)).get(phone);
+                if (ps == null) continue;
+                for (int k = lowerBound(ps, upper) - 1; k >= 0 && n < limit; k--) {
+                    if (n == out.length) out = Arrays.copyOf(out, grow(n, limit));
+                    out[n++] = ps[k];
+                }
+            }
+        } else {
+            int lower = from + 1;
+            if (lower >= below) return new int[0];
+            for (int i = Math.max(0, indexOf(segs, lower)); i < segs.size() && segs.get(i).first() < below && n < limit; i++) {
+                int[] ps = index(segs.get(i)).get(phone);
+                if (ps == null) continue;
+                for (int k = lowerBound(ps, lower); k < ps.length && ps[k] < below && n < limit; k++) {
+                    if (n == out.length) out = Arrays.copyOf(out, grow(n, limit));
+                    out[n++] = ps[k];
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int grow(int size, int limit) {
+        return (int) Math.min(limit, Math.max(16L, size * 2L));
+    }
+
+    /** Every archived transaction below the given position, oldest first. */
+    List<Transaction> all(int below) throws Exception {
+        List<Transaction> result = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.first() >= below) break;
+            List<Transaction> txs = records(s);
+            result.addAll(txs.subList(0, Math.min(txs.size(), below - s.first())));
+        }
+        return result;
+    }
+
+    private Segment segmentAt(int pos) {
+        List<Segment> segs = segments;
+        int i = indexOf(segs, pos);
+        return i < 0 || pos >= segs.get(i).end() ? null : segs.get(i);
+    }
+
+    /** Index of the last segment starting at or before pos, or -1. */
+    private static int indexOf(List<Segment> segs, int pos) {
+        int lo = 0, hi = segs.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segs.get(mid).first() <= pos) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    private static int lowerBound(int[] ps, int pos) {
+        int lo = 0, hi = ps.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ps[mid] < pos) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private synchronized Map<String, int[]> index(Segment s) throws Exception {
+        Map<String, int[]> cached = indexes.get(s.first());
+        if (cached != null) return cached;
+        SEGMENT_READS.increment();
+        Map<String, int[]> index = new HashMap<>();
+        try (DataInputStream in = inflate(file(s.first(), ".idx"))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported archive index version");
+            int accounts = in.readInt();
+            for (int a = 0; a < accounts; a++) {
+                String phone = in.readUTF();
+                int[] positions = new int[in.readInt()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = s.first() + in.readInt();
+                }
+                index.put(phone, positions);
+            }
+        }
+        indexes.put(s.first(), index);
+        return index;
+    }
+
+    private synchronized List<Transaction> records(Segment s) throws Exception {
+        List<Transaction> cached = records.get(s.first());
+        if (cached != null) return cached;
+        SEGMENT_READS.increment();
+        List<Transaction> txs;
+        try (DataInputStream in = inflate(file(s.first(), ".dat"))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported archive segment version");
+            int n = in.readInt();
+            if (n != s.count()) throw new IOException("Archive segment " + s.first() + " holds " + n + " records, expected " + s.count());
+            txs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                txs.add(RecordCodec.decodeTransaction(record));
+            }
+        }
+        txs = List.copyOf(txs);
+        records.put(s.first(), txs);
+        return txs;
+    }
+
+    private DataInputStream inflate(File file) throws Exception {
+        return new DataInputStream(new BufferedInputStream(new InflaterInputStream(EncryptedFiles.open(file, key))));
+    }
+
+    private File file(int first, String suffix) {
+        return new File(dir, String.format("seg-%010d%s", first, suffix));
+    }
+
+    private static <V> Map<Integer, V> lru() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+                return size() > CACHED_SEGMENTS;
+            }
+        };
+    }
+}
@@ -0,0 +1,122 @@
+package src.repository;
+
+import src.util.Pool;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Position-addressable encryption for mapped column files: AES in counter mode where the
+ * counter block is (store nonce, write generation, column id, block number). Any byte range
+ * can be encrypted or decrypted on its own, so a single value is read without touching its
+ * neighbours. The generation changes every time the store is opened for writing, so a byte
+ * range rewritten after a crash never reuses the key stream it had before.
+ *
+ * Counter mode gives confidentiality only; tag() authenticates each row with an HMAC under a
+ * key derived from the store key.
+ */
+final class ColumnCipher {
+    static final int TAG_BYTES = 16;
+    private static final int KEY_CHECK_COLUMN = 0xFFFF;
+
+    private final int nonce;
+    private final Pool<Cipher> aes;
+    private final Pool<Mac> hmac;
+
+    ColumnCipher(SecretKey key, int nonce) {
+        this.nonce = nonce;
+        this.aes = new Pool<>(() -> {
+            try {
+                Cipher c = Cipher.getInstance("AES/ECB/NoPadding");
+                c.init(Cipher.ENCRYPT_MODE, key);
+                return c;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES not available", e);
+            }
+        });
+        SecretKeySpec macKey = new SecretKeySpec(deriveMacKey(key), "HmacSHA256");
+        this.hmac = new Pool<>(() -> {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(macKey);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC not available", e);
+            }
+        });
+    }
+
+    private static byte[] deriveMacKey(SecretKey key) {
+        try {
+            Mac m = Mac.getInstance("HmacSHA256");
+            m.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            return m.doFinal("javapay column mac".getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC not available", e);
+        }
+    }
+
+    /**
+     * XORs buf[off, off + len) with the key stream of the column, for bytes written in the
+     * given generation, starting at byte offset.
+     */
+    void apply(int column, int generation, long offset, byte[] buf, int off, int len) {
+        byte[] counter = new byte[16];
+        byte[] stream = new byte[16];
+        Cipher c = aes.take();
+        try {
+            long block = -1;
+            for (int i = 0; i < len; i++) {
+                long pos = offset + i;
+                if ((pos >>> 4) != block) {
+                    block = pos >>> 4;
+                    keyStream(c, column, generation, block, counter, stream);
+                }
+                buf[off + i] ^= stream[(int) (pos & 15)];
+            }
+        } finally {
+            aes.give(c);
+        }
+    }
+
+    /** Truncated HMAC binding a row's encoded contents to its position and generation. */
+    byte[] tag(long row, int generation, byte[] record) {
+        Mac m = hmac.take();
+        try {
+            m.update(ByteBuffer.allocate(12).putLong(row).putInt(generation).array());
+            return Arrays.copyOf(m.doFinal(record), TAG_BYTES);
+        } finally {
+            hmac.give(m);
+        }
+    }
+
+    /** Value stored with the store so a wrong key is detected before any column is read. */
+    long keyCheck() {
+        byte[] stream = new byte[16];
+        Cipher c = aes.take();
+        try {
+            keyStream(c, KEY_CHECK_COLUMN, 0, 0, new byte[16], stream);
+        } finally {
+            aes.give(c);
+        }
+        return ByteBuffer.wrap(stream).getLong();
+    }
+
+    private void keyStream(Cipher c, int column, int generation, long block, byte[] counter, byte[] stream) {
+        ByteBuffer.wrap(counter)
+                .putInt(nonce).putInt(generation)
+                .putShort((short) column)
+                .putShort((short) (block >>> 32)).putInt((int) block);
+        try {
+            c.doFinal(counter, 0, 16, stream, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Column encryption failed", e);
+        }
+    }
+}
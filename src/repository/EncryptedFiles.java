@@ -0,0 +1,55 @@
+package src.repository;
+
+import src.util.ChunkedCipherOutputStream;
+import src.util.CryptoUtil;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Whole-file encrypted snapshots (account snapshot, history index) in the chunked streaming
+ * format, so neither the plaintext nor the ciphertext of a file is ever held in memory whole.
+ * Files written before that format, one sealed buffer each, are still readable.
+ */
+final class EncryptedFiles {
+    interface Body {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    private EncryptedFiles() {
+    }
+
+    /** Streams body into a temporary file, syncs it and atomically moves it over file. */
+    static void write(File file, SecretKey key, Body body) throws Exception {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChunkedCipherOutputStream enc = CryptoUtil.encryptingStream(Channels.newOutputStream(channel), key);
+            body.writeTo(enc);
+            enc.finish();
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Opens a file for decrypted reading; the caller closes the stream. */
+    static InputStream open(File file, SecretKey key) throws Exception {
+        if (CryptoUtil.isChunked(file)) {
+            return CryptoUtil.decryptingStream(Channels.newInputStream(FileChannel.open(file.toPath())), key);
+        }
+        byte[] sealed;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            sealed = fis.readAllBytes();
+        }
+        return new ByteArrayInputStream(CryptoUtil.decrypt(sealed, key));
+    }
+}
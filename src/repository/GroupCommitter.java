@@ -0,0 +1,150 @@
+package src.repository;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Makes records durable in batches: callers hand in sealed frames, a single flusher thread
+ * gathers whatever arrives within the commit window (up to maxBatch submissions), hands
+ * them to the sink in one call and the sink forces its storage once. Each caller's future
+ * completes only after the batch holding its submission is on disk.
+ */
+class GroupCommitter implements Closeable {
+    /** Durable destination of a batch; must write the frames (if any) and force them to disk. */
+    interface Sink {
+        void commit(List<byte[]> frames) throws Exception;
+    }
+
+    static final long DEFAULT_WINDOW_MICROS = Long.getLong("javapay.commit.windowMicros", 200);
+    static final int DEFAULT_MAX_BATCH = Integer.getInteger("javapay.commit.maxBatch", 256);
+
+    private static final Pending STOP = new Pending(null, null);
+
+    private final Sink sink;
+    private final LatencyHistogram commitTime;
+    private final LongAdder bytesWritten;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private boolean closed;
+
+    GroupCommitter(Sink sink, String name, long windowMicros, int maxBatch) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be positive");
+        this.sink = sink;
+        this.commitTime = Metrics.timer(name + ".commit");
+        this.bytesWritten = Metrics.counter(name + ".bytes");
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatch = maxBatch;
+        this.flusher = new Thread(this::run, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Queues sealed frames as one unit; they always land in the same batch. */
+    synchronized CompletableFuture<Void> submit(List<byte[]> frames) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IllegalStateException("Commit log is closed"));
+        } else {
+            queue.add(new Pending(frames, done));
+        }
+        return done;
+    }
+
+    /**
+     * Fails every submission still waiting for a batch. For a sink that rolls back storage
+     * those submissions already wrote to; it calls this from the flusher thread, holding
+     * whatever lock its submitters take, so nothing written after the rollback is failed.
+     */
+    synchronized void failQueued(Exception cause) {
+        List<Pending> waiting = new ArrayList<>();
+        queue.drainTo(waiting);
+        for (Pending p : waiting) {
+            if (p == STOP) {
+                queue.add(STOP);
+            } else {
+                p.done.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /** Completes once everything submitted before the call is durable. */
+    CompletableFuture<Void> flush() {
+        return submit(List.of());
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                Pending next = queue.take();
+                long deadline = System.nanoTime() + windowNanos;
+                while (next != STOP) {
+                    batch.add(next);
+                    if (batch.size() >= maxBatch) break;
+                    long remaining = deadline - System.nanoTime();
+                    next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                }
+                running = next != STOP;
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        if (batch.isEmpty()) return;
+        List<byte[]> frames = new ArrayList<>();
+        long bytes = 0;
+        for (Pending p : batch) {
+            frames.addAll(p.frames);
+            for (byte[] f : p.frames) {
+                bytes += f.length;
+            }
+        }
+        try {
+            long start = System.nanoTime();
+            sink.commit(frames);
+            commitTime.recordSince(start);
+            bytesWritten.add(bytes);
+            for (Pending p : batch) {
+                p.done.complete(null);
+            }
+        } catch (Exception e) {
+            for (Pending p : batch) {
+                p.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Pending(List<byte[]> frames, CompletableFuture<Void> done) {
+    }
+}
@@ -0,0 +1,587 @@
+package src.repository;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+import src.model.Transaction;
+import src.model.TransactionPage;
+import src.util.AccountKey;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Transaction store that keeps fixed-width columns in memory-mapped files inside one
+ * directory: sequence id, type ordinal, from and to account keys, amount in minor units and
+ * epoch-millis timestamp. Free text (non-default descriptions and account ids that are not
+ * plain digits) lives in a side heap referenced by offset. Rows are decoded into Transaction objects only when a caller asks for them,
+ * so the history itself stays in the OS page cache instead of on the Java heap.
+ *
+ * Every column is encrypted with a ColumnCipher keyed by byte offset and by the generation the
+ * row was written in, which is bumped and made durable each time the store opens, and every
+ * row carries an HMAC tag over its decoded contents that is checked when the row is read. The
+ * meta file records how many rows and heap bytes are durable; anything past that is ignored
+ * on open and overwritten under the new generation. The account index is checkpointed in the
+ * background once it is INDEX_CHECKPOINT_INTERVAL durable rows behind, so reopening after a
+ * crash only re-indexes the rows since the last checkpoint.
+ *
+ * Rows are visible as soon as they are written, before they are durable. If a commit fails,
+ * the store rolls back to the durable rows under a new generation and fails every save still
+ * waiting for a commit; if even that cannot be made durable, it refuses all later saves.
+ */
+public class MappedTransactionStore implements TransactionStore {
+    private static final int MAGIC = 0x4A504D31; // "JPM1"
+    private static final int FORMAT_VERSION = 3;
+    private static final int META_SIZE = 52;
+    private static final int INDEX_CHECKPOINT_INTERVAL = 10_000;
+    private static final int SEGMENT_ROWS = 1 << 18;
+
+    private static final int ID = 0, TYPE = 1, FROM = 2, TO = 3, AMOUNT = 4, TIME = 5, DESC = 6, GEN = 7, TAG = 8;
+    private static final int HEAP_COLUMN = 9;
+    private static final String[] COLUMN_FILES = {"id.col", "type.col", "from.col", "to.col", "amount.col", "time.col", "desc.col",
+            "gen.col", "tag.col"};
+    private static final int[] COLUMN_WIDTHS = {8, 1, 8, 8, 8, 8, 8, 4, ColumnCipher.TAG_BYTES};
+    private static final int ROW_BYTES = Arrays.stream(COLUMN_WIDTHS).sum();
+    private static final LatencyHistogram LOAD_TIME = Metrics.timer("tx.load");
+    private static final LatencyHistogram PERSIST_TIME = Metrics.timer("tx.persist");
+    private static final LongAdder BYTES_WRITTEN = Metrics.counter("tx-mapped-commit.bytes");
+
+    private final File dir;
+    private final SecretKey key;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Column[] columns = new Column[COLUMN_FILES.length];
+    private final GroupCommitter committer;
+    private final ExecutorService indexWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tx-mapped-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean indexCheckpointPending = new AtomicBoolean();
+    private FileChannel meta;
+    private FileChannel heap;
+    private ColumnCipher cipher;
+    private int nonce;
+    private int generation;
+    private AccountIndex index;
+    private volatile long rows;
+    private volatile long heapSize;
+    private long lastId;
+    private long durableRows;
+    private long durableHeap;
+    private long durableLastId;
+    /** Why the store could not roll back after a failed commit; guarded by lock. */
+    private IOException failed;
+    private volatile long indexedOnDisk;
+    private volatile ChangeFeed feed;
+
+    public MappedTransactionStore(String directory, SecretKey key) {
+        this(directory, key, GroupCommitter.DEFAULT_WINDOW_MICROS, GroupCommitter.DEFAULT_MAX_BATCH);
+    }
+
+    public MappedTransactionStore(String directory, SecretKey key, long commitWindowMicros, int maxBatch) {
+        this.dir = new File(directory);
+        this.key = key;
+        load();
+        this.committer = new GroupCommitter(frames -> commit(), "tx-mapped-commit", commitWindowMicros, maxBatch);
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        try {
+            open();
+            LOAD_TIME.recordSince(start);
+        } catch (Exception e) {
+            System.out.println("[MappedTransactionStore] Could not load DB, starting fresh: " + e.getMessage());
+            try {
+                closeFiles();
+                RecordLog.moveAside(dir);
+                open();
+            } catch (Exception ex) {
+                throw new IllegalStateException("Could not create transaction store in " + dir, ex);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        meta = FileChannel.open(new File(dir, "meta").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (meta.size() == 0) {
+            nonce = new SecureRandom().nextInt();
+            cipher = new ColumnCipher(key, nonce);
+            generation = 1;
+            rows = 0;
+            heapSize = 0;
+            lastId = 0;
+        } else {
+            ByteBuffer m = ByteBuffer.allocate(META_SIZE);
+            meta.read(m, 0);
+            m.flip();
+            if (m.getInt() != MAGIC) throw new IOException("Not a transaction store");
+            if (m.getInt() != FORMAT_VERSION) throw new IOException("Unsupported transaction store version");
+            nonce = m.getInt();
+            cipher = new ColumnCipher(key, nonce);
+            if (m.getLong() != cipher.keyCheck()) throw new IOException("Transaction store key check failed");
+            rows = m.getLong();
+            heapSize = m.getLong();
+            lastId = m.getLong();
+            generation = Math.addExact(m.getInt(), 1);
+        }
+        // The new generation is durable before anything is written under it.
+        writeMeta(rows, heapSize, lastId);
+        durableRows = rows;
+        durableHeap = heapSize;
+        durableLastId = lastId;
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = new Column(new File(dir, COLUMN_FILES[c]), COLUMN_WIDTHS[c]);
+        }
+        heap = FileChannel.open(new File(dir, "heap.dat").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (heap.size() > heapSize) heap.truncate(heapSize);
+        loadIndex();
+    }
+
+    /** Reads the index checkpoint and indexes the rows written after it. */
+    private void loadIndex() throws IOException {
+        index = AccountIndex.read(indexFile(), key);
+        if (index.covered() > rows) index = new AccountIndex();
+        indexedOnDisk = index.covered();
+        for (long row = index.covered(); row < rows; row++) {
+            int gen = readGeneration(row);
+            index.add(readAccount(FROM, row, gen), readAccount(TO, row, gen));
+        }
+    }
+
+    private File indexFile() {
+        return new File(dir, "accounts.idx");
+    }
+
+    private void writeMeta(long rowCount, long heapBytes, long idUpTo) throws IOException {
+        ByteBuffer m = ByteBuffer.allocate(META_SIZE);
+        m.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(nonce).putLong(cipher.keyCheck())
+                .putLong(rowCount).putLong(heapBytes).putLong(idUpTo).putInt(generation).flip();
+        meta.write(m, 0);
+        meta.force(false);
+    }
+
+    /**
+     * GroupCommitter sink: forces every row written so far, then publishes the new row count.
+     * When the on-disk index is far enough behind, a snapshot covering exactly those rows is
+     * taken with them and written once the row count is durable.
+     */
+    private void commit() throws IOException {
+        long upTo;
+        long heapUpTo;
+        long idUpTo;
+        AccountIndex.Snapshot snapshot = null;
+        lock.readLock().lock();
+        try {
+            if (failed != null) throw new IOException("Transaction store could not roll back an earlier failed commit", failed);
+            upTo = rows;
+            heapUpTo = heapSize;
+            idUpTo = lastId;
+            if (upTo - indexedOnDisk >= INDEX_CHECKPOINT_INTERVAL && indexCheckpointPending.compareAndSet(false, true)) {
+                snapshot = index.snapshot();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (upTo == durableRows) return;
+        try {
+            for (Column c : columns) {
+                c.force(durableRows, upTo);
+            }
+            heap.force(false);
+            writeMeta(upTo, heapUpTo, idUpTo);
+        } catch (IOException | UncheckedIOException e) {
+            IOException cause = e instanceof UncheckedIOException u ? u.getCause() : (IOException) e;
+            if (snapshot != null) indexCheckpointPending.set(false);
+            rollBack(cause);
+            throw cause;
+        }
+        BYTES_WRITTEN.add((upTo - durableRows) * ROW_BYTES + heapUpTo - durableHeap);
+        durableRows = upTo;
+        durableHeap = heapUpTo;
+        durableLastId = idUpTo;
+        if (snapshot != null) {
+            AccountIndex.Snapshot durable = snapshot;
+            indexWriter.execute(() -> checkpointIndex(durable));
+        }
+    }
+
+    /**
+     * Drops the rows written since the last durable commit, fails the saves still queued for
+     * them and moves to a new generation, so the rows written next never reuse a key stream.
+     */
+    private void rollBack(IOException cause) {
+        lock.writeLock().lock();
+        try {
+            committer.failQueued(cause);
+            rows = durableRows;
+            heapSize = durableHeap;
+            lastId = durableLastId;
+            try {
+                generation = Math.addExact(generation, 1);
+                writeMeta(durableRows, durableHeap, durableLastId);
+                loadIndex();
+            } catch (IOException | ArithmeticException e) {
+                failed = e instanceof IOException io ? io : new IOException(e);
+                System.out.println("[MappedTransactionStore] Rollback failed, refusing further saves: " + e.getMessage());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkpointIndex(AccountIndex.Snapshot snapshot) {
+        try {
+            AccountIndex.write(indexFile(), key, snapshot);
+            indexedOnDisk = snapshot.covered();
+        } catch (Exception e) {
+            System.out.println("[MappedTransactionStore] Index checkpoint failed: " + e.getMessage());
+        } finally {
+            indexCheckpointPending.set(false);
+        }
+    }
+
+    @Override
+    public void save(Transaction tx) {
+        persist(List.of(tx), true);
+    }
+
+    @Override
+    public void saveAll(List<Transaction> txs) {
+        persist(txs, true);
+    }
+
+    @Override
+    public void restoreAll(List<Transaction> txs) {
+        persist(txs, false);
+    }
+
+    private void persist(List<Transaction> txs, boolean assignIds) {
+        if (txs.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<Void> durable;
+            lock.writeLock().lock();
+            try {
+                if (failed != null) throw new IOException("Transaction store could not roll back an earlier failed commit", failed);
+                try {
+                    for (Transaction tx : txs) {
+                        if (assignIds) tx.assignId(lastId + 1);
+                        append(tx);
+                    }
+                } catch (IOException e) {
+                    // Part of the batch may be written; it must not ride along with a later commit.
+                    rollBack(e);
+                    throw e;
+                }
+                durable = committer.flush();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            durable.join();
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            System.out.println("[MappedTransactionStore] Persist failed: " + cause.getMessage());
+            throw new PersistenceException("Transactions were not saved", cause);
+        }
+        PERSIST_TIME.recordSince(start);
+        ChangeFeed f = feed;
+        if (f != null) f.publishTransactions(txs);
+    }
+
+    @Override
+    public void publishTo(ChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    /** Copies another store's history, ids included, into this one with a single commit. */
+    public void importFrom(TransactionStore source) {
+        List<Transaction> all = source.findAll();
+        try {
+            lock.writeLock().lock();
+            try {
+                for (Transaction tx : all) {
+                    append(tx);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            committer.flush().join();
+        } catch (Exception e) {
+            System.out.println("[MappedTransactionStore] Import failed: " + e.getMessage());
+        }
+    }
+
+    public boolean isEmpty() {
+        return rows == 0;
+    }
+
+    private void append(Transaction tx) throws IOException {
+        long row = rows;
+        writeLong(ID, row, tx.getId());
+        write(TYPE, row, new byte[]{(byte) tx.getType().ordinal()});
+        writeLong(FROM, row, accountKey(tx.getFrom()));
+        writeLong(TO, row, accountKey(tx.getTo()));
+        writeLong(AMOUNT, row, tx.getAmountMinor());
+        writeLong(TIME, row, tx.getEpochMillis());
+        writeLong(DESC, row, tx.hasDefaultDescription() ? -1 : appendHeap(tx.getDescription()));
+        columns[GEN].put(row, ByteBuffer.allocate(4).putInt(generation).array());
+        columns[TAG].put(row, cipher.tag(row, generation, RecordCodec.encodeTransaction(tx)));
+        index.add(tx.getFrom(), tx.getTo());
+        lastId = Math.max(lastId, tx.getId());
+        rows = row + 1;
+    }
+
+    /** 0 for the system side, a packed key for digit-only ids, otherwise -(heap offset + 1). */
+    private long accountKey(String account) throws IOException {
+        if (account == null) return 0;
+        long packed = AccountKey.pack(account);
+        return packed != AccountKey.NOT_PACKABLE ? packed : -(appendHeap(account) + 1);
+    }
+
+    private String readAccount(int column, long row, int gen) throws IOException {
+        long k = readLong(column, row, gen);
+        if (k == 0) return null;
+        return k > 0 ? AccountKey.unpack(k) : readHeap(-k - 1, gen);
+    }
+
+    private long appendHeap(String s) throws IOException {
+        byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = ByteBuffer.allocate(4 + utf.length).putInt(utf.length).put(utf).array();
+        long offset = heapSize;
+        cipher.apply(HEAP_COLUMN, generation, offset, entry, 0, entry.length);
+        ByteBuffer buf = ByteBuffer.wrap(entry);
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += heap.write(buf, pos);
+        }
+        heapSize = pos;
+        return offset;
+    }
+
+    /** Reads a heap entry written in the same generation as the row referring to it. */
+    private String readHeap(long offset, int gen) throws IOException {
+        if (offset < 0 || offset + 4 > heapSize) throw new IOException("Heap offset " + offset + " out of range");
+        int len = ByteBuffer.wrap(readHeapBytes(offset, 4, gen)).getInt();
+        if (len < 0 || offset + 4 + len > heapSize) throw new IOException("Heap entry at " + offset + " out of range");
+        return new String(readHeapBytes(offset + 4, len, gen), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readHeapBytes(long offset, int n, int gen) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while (buf.hasRemaining()) {
+            if (heap.read(buf, offset + buf.position()) < 0) throw new IOException("Heap truncated");
+        }
+        byte[] out = buf.array();
+        cipher.apply(HEAP_COLUMN, gen, offset, out, 0, n);
+        return out;
+    }
+
+    private void write(int column, long row, byte[] value) throws IOException {
+        Column c = columns[column];
+        cipher.apply(column, generation, row * c.width, value, 0, value.length);
+        c.put(row, value);
+    }
+
+    private void writeLong(int column, long row, long value) throws IOException {
+        write(column, row, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    private byte[] read(int column, long row, int gen) throws IOException {
+        Column c = columns[column];
+        byte[] value = c.get(row);
+        cipher.apply(column, gen, row * c.width, value, 0, value.length);
+        return value;
+    }
+
+    private long readLong(int column, long row, int gen) throws IOException {
+        return ByteBuffer.wrap(read(column, row, gen)).getLong();
+    }
+
+    private int readGeneration(long row) throws IOException {
+        return ByteBuffer.wrap(columns[GEN].get(row)).getInt();
+    }
+
+    private Transaction readRow(long row) throws IOException {
+        int gen = readGeneration(row);
+        int type = read(TYPE, row, gen)[0];
+        if (type < 0 || type >= Transaction.Type.values().length) throw new IOException("Row " + row + " failed authentication");
+        long desc = readLong(DESC, row, gen);
+        Transaction tx = Transaction.restore(readLong(ID, row, gen), Transaction.Type.values()[type],
+                readAccount(FROM, row, gen), readAccount(TO, row, gen),
+                readLong(AMOUNT, row, gen), readLong(TIME, row, gen),
+                desc < 0 ? null : readHeap(desc, gen));
+        byte[] expected = cipher.tag(row, gen, RecordCodec.encodeTransaction(tx));
+        if (!MessageDigest.isEqual(expected, columns[TAG].get(row))) throw new IOException("Row " + row + " failed authentication");
+        return tx;
+    }
+
+    private List<Transaction> readRows(int[] positions, int limit) {
+        int n = Math.min(limit, positions.length);
+        List<Transaction> out = new ArrayList<>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                out.add(readRow(positions[i]));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read transaction store", e);
+        }
+        return out;
+    }
+
+    @Override
+    public List<Transaction> findByPhone(String phone) {
+        lock.readLock().lock();
+        try {
+            int[] positions = index.positions(phone);
+            return readRows(positions, positions.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public TransactionPage findByPhone(String phone, String cursor, int pageSize, boolean newestFirst) {
+        lock.readLock().lock();
+        try {
+            int from = PageCursor.decode(cursor, rows);
+            return toPage(index.page(phone, from, pageSize + 1, newestFirst), pageSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Transaction> findAll() {
+        lock.readLock().lock();
+        try {
+            int[] positions = PageCursor.range((int) rows, -1, (int) rows, false);
+            return readRows(positions, positions.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public TransactionPage findAll(String cursor, int pageSize, boolean newestFirst) {
+        lock.readLock().lock();
+        try {
+            int from = PageCursor.decode(cursor, rows);
+            return toPage(PageCursor.range((int) rows, from, pageSize + 1, newestFirst), pageSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private TransactionPage toPage(int[] positions, int pageSize) {
+        List<Transaction> items = readRows(positions, pageSize);
+        String next = positions.length > pageSize ? PageCursor.encode(positions[pageSize - 1]) : null;
+        return new TransactionPage(items, next);
+    }
+
+    @Override
+    public void close() {
+        committer.close();
+        indexWriter.shutdown();
+        try {
+            indexWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lock.readLock().lock();
+            AccountIndex.Snapshot snapshot;
+            try {
+                snapshot = index.snapshot();
+            } finally {
+                lock.readLock().unlock();
+            }
+            AccountIndex.write(indexFile(), key, snapshot);
+        } catch (Exception e) {
+            System.out.println("[MappedTransactionStore] Index checkpoint failed: " + e.getMessage());
+        }
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            System.out.println("[MappedTransactionStore] Close failed: " + e.getMessage());
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        for (Column c : columns) {
+            if (c != null) c.channel.close();
+        }
+        if (heap != null) heap.close();
+        if (meta != null) meta.close();
+    }
+
+    /** One fixed-width column, mapped in segments of SEGMENT_ROWS rows. */
+    private static final class Column {
+        private final FileChannel channel;
+        private final int width;
+        private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+
+        Column(File file, int width) throws IOException {
+            this.width = width;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private MappedByteBuffer segment(long row) throws IOException {
+            int s = (int) (row / SEGMENT_ROWS);
+            if (s < segments.size()) return segments.get(s);
+            synchronized (this) {
+                while (segments.size() <= s) {
+                    long base = (long) segments.size() * SEGMENT_ROWS * width;
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE, base, (long) SEGMENT_ROWS * width));
+                }
+                return segments.get(s);
+            }
+        }
+
+        void put(long row, byte[] value) throws IOException {
+            segment(row).put((int) (row % SEGMENT_ROWS) * width, value);
+        }
+
+        byte[] get(long row) throws IOException {
+            byte[] value = new byte[width];
+            segment(row).get((int) (row % SEGMENT_ROWS) * width, value);
+            return value;
+        }
+
+        /** Forces the rows [from, to) to disk. */
+        void force(long from, long to) {
+            for (long row = from; row < to; ) {
+                int s = (int) (row / SEGMENT_ROWS);
+                long segEnd = Math.min(to, (long) (s + 1) * SEGMENT_ROWS);
+                int start = (int) (row % SEGMENT_ROWS) * width;
+                segments.get(s).force(start, (int) (segEnd - row) * width);
+                row = segEnd;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package src.repository;
+
+import src.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Variable-length storage for an AccountTable: a bump allocator over direct buffers. An
+ * address packs the chunk index into the high word and the offset into the low one; 0 is
+ * never handed out. Freed blocks are kept on one free list per size, linked through their
+ * first word, and handed out again before the current chunk grows.
+ */
+final class OffHeapArena {
+    static final LongAdder OFF_HEAP_BYTES = Metrics.counter("users.offHeapBytes");
+
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private final Map<Integer, Long> freeLists = new HashMap<>();
+    private int position = CHUNK_BYTES;
+
+    /** 8-byte aligned, zeroed direct buffer in native byte order, as the VarHandle views need. */
+    static ByteBuffer allocate(int bytes) {
+        ByteBuffer b = ByteBuffer.allocateDirect(bytes + 7).alignedSlice(8).order(ByteOrder.nativeOrder());
+        OFF_HEAP_BYTES.add(b.capacity());
+        return b;
+    }
+
+    synchronized long allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Block too large: " + bytes);
+        int size = (int) ((bytes + 7) & ~7L);
+        Long free = freeLists.get(size);
+        if (free != null) {
+            long next = chunk(free).getLong(offset(free));
+            if (next == 0) freeLists.remove(size);
+            else freeLists.put(size, next);
+            return free;
+        }
+        ByteBuffer[] cs = chunks;
+        if (cs.length == 0 || position + size > cs[cs.length - 1].capacity()) {
+            cs = Arrays.copyOf(cs, cs.length + 1);
+            cs[cs.length - 1] = allocate(Math.max(CHUNK_BYTES, size));
+            // Offset 0 of the first chunk stays unused so that no address is 0.
+            position = cs.length == 1 ? 8 : 0;
+            chunks = cs;
+        }
+        long address = (long) (cs.length - 1) << 32 | position;
+        position += size;
+        return address;
+    }
+
+    /** Returns a block for reuse; nobody may read it any more. */
+    synchronized void free(long address, long bytes) {
+        int size = (int) ((bytes + 7) & ~7L);
+        Long head = freeLists.get(size);
+        chunk(address).putLong(offset(address), head == null ? 0 : head);
+        freeLists.put(size, address);
+    }
+
+    ByteBuffer chunk(long address) {
+        return chunks[(int) (address >>> 32)];
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Stores a length-prefixed UTF-8 copy of s (0 for null). Strings are never freed: readers
+     * load a string's address without locking, so a block could be reused under one of them.
+     */
+    long putString(String s) {
+        if (s == null) return 0;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        long address = allocate(4L + bytes.length);
+        ByteBuffer c = chunk(address);
+        int off = offset(address);
+        c.putInt(off, bytes.length);
+        c.put(off + 4, bytes);
+        return address;
+    }
+
+    /**
+     * Address of s: current if it already holds s, else a new copy. The replaced copy stays
+     * allocated, unreachable, for the life of the arena, which is rebuilt from disk at the next
+     * start; names and PIN hashes change rarely enough that this stays small.
+     */
+    long replaceString(long current, String s) {
+        if (s == null) return 0;
+        if (current != 0) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer c = chunk(current);
+            int off = offset(current);
+            if (c.getInt(off) == bytes.length && c.slice(off + 4, bytes.length).equals(ByteBuffer.wrap(bytes))) {
+                return current;
+            }
+        }
+        return putString(s);
+    }
+
+    String getString(long address) {
+        if (address == 0) return null;
+        ByteBuffer c = chunk(address);
+        int off = offset(address);
+        byte[] bytes = new byte[c.getInt(off)];
+        c.get(off + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Frees every chunk's accounting; the buffers themselves go once unreachable. */
+    synchronized void release() {
+        for (ByteBuffer c : chunks) {
+            OFF_HEAP_BYTES.add(-c.capacity());
+        }
+        chunks = new ByteBuffer[0];
+        freeLists.clear();
+        position = CHUNK_BYTES;
+    }
+}
@@ -0,0 +1,47 @@
+package src.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/** Opaque history cursors: each wraps the store position of the last item on a page. */
+final class PageCursor {
+    private static final String PREFIX = "tx:";
+
+    private PageCursor() {
+    }
+
+    static String encode(int position) {
+        byte[] raw = (PREFIX + position).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * Returns the position inside the cursor, or -1 for a null (first page) cursor. Cursors
+     * come from clients, so a position outside [0, size] of a store holding size items is
+     * rejected before it reaches any index arithmetic.
+     */
+    static int decode(String cursor, long size) {
+        if (cursor == null) return -1;
+        int position;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!raw.startsWith(PREFIX)) throw new IllegalArgumentException("Invalid cursor");
+            position = Integer.parseInt(raw.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (position < 0 || position > size) throw new IllegalArgumentException("Invalid cursor");
+        return position;
+    }
+
+    /** Up to limit consecutive positions of a store holding size items, continuing after from. */
+    static int[] range(int size, int from, int limit, boolean newestFirst) {
+        int start = newestFirst ? (from < 0 ? size - 1 : Math.min(from, size) - 1) : from + 1;
+        int available = newestFirst ? start + 1 : size - start;
+        int[] positions = new int[Math.max(0, Math.min(limit, available))];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = newestFirst ? start - i : start + i;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,14 @@
+package src.repository;
+
+/**
+ * A save that did not become durable. The repository does not apply it; anything the caller
+ * changed in anticipation of the save, such as the balance of a live account row, is the
+ * caller's to undo.
+ */
+public class PersistenceException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public PersistenceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,374 @@
+package src.repository;
+
+import src.model.Transaction;
+import src.model.User;
+import src.util.AccountKey;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary encoding of stored records, replacing Java serialization. Every record starts with
+ * a kind byte and a schema version byte, followed by the fields: integers as LEB128 varints
+ * (zigzag for signed values), strings as a varint length plus UTF-8 with 0 meaning null.
+ * No class descriptors are written, so field changes only need a new version branch here.
+ *
+ * Java-serialized records always start with 0xACED, which no kind byte here uses; callers
+ * check isJavaSerialized to read and migrate records written before this codec.
+ */
+final class RecordCodec {
+    static final byte TRANSACTION = 1;
+    static final byte USER = 2;
+    static final byte USER_DELTA = 3;
+    static final byte USER_SEGMENT = 4;
+    static final byte USER_BATCH = 5;
+    static final byte BATCH_FLOOR = 6;
+    static final byte LOG_BASE = 7;
+
+    private static final byte VERSION_1 = 1;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+
+    private RecordCodec() {
+    }
+
+    static boolean isJavaSerialized(byte[] record) {
+        return record.length >= 2 && record[0] == (byte) 0xAC && record[1] == (byte) 0xED;
+    }
+
+    static byte[] encodeTransaction(Transaction tx) {
+        Writer w = new Writer(48);
+        w.header(TRANSACTION);
+        w.varLong(tx.getId());
+        w.varLong(tx.getType().ordinal());
+        w.account(tx.getFrom());
+        w.account(tx.getTo());
+        w.zigZag(tx.getAmountMinor());
+        w.zigZag(tx.getEpochMillis());
+        w.string(tx.hasDefaultDescription() ? null : tx.getDescription());
+        return w.toBytes();
+    }
+
+    static Transaction decodeTransaction(byte[] record) throws IOException {
+        Reader r = new Reader(record);
+        int version = r.header(TRANSACTION);
+        if (version != VERSION_1) throw new IOException("Unsupported transaction record version " + version);
+        return readTransaction(r);
+    }
+
+    static byte[] encodeLogBase(int position) {
+        Writer w = new Writer(8);
+        w.header(LOG_BASE);
+        w.varLong(position);
+        return w.toBytes();
+    }
+
+    /** Decodes a transaction log record: a Transaction or a TransactionRepository.LogBase. */
+    static Object decodeTransactionRecord(byte[] record) throws IOException {
+        Reader r = new Reader(record);
+        byte kind = r.kind();
+        int version = r.version();
+        if (version != VERSION_1) throw new IOException("Unsupported transaction record version " + version);
+        switch (kind) {
+            case TRANSACTION:
+                return readTransaction(r);
+            case LOG_BASE:
+                return new TransactionRepository.LogBase((int) r.varLong());
+            default:
+                throw new IOException("Unknown transaction record kind " + kind);
+        }
+    }
+
+    private static Transaction readTransaction(Reader r) throws IOException {
+        long id = r.varLong();
+        int type = (int) r.varLong();
+        if (type >= TYPES.length) throw new IOException("Unknown transaction type " + type);
+        String from = r.account();
+        String to = r.account();
+        long amount = r.zigZag();
+        long time = r.zigZag();
+        String description = r.string();
+        return Transaction.restore(id, TYPES[type], from, to, amount, time, description);
+    }
+
+    static byte[] encodeUser(User u) {
+        Writer w = new Writer(128);
+        w.header(USER);
+        writeUser(w, u);
+        return w.toBytes();
+    }
+
+    static byte[] encodeUsers(List<? extends User> users) {
+        Writer w = new Writer(64 * users.size() + 16);
+        w.header(USER_SEGMENT);
+        w.varLong(users.size());
+        for (User u : users) {
+            writeUser(w, u);
+        }
+        return w.toBytes();
+    }
+
+    static byte[] encodeDelta(UserRepository.Delta d) {
+        Writer w = new Writer(64 + 4 * d.txSeqs.length);
+        w.header(USER_DELTA);
+        w.string(d.phone);
+        w.zigZag(d.balanceMinor);
+        w.string(d.pinHash);
+        w.varLong(d.txOffset);
+        w.ids(d.txSeqs);
+        return w.toBytes();
+    }
+
+    /** One shard's part of a cross-shard save: the batch id, the participating shards and the nested records. */
+    static byte[] encodeBatchPart(long id, int[] shards, List<byte[]> records) {
+        int size = 16 + 2 * shards.length;
+        for (byte[] record : records) {
+            size += record.length + 3;
+        }
+        Writer w = new Writer(size);
+        w.header(USER_BATCH);
+        w.varLong(id);
+        w.varLong(shards.length);
+        for (int shard : shards) {
+            w.varLong(shard);
+        }
+        w.varLong(records.size());
+        for (byte[] record : records) {
+            w.bytes(record);
+        }
+        return w.toBytes();
+    }
+
+    static byte[] encodeBatchFloor(long floor) {
+        Writer w = new Writer(12);
+        w.header(BATCH_FLOOR);
+        w.varLong(floor);
+        return w.toBytes();
+    }
+
+    /**
+     * Decodes a user repository record: a User, a List of Users (snapshot segment), a Delta,
+     * a UserShard.BatchPart or a UserShard.BatchFloor.
+     */
+    static Object decodeUserRecord(byte[] record) throws IOException {
+        Reader r = new Reader(record);
+        byte kind = r.kind();
+        int version = r.version();
+        if (version != VERSION_1) throw new IOException("Unsupported user record version " + version);
+        switch (kind) {
+            case USER:
+                return readUser(r);
+            case USER_SEGMENT: {
+                int n = (int) r.varLong();
+                List<User> users = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    users.add(readUser(r));
+                }
+                return users;
+            }
+            case USER_DELTA:
+                return new UserRepository.Delta(r.string(), r.zigZag(), r.string(), (int) r.varLong(), r.ids());
+            case USER_BATCH: {
+                long id = r.varLong();
+                int[] shards = new int[r.count()];
+                for (int i = 0; i < shards.length; i++) {
+                    shards[i] = (int) r.varLong();
+                }
+                int n = r.count();
+                List<Object> entries = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    entries.add(decodeUserRecord(r.bytes()));
+                }
+                return new UserShard.BatchPart(id, shards, entries);
+            }
+            case BATCH_FLOOR:
+                return new UserShard.BatchFloor(r.varLong());
+            default:
+                throw new IOException("Unknown user record kind " + kind);
+        }
+    }
+
+    /** Accessors are read one at a time; replay tolerates a balance newer than the history. */
+    private static void writeUser(Writer w, User u) {
+        w.string(u.getPhoneNumber());
+        w.string(u.getName());
+        w.string(u.getPinHash());
+        w.zigZag(u.getBalanceMinor());
+        w.string(u.getRole());
+        LocalDateTime created = u.getCreatedAt();
+        w.zigZag(created.toEpochSecond(ZoneOffset.UTC));
+        w.varLong(created.getNano());
+        w.ids(u.getTransactions());
+    }
+
+    private static User readUser(Reader r) throws IOException {
+        String phone = r.string();
+        String name = r.string();
+        String pinHash = r.string();
+        long balance = r.zigZag();
+        String role = r.string();
+        LocalDateTime created = LocalDateTime.ofEpochSecond(r.zigZag(), (int) r.varLong(), ZoneOffset.UTC);
+        return User.restore(phone, name, pinHash, balance, role, created, r.ids());
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void header(byte kind) {
+            ensure(2);
+            buf[pos++] = kind;
+            buf[pos++] = VERSION_1;
+        }
+
+        void varLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void zigZag(long v) {
+            varLong((v << 1) ^ (v >> 63));
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varLong(0);
+                return;
+            }
+            byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+            varLong(utf.length + 1L);
+            ensure(utf.length);
+            System.arraycopy(utf, 0, buf, pos, utf.length);
+            pos += utf.length;
+        }
+
+        /** 0 for the system side, a packed key for digit-only ids, otherwise -1 and the text. */
+        void account(String account) {
+            long key = account == null ? 0 : AccountKey.pack(account);
+            zigZag(key);
+            if (key == AccountKey.NOT_PACKABLE) string(account);
+        }
+
+        /** Ids as a count and zigzag deltas, which stay one or two bytes for nearby sequence numbers. */
+        void ids(long[] ids) {
+            varLong(ids.length);
+            long prev = 0;
+            for (long id : ids) {
+                zigZag(id - prev);
+                prev = id;
+            }
+        }
+
+        void bytes(byte[] b) {
+            varLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte kind() throws IOException {
+            return (byte) readByte();
+        }
+
+        int version() throws IOException {
+            return readByte();
+        }
+
+        int header(byte expectedKind) throws IOException {
+            byte kind = kind();
+            if (kind != expectedKind) throw new IOException("Expected record kind " + expectedKind + ", found " + kind);
+            return version();
+        }
+
+        private int readByte() throws IOException {
+            if (pos >= buf.length) throw new IOException("Truncated record");
+            return buf[pos++] & 0xFF;
+        }
+
+        long varLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long zigZag() throws IOException {
+            long v = varLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String string() throws IOException {
+            long n = varLong();
+            if (n == 0) return null;
+            int len = (int) (n - 1);
+            if (len < 0 || len > buf.length - pos) throw new IOException("Truncated record");
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        String account() throws IOException {
+            long key = zigZag();
+            if (key == 0) return null;
+            return key == AccountKey.NOT_PACKABLE ? string() : AccountKey.unpack(key);
+        }
+
+        /** A length or count, which can never exceed the bytes left in the record. */
+        int count() throws IOException {
+            long n = varLong();
+            if (n < 0 || n > buf.length - pos) throw new IOException("Truncated record");
+            return (int) n;
+        }
+
+        byte[] bytes() throws IOException {
+            int len = count();
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return b;
+        }
+
+        long[] ids() throws IOException {
+            long n = varLong();
+            if (n > buf.length - pos) throw new IOException("Truncated record");
+            long[] ids = new long[(int) n];
+            long prev = 0;
+            for (int i = 0; i < ids.length; i++) {
+                prev += zigZag();
+                ids[i] = prev;
+            }
+            return ids;
+        }
+    }
+}
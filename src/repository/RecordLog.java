@@ -0,0 +1,368 @@
+package src.repository;
+
+import src.util.CryptoUtil;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Append-only file of independently encrypted records.
+ *
+ * Layout: [magic][header frame][frame]... where every frame is [int length][IV + AES-GCM ciphertext].
+ * The header frame seals a fixed marker so a wrong key is detected up front instead of being
+ * mistaken for a torn tail. On open, frames are replayed and a torn tail, an incomplete last
+ * frame or an unauthenticated frame with nothing complete after it, is truncated away. A bad
+ * frame with complete frames after it is damage rather than a torn write and fails the open,
+ * so committed records are never dropped silently. Decryption and decoding of the frames run
+ * in parallel on the common fork-join pool.
+ *
+ * A write or force that fails is rolled back by truncating to the last committed size, so a
+ * failed batch never leaves a torn frame in front of later ones. If even that fails the log
+ * refuses every later write until it is reopened.
+ */
+class RecordLog implements Closeable {
+    private static final int MAGIC = 0x4A504C31; // "JPL1"
+    private static final byte[] HEADER_MARKER = "JavaPay record log".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+    private static final int LOAD_SEGMENT_FRAMES = 1024;
+
+    private final File file;
+    private final SecretKey key;
+    private FileChannel channel;
+    private long size;
+    private IOException failed;
+
+    RecordLog(File file, SecretKey key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    static boolean isRecordLog(File file) throws IOException {
+        if (!file.exists() || file.length() < 4) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /** Turns a record's plaintext into its in-memory form; runs on fork-join worker threads. */
+    interface Decoder<T> {
+        T decode(byte[] plain) throws Exception;
+    }
+
+    /** Opens the log for appending, creating it if missing, and returns the surviving records in order. */
+    List<byte[]> open() throws Exception {
+        return open(plain -> plain);
+    }
+
+    /** Like open(), decoding the records in parallel as they are read. */
+    <T> List<T> open(Decoder<T> decoder) throws Exception {
+        if (!file.exists() || file.length() == 0) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeader(channel, key);
+            channel.force(true);
+            size = channel.position();
+            failed = null;
+            return new ArrayList<>();
+        }
+
+        Replay<T> replay;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            replay = replay(in, file, key, decoder, readHeader(in, key));
+        }
+
+        long good = replay.goodBytes();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        if (good < channel.size()) {
+            System.out.println("[RecordLog] Truncating torn tail of " + file.getName() + " at byte " + good);
+            channel.truncate(good);
+        }
+        channel.position(good);
+        size = good;
+        failed = null;
+        return replay.records();
+    }
+
+    /** Reads a complete file written by rewrite(); unlike open(), a damaged frame is an error. */
+    static <T> List<T> readAll(File file, SecretKey key, Decoder<T> decoder) throws Exception {
+        Replay<T> replay;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            replay = replay(in, file, key, decoder, readHeader(in, key));
+        }
+        if (replay.goodBytes() != file.length()) {
+            throw new IOException("Damaged record file " + file.getName() + " at byte " + replay.goodBytes());
+        }
+        return replay.records();
+    }
+
+    /** Checks the magic and the sealed marker; returns the offset of the first record frame. */
+    private static long readHeader(DataInputStream in, SecretKey key) throws Exception {
+        if (in.readInt() != MAGIC) throw new IOException("Not a record log");
+        byte[] header = readFrame(in, Long.MAX_VALUE);
+        if (header == null || !Arrays.equals(CryptoUtil.decrypt(header, key), HEADER_MARKER)) {
+            throw new IOException("Record log header could not be authenticated");
+        }
+        return 4 + 4 + header.length;
+    }
+
+    /**
+     * Reads frames sequentially and hands each run of LOAD_SEGMENT_FRAMES to its own fork-join
+     * task for decryption and decoding, so those overlap with reading the rest of the file.
+     * Results are joined in file order up to the first incomplete or unauthenticated frame,
+     * which must be the last complete one.
+     */
+    private static <T> Replay<T> replay(DataInputStream in, File file, SecretKey key, Decoder<T> decoder, long start)
+            throws IOException {
+        List<ForkJoinTask<Segment<T>>> tasks = new ArrayList<>();
+        List<byte[]> frames = new ArrayList<>(LOAD_SEGMENT_FRAMES);
+        long end = start;
+        byte[] frame;
+        while ((frame = readFrame(in, file.length() - end)) != null) {
+            end += 4 + frame.length;
+            frames.add(frame);
+            if (frames.size() == LOAD_SEGMENT_FRAMES) {
+                tasks.add(decodeAsync(frames, key, decoder));
+                frames = new ArrayList<>(LOAD_SEGMENT_FRAMES);
+            }
+        }
+        if (!frames.isEmpty()) {
+            tasks.add(decodeAsync(frames, key, decoder));
+        }
+
+        List<T> records = new ArrayList<>();
+        long good = start;
+        boolean intact = true;
+        for (ForkJoinTask<Segment<T>> task : tasks) {
+            if (!intact) {
+                task.cancel(false);
+                continue;
+            }
+            Segment<T> segment = task.join();
+            records.addAll(segment.records());
+            good += segment.bytes();
+            intact = segment.damagedLength() == 0;
+            if (!intact && good + 4 + segment.damagedLength() != end) {
+                throw new IOException("Frame at byte " + good + " of " + file.getName() + " failed authentication and "
+                        + (end - good - 4 - segment.damagedLength()) + " bytes of later frames follow it");
+            }
+        }
+        return new Replay<>(records, good);
+    }
+
+    private static <T> ForkJoinTask<Segment<T>> decodeAsync(List<byte[]> frames, SecretKey key, Decoder<T> decoder) {
+        return ForkJoinTask.adapt(() -> decode(frames, key, decoder)).fork();
+    }
+
+    private static <T> Segment<T> decode(List<byte[]> frames, SecretKey key, Decoder<T> decoder) throws Exception {
+        List<T> records = new ArrayList<>(frames.size());
+        long bytes = 0;
+        for (byte[] frame : frames) {
+            byte[] plain;
+            try {
+                plain = CryptoUtil.decrypt(frame, key);
+            } catch (Exception e) {
+                return new Segment<>(records, bytes, frame.length);
+            }
+            records.add(decoder.decode(plain));
+            bytes += 4 + frame.length;
+        }
+        return new Segment<>(records, bytes, 0);
+    }
+
+    /** Encrypts a record into a complete frame; safe to call from any thread. */
+    byte[] seal(byte[] plain) throws Exception {
+        int sealedLength = CryptoUtil.sealedLength(plain.length);
+        byte[] frame = new byte[4 + sealedLength];
+        ByteBuffer.wrap(frame).putInt(sealedLength);
+        CryptoUtil.encrypt(plain, 0, plain.length, key, null, frame, 4);
+        return frame;
+    }
+
+    synchronized void append(byte[] plain) throws Exception {
+        appendSealed(List.of(seal(plain)));
+    }
+
+    /** Writes already sealed frames with a single gathering write. */
+    synchronized void appendSealed(List<byte[]> frames) throws IOException {
+        checkWritable();
+        ByteBuffer[] bufs = new ByteBuffer[frames.size()];
+        long total = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.wrap(frames.get(i));
+            total += bufs[i].remaining();
+        }
+        try {
+            long written = 0;
+            while (written < total) {
+                written += channel.write(bufs);
+            }
+        } catch (IOException e) {
+            rollBack(e);
+            throw e;
+        }
+        size += total;
+    }
+
+    synchronized void force() throws IOException {
+        checkWritable();
+        channel.force(false);
+    }
+
+    /** GroupCommitter sink: appends the batch and forces it to disk, or leaves no trace of it. */
+    synchronized void commit(List<byte[]> frames) throws IOException {
+        if (frames.isEmpty()) return;
+        long committed = size;
+        appendSealed(frames);
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            size = committed;
+            rollBack(e);
+            throw e;
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (failed != null) throw new IOException(file.getName() + " could not be rolled back after a failed write", failed);
+    }
+
+    /** Cuts a partly written batch off at the committed size; the log is unusable if that fails too. */
+    private void rollBack(IOException cause) {
+        try {
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException e) {
+            e.addSuppressed(cause);
+            failed = e;
+            System.out.println("[RecordLog] Rollback of " + file.getName() + " failed: " + e.getMessage());
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /** Atomically replaces the file with a fresh log holding the given records. */
+    static void rewrite(File file, SecretKey key, Iterable<byte[]> records) throws Exception {
+        File tmp = prepare(file, key, records);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Writes and syncs a fresh log holding the given records next to file, as file.tmp. */
+    static File prepare(File file, SecretKey key, Iterable<byte[]> records) throws Exception {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out, key);
+            for (byte[] plain : records) {
+                writeFrame(out, CryptoUtil.encrypt(plain, key));
+            }
+            out.force(true);
+        }
+        return tmp;
+    }
+
+    /**
+     * Swaps an open log for a file from prepare(): appends the sealed frames written since it
+     * was prepared, moves it over this log and carries on appending to it without a replay.
+     */
+    synchronized void replaceWith(File prepared, List<byte[]> frames) throws IOException {
+        checkWritable();
+        try (FileChannel out = FileChannel.open(prepared.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for (byte[] frame : frames) {
+                ByteBuffer buf = ByteBuffer.wrap(frame);
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+        close();
+        Files.move(prepared.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        size = channel.size();
+        channel.position(size);
+    }
+
+    /** Moves a file that could not be read out of the way so starting fresh never overwrites it. */
+    static void moveAside(File file) {
+        if (!file.exists()) return;
+        File unreadable = new File(file.getPath() + ".unreadable");
+        unreadable.delete();
+        if (!file.renameTo(unreadable)) file.delete();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static void writeHeader(FileChannel out, SecretKey key) throws Exception {
+        ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+        while (magic.hasRemaining()) {
+            out.write(magic);
+        }
+        writeFrame(out, CryptoUtil.encrypt(HEADER_MARKER, key));
+    }
+
+    private static void writeFrame(FileChannel out, byte[] sealed) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4 + sealed.length);
+        buf.putInt(sealed.length).put(sealed).flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Returns the next frame, or null at end of file or when the frame is cut short; remaining
+     * is the number of bytes left in the file. A length that cannot be a frame is only a torn
+     * tail if nothing but zeros follows it, as when a crash leaves space allocated but unwritten.
+     */
+    private static byte[] readFrame(DataInputStream in, long remaining) throws IOException {
+        int len;
+        try {
+            len = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len <= 0 || len > MAX_FRAME) {
+            for (byte b : in.readAllBytes()) {
+                if (b != 0) throw new IOException("Invalid frame length " + len + " with " + (remaining - 4) + " bytes after it");
+            }
+            return null;
+        }
+        if (len > remaining - 4) return null;
+        byte[] frame = new byte[len];
+        try {
+            in.readFully(frame);
+        } catch (EOFException e) {
+            return null;
+        }
+        return frame;
+    }
+
+    /** damagedLength is the length of the unauthenticated frame that ended the segment, or 0. */
+    private record Segment<T>(List<T> records, long bytes, int damagedLength) {
+    }
+
+    private record Replay<T>(List<T> records, long goodBytes) {
+    }
+}
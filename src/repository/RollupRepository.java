@@ -0,0 +1,356 @@
+package src.repository;
+
+import src.model.Transaction;
+import src.model.TransactionPage;
+import src.util.Money;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reporting counters kept up to date as transactions commit, so admin reports never scan the
+ * history. It keeps count, amount and fees per transaction type, per day and type, per merchant
+ * (payments) and per account using the agent channel (cash in and cash out).
+ *
+ * Counting is idempotent by transaction id. Every id up to the watermark is counted, plus the
+ * ids in {@code countedAbove}, which covers ids that arrived out of order. The stores reissue
+ * the ids of a failed commit, so committed ids have no gaps and the watermark catches up once
+ * the stragglers arrive. The counters are
+ * snapshotted to an encrypted file every PERSIST_INTERVAL transactions and on close. After a
+ * crash, catchUp counts whatever the store holds beyond the snapshot.
+ */
+public class RollupRepository {
+    private static final int FORMAT_VERSION = 1;
+    private static final int PERSIST_INTERVAL = 1000;
+    private static final int CATCH_UP_PAGE = 1000;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+
+    private final File file;
+    private final SecretKey key;
+    private final ToLongFunction<Transaction> feeOf;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rollup-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean persistPending = new AtomicBoolean();
+
+    private final EnumMap<Transaction.Type, Counter> byType = new EnumMap<>(Transaction.Type.class);
+    private final TreeMap<LocalDate, EnumMap<Transaction.Type, Counter>> byDay = new TreeMap<>();
+    private final Map<String, Counter> byMerchant = new HashMap<>();
+    private final Map<String, Counter> byAgentAccount = new HashMap<>();
+    private long watermark;
+    private final TreeSet<Long> countedAbove = new TreeSet<>();
+    private int sincePersist;
+
+    /** feeOf gives the fee the sender paid on top of a transaction's amount, in minor units. */
+    public RollupRepository(String filename, SecretKey key, ToLongFunction<Transaction> feeOf) {
+        this.file = new File(filename);
+        this.key = key;
+        this.feeOf = feeOf;
+        load();
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(EncryptedFiles.open(file, key)))) {
+            if (in.readInt() != FORMAT_VERSION) throw new IOException("Unsupported rollup format");
+            watermark = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                countedAbove.add(in.readLong());
+            }
+            readTypes(in, byType);
+            for (int i = in.readInt(); i > 0; i--) {
+                EnumMap<Transaction.Type, Counter> day = new EnumMap<>(Transaction.Type.class);
+                byDay.put(LocalDate.ofEpochDay(in.readLong()), day);
+                readTypes(in, day);
+            }
+            readKeyed(in, byMerchant);
+            readKeyed(in, byAgentAccount);
+        } catch (Exception e) {
+            // The counters are derived data: start over and let catchUp rebuild them from the store.
+            System.out.println("[RollupRepository] Could not load rollups, rebuilding: " + e.getMessage());
+            clear();
+        }
+    }
+
+    private void clear() {
+        byType.clear();
+        byDay.clear();
+        byMerchant.clear();
+        byAgentAccount.clear();
+        countedAbove.clear();
+        watermark = 0;
+    }
+
+    /**
+     * Counts every transaction in the store that the snapshot did not cover, reading newest
+     * first and stopping at the first page with nothing newer than the watermark.
+     */
+    public void catchUp(TransactionStore store) {
+        List<Transaction> missing = new ArrayList<>();
+        long maxId;
+        synchronized (this) {
+            maxId = watermark;
+        }
+        long floor = maxId;
+        String cursor = null;
+        do {
+            TransactionPage page = store.findAll(cursor, CATCH_UP_PAGE, true);
+            boolean newer = false;
+            for (Transaction tx : page.getItems()) {
+                if (tx.getId() <= floor) continue;
+                newer = true;
+                missing.add(tx);
+                maxId = Math.max(maxId, tx.getId());
+            }
+            cursor = newer ? page.getNextCursor() : null;
+        } while (cursor != null);
+
+        synchronized (this) {
+            for (int i = missing.size() - 1; i >= 0; i--) {
+                record(missing.get(i));
+            }
+            // Everything the store holds is counted now; ids it lacks were never committed.
+            watermark = Math.max(watermark, maxId);
+            countedAbove.headSet(watermark, true).clear();
+        }
+        if (!missing.isEmpty()) {
+            persist();
+            System.out.println("✅ Rollups caught up on " + missing.size() + " transactions");
+        }
+    }
+
+    /** Counts a committed transaction; counting the same id again has no effect. */
+    public void record(Transaction tx) {
+        synchronized (this) {
+            long id = tx.getId();
+            if (id <= watermark || !countedAbove.add(id)) return;
+            while (countedAbove.remove(watermark + 1)) {
+                watermark++;
+            }
+            long amount = tx.getAmountMinor();
+            long fee = feeOf.applyAsLong(tx);
+            Transaction.Type type = tx.getType();
+            byType.computeIfAbsent(type, t -> new Counter()).add(amount, fee);
+            byDay.computeIfAbsent(tx.getTimestamp().toLocalDate(), d -> new EnumMap<>(Transaction.Type.class))
+                    .computeIfAbsent(type, t -> new Counter()).add(amount, fee);
+            if (type == Transaction.Type.PAYMENT && tx.getTo() != null) {
+                byMerchant.computeIfAbsent(tx.getTo(), m -> new Counter()).add(amount, fee);
+            }
+            String agentAccount = type == Transaction.Type.CASH_OUT ? tx.getFrom()
+                    : type == Transaction.Type.TOPUP ? tx.getTo() : null;
+            if (agentAccount != null) {
+                byAgentAccount.computeIfAbsent(agentAccount, a -> new Counter()).add(amount, fee);
+            }
+            if (++sincePersist < PERSIST_INTERVAL) return;
+            sincePersist = 0;
+        }
+        if (persistPending.compareAndSet(false, true)) {
+            writer.execute(() -> {
+                persistPending.set(false);
+                persist();
+            });
+        }
+    }
+
+    /** Event pipeline entry point: counts a batch of committed transactions. */
+    public void recordAll(List<Transaction> txs) {
+        for (Transaction tx : txs) {
+            record(tx);
+        }
+    }
+
+    public synchronized Totals total() {
+        Counter sum = new Counter();
+        for (Counter c : byType.values()) {
+            sum.add(c);
+        }
+        return sum.totals();
+    }
+
+    public synchronized Map<Transaction.Type, Totals> byType() {
+        Map<Transaction.Type, Totals> out = new EnumMap<>(Transaction.Type.class);
+        byType.forEach((t, c) -> out.put(t, c.totals()));
+        return out;
+    }
+
+    /** Per-day totals by type for the given number of most recent days that saw transactions. */
+    public synchronized NavigableMap<LocalDate, Map<Transaction.Type, Totals>> byDay(int days) {
+        NavigableMap<LocalDate, Map<Transaction.Type, Totals>> out = new TreeMap<>();
+        for (Map.Entry<LocalDate, EnumMap<Transaction.Type, Counter>> e : byDay.descendingMap().entrySet()) {
+            if (out.size() >= days) break;
+            Map<Transaction.Type, Totals> day = new EnumMap<>(Transaction.Type.class);
+            e.getValue().forEach((t, c) -> day.put(t, c.totals()));
+            out.put(e.getKey(), day);
+        }
+        return out;
+    }
+
+    /** Merchants with the largest payment volume, largest first. */
+    public List<Map.Entry<String, Totals>> topMerchants(int n) {
+        return top(byMerchant, n);
+    }
+
+    /** Accounts with the largest agent cash-in plus cash-out volume, largest first. */
+    public List<Map.Entry<String, Totals>> topAgentAccounts(int n) {
+        return top(byAgentAccount, n);
+    }
+
+    private synchronized List<Map.Entry<String, Totals>> top(Map<String, Counter> counters, int n) {
+        PriorityQueue<Map.Entry<String, Counter>> best =
+                new PriorityQueue<>(Comparator.comparingLong(e -> e.getValue().amountMinor));
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            best.add(e);
+            if (best.size() > n) best.poll();
+        }
+        List<Map.Entry<String, Totals>> out = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            Map.Entry<String, Counter> e = best.poll();
+            out.add(Map.entry(e.getKey(), e.getValue().totals()));
+        }
+        Collections.reverse(out);
+        return out;
+    }
+
+    private void persist() {
+        try {
+            byte[] snapshot;
+            synchronized (this) {
+                snapshot = toBytes();
+            }
+            EncryptedFiles.write(file, key, out -> out.write(snapshot));
+        } catch (Exception e) {
+            System.out.println("[RollupRepository] Persist failed: " + e.getMessage());
+        }
+    }
+
+    private byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(watermark);
+            out.writeInt(countedAbove.size());
+            for (long id : countedAbove) {
+                out.writeLong(id);
+            }
+            writeTypes(out, byType);
+            out.writeInt(byDay.size());
+            for (Map.Entry<LocalDate, EnumMap<Transaction.Type, Counter>> e : byDay.entrySet()) {
+                out.writeLong(e.getKey().toEpochDay());
+                writeTypes(out, e.getValue());
+            }
+            writeKeyed(out, byMerchant);
+            writeKeyed(out, byAgentAccount);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void writeTypes(DataOutputStream out, Map<Transaction.Type, Counter> counters) throws IOException {
+        out.writeInt(counters.size());
+        for (Map.Entry<Transaction.Type, Counter> e : counters.entrySet()) {
+            out.writeByte(e.getKey().ordinal());
+            e.getValue().writeTo(out);
+        }
+    }
+
+    private static void readTypes(DataInputStream in, Map<Transaction.Type, Counter> counters) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            int type = in.readUnsignedByte();
+            if (type >= TYPES.length) throw new IOException("Unknown transaction type " + type);
+            counters.put(TYPES[type], Counter.readFrom(in));
+        }
+    }
+
+    private static void writeKeyed(DataOutputStream out, Map<String, Counter> counters) throws IOException {
+        out.writeInt(counters.size());
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().writeTo(out);
+        }
+    }
+
+    private static void readKeyed(DataInputStream in, Map<String, Counter> counters) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            counters.put(in.readUTF(), Counter.readFrom(in));
+        }
+    }
+
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        persist();
+    }
+
+    /** Count, amount and fees of a group of transactions. */
+    public static final class Totals {
+        private final long count;
+        private final long amountMinor;
+        private final long feesMinor;
+
+        Totals(long count, long amountMinor, long feesMinor) {
+            this.count = count;
+            this.amountMinor = amountMinor;
+            this.feesMinor = feesMinor;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getAmount() {
+            return Money.toMajor(amountMinor);
+        }
+
+        public double getFees() {
+            return Money.toMajor(feesMinor);
+        }
+    }
+
+    private static final class Counter {
+        long count;
+        long amountMinor;
+        long feesMinor;
+
+        void add(long amount, long fee) {
+            count++;
+            amountMinor += amount;
+            feesMinor += fee;
+        }
+
+        void add(Counter other) {
+            count += other.count;
+            amountMinor += other.amountMinor;
+            feesMinor += other.feesMinor;
+        }
+
+        Totals totals() {
+            return new Totals(count, amountMinor, feesMinor);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(count);
+            out.writeLong(amountMinor);
+            out.writeLong(feesMinor);
+        }
+
+        static Counter readFrom(DataInputStream in) throws IOException {
+            Counter c = new Counter();
+            c.count = in.readLong();
+            c.amountMinor = in.readLong();
+            c.feesMinor = in.readLong();
+            return c;
+        }
+    }
+}
@@ -1,70 +1,630 @@
 package src.repository;
 
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
 import src.model.Transaction;
-import src.util.CryptoUtil;
+import src.model.TransactionPage;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Transaction history in two tiers. Recent transactions are hot: in memory, indexed by account
+ * and backed by the append-only log. A background pass seals whole runs of SEGMENT_RECORDS
+ * transactions older than javapay.tx.hotDays (0 keeps everything hot) into the ColdArchive
+ * and drops them from the log, so memory and replay time follow recent activity rather than
+ * the bank's age. Positions count from the first transaction ever stored and never move
+ * between tiers, so cursors stay valid; queries that reach below the hot base read the
+ * archive outside the lock.
+ *
+ * A transaction reaches memory, and so readers and the index, only once the batch holding it
+ * is durable: the commit thread moves each batch in after forcing the log, in log order, and
+ * drops a batch whose commit failed, which the log has already rolled back. The batches queued
+ * behind a failed one fail with it, so ids are reissued and committed ids have no gaps.
+ */
+public class TransactionRepository implements TransactionStore {
+    private static final int INDEX_CHECKPOINT_INTERVAL = 10_000;
+    private static final long INDEX_CHECKPOINT_SECONDS = Long.getLong("javapay.tx.checkpointSeconds", 60);
+    private static final long HOT_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("javapay.tx.hotDays", 90));
+    private static final int SEGMENT_RECORDS = Math.max(1, Integer.getInteger("javapay.tx.segmentRecords", 50_000));
+    private static final long TIER_CHECK_MINUTES = Math.max(1, Long.getLong("javapay.tx.tierCheckMinutes", 60));
+    private static final LatencyHistogram LOAD_TIME = Metrics.timer("tx.load");
+    private static final LatencyHistogram PERSIST_TIME = Metrics.timer("tx.persist");
+    private static final LatencyHistogram TIER_TIME = Metrics.timer("tx.tier");
+    private static final LatencyHistogram CHECKPOINT_TIME = Metrics.timer("tx.indexCheckpoint");
+    private static final LatencyHistogram CHECKPOINT_PAUSE = Metrics.timer("tx.indexCheckpointPause");
 
-public class TransactionRepository {
     private final File dbFile;
+    private final File indexFile;
+    private final File archiveDir;
     private final SecretKey key;
+    private final RecordLog log;
+    private final GroupCommitter committer;
+    private volatile ChangeFeed feed;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Held by the commit thread from writing a batch until it is in memory; taken before lock. */
+    private final ReentrantLock commitLock = new ReentrantLock();
+    /** Transactions submitted for commit, in log order; guarded by lock. */
+    private final ArrayDeque<Transaction> uncommitted = new ArrayDeque<>();
+    private final ScheduledExecutorService indexWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tx-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService tierer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tx-tier");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean indexCheckpointPending = new AtomicBoolean();
+    private final AtomicLong lastId = new AtomicLong();
+    /** Highest id that is durable; guarded by lock. */
+    private long durableLastId;
+    private ColdArchive archive;
+    private boolean tiering = HOT_MILLIS > 0;
+    /** Hot transactions; transactions.get(0) is at position base. */
     private List<Transaction> transactions;
+    private int base;
+    /** Position of the first transaction in the log file, which a LogBase record states. */
+    private int logBase;
+    private AccountIndex index;
+    private volatile int indexedOnDisk;
+    private volatile boolean sawJavaSerialized;
 
     public TransactionRepository(String filename, SecretKey key) {
+        this(filename, key, GroupCommitter.DEFAULT_WINDOW_MICROS, GroupCommitter.DEFAULT_MAX_BATCH);
+    }
+
+    public TransactionRepository(String filename, SecretKey key, long commitWindowMicros, int maxBatch) {
         this.dbFile = new File(filename);
+        this.indexFile = new File(filename + ".idx");
+        this.archiveDir = new File(filename + ".archive");
         this.key = key;
+        this.log = new RecordLog(dbFile, key);
         load();
+        this.durableLastId = lastId.get();
+        this.committer = new GroupCommitter(this::commit, "tx-commit", commitWindowMicros, maxBatch);
+        Metrics.gauge("tx.hotRecords", this::hotRecords);
+        Metrics.gauge("tx.coldSegments", () -> archive.segmentCount());
+        if (tiering) {
+            tierer.scheduleWithFixedDelay(this::tierCold, 0, TIER_CHECK_MINUTES, TimeUnit.MINUTES);
+        }
+        if (INDEX_CHECKPOINT_SECONDS > 0) {
+            indexWriter.scheduleWithFixedDelay(this::checkpointIndexIfBehind, INDEX_CHECKPOINT_SECONDS,
+                    INDEX_CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /** Marks the position of the first transaction in a log whose older records were archived. */
+    record LogBase(int position) {
     }
 
-    @SuppressWarnings("unchecked")
     private void load() {
-        if (!dbFile.exists()) {
-            transactions = new ArrayList<>();
-            return;
-        }
-        try (FileInputStream fis = new FileInputStream(dbFile)) {
-            byte[] cipher = fis.readAllBytes();
-            byte[] plain = CryptoUtil.decrypt(cipher, key);
-            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(plain))) {
-                transactions = (List<Transaction>) ois.readObject();
+        long start = System.nanoTime();
+        transactions = new ArrayList<>();
+        openArchive();
+        try {
+            if (dbFile.exists() && !RecordLog.isRecordLog(dbFile)) {
+                migrateLegacy();
+            }
+            int archived = archive.end();
+            lastId.set(archive.maxId());
+            int pos = 0;
+            for (Object record : log.open(this::decode)) {
+                if (record instanceof LogBase b) {
+                    pos = logBase = b.position();
+                    continue;
+                }
+                Transaction tx = (Transaction) record;
+                // Records from before sequence ids numbered by their position; they always
+                // precede the ones that carry an id.
+                if (tx.getId() == 0) tx.assignId(pos + 1);
+                lastId.accumulateAndGet(tx.getId(), Math::max);
+                // Already sealed into the archive by a tiering pass that stopped before the log rewrite.
+                if (pos++ < archived) continue;
+                transactions.add(tx);
             }
+            base = Math.max(logBase, archived);
+            if (logBase > archived) {
+                System.out.println("[TransactionRepository] Cold archive ends at " + archived + " but the log starts at "
+                        + logBase + "; older history is unavailable and tiering is off");
+                tiering = false;
+            }
+            if (sawJavaSerialized) {
+                rewriteBinary();
+            }
+            loadIndex();
+            LOAD_TIME.recordSince(start);
         } catch (Exception e) {
             System.out.println("[TransactionRepository] Could not load DB, starting fresh: " + e.getMessage());
             transactions = new ArrayList<>();
+            base = logBase = archive.end();
+            index = new AccountIndex();
+            index.dropBefore(base);
+            lastId.set(archive.maxId());
+            try {
+                RecordLog.moveAside(dbFile);
+                indexFile.delete();
+                log.open();
+            } catch (Exception ex) {
+                System.out.println("[TransactionRepository] Could not create DB: " + ex.getMessage());
+            }
         }
     }
 
-    private void persist() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
-            oos.writeObject(transactions);
-            oos.flush();
-            byte[] plain = bos.toByteArray();
-            byte[] cipher = CryptoUtil.encrypt(plain, key);
-            try (FileOutputStream fos = new FileOutputStream(dbFile)) {
-                fos.write(cipher);
+    /** Reads the archive manifest; without it older history is unavailable and tiering stays off. */
+    private void openArchive() {
+        try {
+            archive = ColdArchive.open(archiveDir, key);
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Could not read the cold archive, tiering is off: " + e.getMessage());
+            archive = new ColdArchive(archiveDir, key);
+            tiering = false;
+        }
+    }
+
+    /**
+     * Picks up the persisted index and indexes only the records appended after it was written.
+     * An index claiming more records than the log holds (the tail was truncated) is rebuilt,
+     * and positions archived since it was written are dropped.
+     */
+    private void loadIndex() {
+        index = AccountIndex.read(indexFile, key);
+        if (index.covered() > base + transactions.size()) {
+            index = new AccountIndex();
+        }
+        indexedOnDisk = index.covered();
+        index.dropBefore(base);
+        for (int pos = index.covered(); pos < base + transactions.size(); pos++) {
+            index.add(hot(pos));
+        }
+    }
+
+    /**
+     * Writes the index to disk. Only the snapshot, one entry per account, is taken under the
+     * read lock; serialization and encryption run while saves carry on.
+     */
+    private void checkpointIndex() {
+        long start = System.nanoTime();
+        try {
+            AccountIndex.Snapshot snapshot;
+            lock.readLock().lock();
+            try {
+                snapshot = index.snapshot();
+            } finally {
+                lock.readLock().unlock();
             }
+            CHECKPOINT_PAUSE.recordSince(start);
+            AccountIndex.write(indexFile, key, snapshot);
+            indexedOnDisk = snapshot.covered();
+            CHECKPOINT_TIME.recordSince(start);
         } catch (Exception e) {
-            System.out.println("[TransactionRepository] Persist failed: " + e.getMessage());
+            System.out.println("[TransactionRepository] Index checkpoint failed: " + e.getMessage());
+        } finally {
+            indexCheckpointPending.set(false);
         }
     }
 
-    public synchronized void save(Transaction tx) {
-        transactions.add(tx);
-        persist();
+    /** Periodic checkpoint, so a quiet store does not leave up to INDEX_CHECKPOINT_INTERVAL records to re-index. */
+    private void checkpointIndexIfBehind() {
+        if (index.covered() != indexedOnDisk && indexCheckpointPending.compareAndSet(false, true)) {
+            checkpointIndex();
+        }
     }
 
-    public synchronized List<Transaction> findByPhone(String phone) {
-        return transactions.stream()
-                .filter(tx -> phone.equals(tx.getFrom()) || phone.equals(tx.getTo()))
-                .collect(Collectors.toList());
+    /** Rewrites a pre-log transactions.dat (one encrypted list) as an append-only record log. */
+    @SuppressWarnings("unchecked")
+    private void migrateLegacy() throws Exception {
+        List<Transaction> legacy;
+        try (ObjectInputStream ois = new ObjectInputStream(EncryptedFiles.open(dbFile, key))) {
+            legacy = (List<Transaction>) ois.readObject();
+        }
+        List<byte[]> records = new ArrayList<>(legacy.size());
+        for (Transaction tx : legacy) {
+            tx.assignId(records.size() + 1);
+            records.add(RecordCodec.encodeTransaction(tx));
+        }
+        RecordLog.rewrite(dbFile, key, records);
     }
 
-    public synchronized List<Transaction> findAll() {
-        return new ArrayList<>(transactions);
+    /** One-time rewrite of a log holding Java-serialized records; positions, and so the index, are kept. */
+    private void rewriteBinary() throws Exception {
+        log.close();
+        List<byte[]> records = new ArrayList<>(transactions.size() + 1);
+        if (base > 0) records.add(RecordCodec.encodeLogBase(base));
+        logBase = base;
+        for (Transaction tx : transactions) {
+            records.add(RecordCodec.encodeTransaction(tx));
+        }
+        RecordLog.rewrite(dbFile, key, records);
+        log.open();
+        System.out.println("[TransactionRepository] Migrated " + records.size() + " records to the binary format");
+    }
+
+    /** Reads binary records, and Java-serialized ones from before RecordCodec for migration. */
+    private Object decode(byte[] record) throws IOException, ClassNotFoundException {
+        if (!RecordCodec.isJavaSerialized(record)) {
+            return RecordCodec.decodeTransactionRecord(record);
+        }
+        sawJavaSerialized = true;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            return (Transaction) ois.readObject();
+        }
+    }
+
+    /** Assigns the transaction its sequence id and returns once it is durable. */
+    @Override
+    public void save(Transaction tx) {
+        persist(List.of(tx), true);
+    }
+
+    @Override
+    public void saveAll(List<Transaction> txs) {
+        persist(txs, true);
+    }
+
+    @Override
+    public void restoreAll(List<Transaction> txs) {
+        persist(txs, false);
+    }
+
+    private void persist(List<Transaction> txs, boolean assignIds) {
+        if (txs.isEmpty()) return;
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<Void> durable;
+            lock.writeLock().lock();
+            try {
+                // Ids are taken and submitted under the lock, so log order is id order and a
+                // failed commit can hand back every id it and the batches queued behind it took.
+                long before = lastId.get();
+                try {
+                    List<byte[]> frames = new ArrayList<>(txs.size());
+                    for (Transaction tx : txs) {
+                        if (assignIds) tx.assignId(lastId.incrementAndGet());
+                        else lastId.accumulateAndGet(tx.getId(), Math::max);
+                        frames.add(log.seal(RecordCodec.encodeTransaction(tx)));
+                    }
+                    uncommitted.addAll(txs);
+                    durable = committer.submit(frames);
+                } catch (Exception e) {
+                    lastId.set(before);
+                    throw e;
+                }
+                if (durable.isCompletedExceptionally()) {
+                    for (int i = 0; i < txs.size(); i++) {
+                        uncommitted.pollLast();
+                    }
+                    lastId.set(before);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            durable.join();
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            System.out.println("[TransactionRepository] Persist failed: " + cause.getMessage());
+            throw new PersistenceException("Transactions were not saved", cause);
+        }
+        PERSIST_TIME.recordSince(start);
+        ChangeFeed f = feed;
+        if (f != null) f.publishTransactions(txs);
+    }
+
+    /**
+     * GroupCommitter sink: appends the batch, then moves its transactions into memory, or
+     * drops them if the commit failed. The index is checkpointed once it is far enough ahead
+     * of the copy on disk.
+     */
+    private void commit(List<byte[]> frames) throws IOException {
+        commitLock.lock();
+        try {
+            IOException failure = null;
+            try {
+                log.commit(frames);
+            } catch (IOException e) {
+                failure = e;
+            }
+            lock.writeLock().lock();
+            try {
+                if (failure == null) {
+                    for (int i = 0; i < frames.size(); i++) {
+                        Transaction tx = uncommitted.poll();
+                        transactions.add(tx);
+                        index.add(tx);
+                        durableLastId = Math.max(durableLastId, tx.getId());
+                    }
+                } else {
+                    // Fail everything queued behind this batch too, so the ids they took can be
+                    // reissued and the ids of committed transactions stay free of gaps.
+                    committer.failQueued(failure);
+                    uncommitted.clear();
+                    lastId.set(durableLastId);
+                }
+                if (index.covered() - indexedOnDisk >= INDEX_CHECKPOINT_INTERVAL
+                        && indexCheckpointPending.compareAndSet(false, true)) {
+                    indexWriter.execute(this::checkpointIndex);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (failure != null) throw failure;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public void publishTo(ChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Seals every full segment of hot transactions older than the hot window into the archive,
+     * then rewrites the log without them. The new log is written outside the lock; only the
+     * records committed meanwhile are copied over while writers wait.
+     */
+    private void tierCold() {
+        long start = System.nanoTime();
+        try {
+            long cutoff = System.currentTimeMillis() - HOT_MILLIS;
+            int sealed = 0;
+            List<Transaction> segment;
+            while ((segment = coldSegment(cutoff)) != null) {
+                archive.seal(segment);
+                sealed += segment.size();
+            }
+            if (archive.end() > logBase) {
+                dropArchived();
+            }
+            if (sealed > 0) {
+                TIER_TIME.recordSince(start);
+                System.out.println("✅ Archived " + sealed + " transactions into " + archive.segmentCount() + " cold segments");
+            }
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Tiering failed: " + e.getMessage());
+        }
+    }
+
+    /** The next SEGMENT_RECORDS unarchived transactions if all are older than cutoff, else null. */
+    private List<Transaction> coldSegment(long cutoff) {
+        lock.readLock().lock();
+        try {
+            int from = archive.end() - base;
+            if (transactions.size() - from < SEGMENT_RECORDS) return null;
+            List<Transaction> segment = transactions.subList(from, from + SEGMENT_RECORDS);
+            for (Transaction tx : segment) {
+                if (tx.getEpochMillis() >= cutoff) return null;
+            }
+            return new ArrayList<>(segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Holds commitLock while swapping the log, so the log and memory agree: no batch is between
+     * being written and being moved into memory.
+     */
+    private void dropArchived() throws Exception {
+        int newBase = archive.end();
+        List<byte[]> records = new ArrayList<>();
+        int copied;
+        lock.readLock().lock();
+        try {
+            records.add(RecordCodec.encodeLogBase(newBase));
+            for (Transaction tx : transactions.subList(newBase - base, transactions.size())) {
+                records.add(RecordCodec.encodeTransaction(tx));
+            }
+            copied = base + transactions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        File prepared = RecordLog.prepare(dbFile, key, records);
+
+        commitLock.lock();
+        lock.writeLock().lock();
+        try {
+            List<byte[]> tail = new ArrayList<>();
+            for (Transaction tx : transactions.subList(copied - base, transactions.size())) {
+                tail.add(log.seal(RecordCodec.encodeTransaction(tx)));
+            }
+            log.replaceWith(prepared, tail);
+            transactions = new ArrayList<>(transactions.subList(newBase - base, transactions.size()));
+            base = logBase = newBase;
+            index.dropBefore(newBase);
+        } finally {
+            lock.writeLock().unlock();
+            commitLock.unlock();
+        }
+        if (indexCheckpointPending.compareAndSet(false, true)) {
+            indexWriter.execute(this::checkpointIndex);
+        }
+    }
+
+    /** The hot transaction at pos; the caller holds the lock and has checked pos >= base. */
+    private Transaction hot(int pos) {
+        return transactions.get(pos - base);
+    }
+
+    private long hotRecords() {
+        lock.readLock().lock();
+        try {
+            return transactions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Transaction> findByPhone(String phone) {
+        int below;
+        List<Transaction> recent;
+        lock.readLock().lock();
+        try {
+            below = base;
+            int[] positions = index.positions(phone);
+            recent = new ArrayList<>(positions.length);
+            for (int pos : positions) {
+                recent.add(hot(pos));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (below == 0) return recent;
+        List<Transaction> result = new ArrayList<>();
+        try {
+            for (int pos : archive.page(phone, -1, Integer.MAX_VALUE, false, below)) {
+                result.add(archive.get(pos));
+            }
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Cold history read failed: " + e.getMessage());
+        }
+        result.addAll(recent);
+        return result;
+    }
+
+    /**
+     * One page of an account's history. The cursor is opaque to callers: pass null for the
+     * first page and the returned next cursor for each following one.
+     */
+    @Override
+    public TransactionPage findByPhone(String phone, String cursor, int pageSize, boolean newestFirst) {
+        int from;
+        int below;
+        int[] recent;
+        Transaction[] items;
+        lock.readLock().lock();
+        try {
+            from = PageCursor.decode(cursor, base + transactions.size());
+            below = base;
+            recent = index.page(phone, from, pageSize + 1, newestFirst);
+            items = new Transaction[recent.length];
+            for (int i = 0; i < recent.length; i++) {
+                items[i] = hot(recent[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (below == 0 || newestFirst && recent.length > pageSize) return toPage(recent, items, pageSize);
+
+        // The rest of the page is archived: older records follow the hot ones newest first and
+        // precede them oldest first.
+        int[] older;
+        try {
+            older = archive.page(phone, from, newestFirst ? pageSize + 1 - recent.length : pageSize + 1, newestFirst, below);
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Cold history read failed: " + e.getMessage());
+            older = new int[0];
+        }
+        int n = Math.min(pageSize + 1, recent.length + older.length);
+        int[] positions = new int[n];
+        Transaction[] all = new Transaction[n];
+        int hotAt = newestFirst ? 0 : older.length;
+        int coldAt = newestFirst ? recent.length : 0;
+        for (int i = 0; i < recent.length && hotAt + i < n; i++) {
+            positions[hotAt + i] = recent[i];
+            all[hotAt + i] = items[i];
+        }
+        for (int i = 0; i < older.length && coldAt + i < n; i++) {
+            positions[coldAt + i] = older[i];
+        }
+        return toPage(positions, all, pageSize);
+    }
+
+    @Override
+    public TransactionPage findAll(String cursor, int pageSize, boolean newestFirst) {
+        int[] positions;
+        Transaction[] items;
+        lock.readLock().lock();
+        try {
+            int from = PageCursor.decode(cursor, base + transactions.size());
+            positions = PageCursor.range(base + transactions.size(), from, pageSize + 1, newestFirst);
+            items = new Transaction[positions.length];
+            for (int i = 0; i < positions.length && i < pageSize; i++) {
+                if (positions[i] >= base) items[i] = hot(positions[i]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return toPage(positions, items, pageSize);
+    }
+
+    /** Builds a page from positions whose hot records are already in items; archived ones are read here. */
+    private TransactionPage toPage(int[] positions, Transaction[] items, int pageSize) {
+        int n = Math.min(pageSize, positions.length);
+        List<Transaction> page = new ArrayList<>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                Transaction tx = items[i] != null ? items[i] : archive.get(positions[i]);
+                if (tx != null) page.add(tx);
+            }
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Cold history read failed: " + e.getMessage());
+        }
+        String next = positions.length > pageSize ? PageCursor.encode(positions[n - 1]) : null;
+        return new TransactionPage(page, next);
+    }
+
+    @Override
+    public List<Transaction> findAll() {
+        int below;
+        List<Transaction> recent;
+        lock.readLock().lock();
+        try {
+            below = base;
+            recent = new ArrayList<>(transactions);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (below == 0) return recent;
+        List<Transaction> result = new ArrayList<>(below + recent.size());
+        try {
+            result.addAll(archive.all(below));
+        } catch (Exception e) {
+            System.out.println("[TransactionRepository] Cold history read failed: " + e.getMessage());
+        }
+        result.addAll(recent);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        tierer.shutdown();
+        try {
+            tierer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The commit thread may still hand checkpoints to indexWriter until it stops.
+        committer.close();
+        indexWriter.shutdown();
+        try {
+            indexWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (index.covered() != indexedOnDisk) {
+            indexCheckpointPending.set(true);
+            checkpointIndex();
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.out.println("[TransactionRepository] Close failed: " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package src.repository;
+
+import src.model.Transaction;
+import src.model.TransactionPage;
+
+import java.util.List;
+
+/**
+ * Storage surface for transaction history; implementations differ only in on-disk layout.
+ * Saves throw PersistenceException when the commit fails, and the failed transactions are
+ * then neither readable nor published.
+ */
+public interface TransactionStore {
+    /** Returns once the transaction is durable on disk. */
+    void save(Transaction tx);
+    /** Saves a batch with a single commit; returns once all of it is durable. */
+    void saveAll(List<Transaction> txs);
+    /** Stores transactions that already carry their ids, such as replicated ones; returns once durable. */
+    void restoreAll(List<Transaction> txs);
+    List<Transaction> findByPhone(String phone);
+    TransactionPage findByPhone(String phone, String cursor, int pageSize, boolean newestFirst);
+    List<Transaction> findAll();
+    TransactionPage findAll(String cursor, int pageSize, boolean newestFirst);
+    /** Publishes every transaction committed from now on to the feed, once durable. */
+    void publishTo(ChangeFeed feed);
+    void close();
+}
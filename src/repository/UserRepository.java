@@ -1,71 +1,349 @@
 package src.repository;
 
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
 import src.model.User;
-import src.util.CryptoUtil;
+import src.util.Money;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class UserRepository {
-    private final File dbFile;
+/**
+ * Accounts are split by phone-number hash across -Djavapay.userShards shards (default 8). Each
+ * shard keeps its own snapshot and journal (users.dat.3of8, users.dat.3of8.journal; a single
+ * shard keeps plain users.dat), its own lock and its own commit thread, so saves to different
+ * shards never wait on each other and no file holds more than its share of the accounts.
+ *
+ * A save touching several shards, such as a transfer between them, is written as one batch
+ * part per shard, each naming all participants. Recovery applies a part only if every
+ * participant has its part or has since snapshotted past the batch, so a crash between the
+ * shards' commits never keeps one side of a transfer. Starting with a different shard count
+ * rewrites the accounts into the new layout.
+ */
+public final class UserRepository {
+    static final int DEFAULT_SHARDS = Math.max(1, Integer.getInteger("javapay.userShards", 8));
+
+    private static final LatencyHistogram LOAD_TIME = Metrics.timer("users.load");
+    private static final LatencyHistogram PERSIST_TIME = Metrics.timer("users.persist");
+
+    private final String filename;
     private final SecretKey key;
-    private Map<String, User> users;
+    private final UserShard[] shards;
+    private final AtomicLong batchIds = new AtomicLong();
+    private volatile ChangeFeed feed;
 
     public UserRepository(String filename, SecretKey key) {
-        this.dbFile = new File(filename);
+        this(filename, key, GroupCommitter.DEFAULT_WINDOW_MICROS, GroupCommitter.DEFAULT_MAX_BATCH);
+    }
+
+    public UserRepository(String filename, SecretKey key, long commitWindowMicros, int maxBatch) {
+        this(filename, key, DEFAULT_SHARDS, commitWindowMicros, maxBatch);
+    }
+
+    public UserRepository(String filename, SecretKey key, int shardCount, long commitWindowMicros, int maxBatch) {
+        this.filename = filename;
         this.key = key;
-        load();
+        this.shards = openShards(shardCount, commitWindowMicros, maxBatch);
+        load(commitWindowMicros, maxBatch);
     }
 
-    @SuppressWarnings("unchecked")
-    private void load() {
-        if (!dbFile.exists()) {
-            users = new HashMap<>();
-            return;
+    private UserShard[] openShards(int n, long commitWindowMicros, int maxBatch) {
+        UserShard[] opened = new UserShard[n];
+        for (int i = 0; i < n; i++) {
+            opened[i] = new UserShard(shardFile(i, n), key, n == 1 ? "" : "-" + i, commitWindowMicros, maxBatch,
+                    () -> batchIds.get() + 1);
         }
-        try (FileInputStream fis = new FileInputStream(dbFile)) {
-            byte[] cipher = fis.readAllBytes();
-            byte[] plain = CryptoUtil.decrypt(cipher, key);
-            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(plain))) {
-                users = (Map<String, User>) ois.readObject();
+        return opened;
+    }
+
+    private File shardFile(int i, int n) {
+        return new File(n == 1 ? filename : filename + "." + i + "of" + n);
+    }
+
+    static int shardOf(String phone, int n) {
+        int h = phone.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), n);
+    }
+
+    private UserShard shardFor(String phone) {
+        return shards[shardOf(phone, shards.length)];
+    }
+
+    private void load(long commitWindowMicros, int maxBatch) {
+        long start = System.nanoTime();
+        int previous = previousShardCount();
+        List<String> legacy = previous > 0 ? reshard(previous, commitWindowMicros, maxBatch) : List.of();
+        recover(shards);
+        for (String phone : legacy) {
+            User u = findByPhone(phone);
+            if (u != null) u.markLegacyHistory();
+        }
+        LOAD_TIME.recordSince(start);
+    }
+
+    /** Loads all shards in parallel, then replays them keeping only complete cross-shard batches. */
+    private void recover(UserShard[] group) {
+        Arrays.stream(group).parallel().forEach(UserShard::read);
+        long seen = 0;
+        for (UserShard shard : group) {
+            seen = Math.max(seen, Math.max(shard.batchFloor() - 1, shard.maxBatchId()));
+        }
+        batchIds.set(Math.max(batchIds.get(), seen));
+        Arrays.stream(group).parallel().forEach(shard -> shard.finish(part -> complete(group, part)));
+    }
+
+    private static boolean complete(UserShard[] group, UserShard.BatchPart part) {
+        for (int s : part.shards()) {
+            if (s < 0 || s >= group.length) return false;
+            if (!group[s].hasBatch(part.id()) && group[s].batchFloor() <= part.id()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds files left by a different shard count, or 0 if there are none. When a reshard was
+     * interrupted both layouts exist; the new one counts as complete once its shard 0 snapshot,
+     * which is written last, is there.
+     */
+    private int previousShardCount() {
+        File base = new File(filename).getAbsoluteFile();
+        Pattern shardName = Pattern.compile(Pattern.quote(base.getName()) + "\\.(\\d+)of(\\d+)(\\.journal(\\.old)?)?");
+        TreeSet<Integer> counts = new TreeSet<>();
+        if (existsAny(1)) counts.add(1);
+        String[] names = base.getParentFile().list();
+        for (String name : names == null ? new String[0] : names) {
+            Matcher m = shardName.matcher(name);
+            if (m.matches()) counts.add(Integer.parseInt(m.group(2)));
+        }
+        counts.remove(shards.length);
+        if (counts.isEmpty()) return 0;
+        if (shardFile(0, shards.length).exists()) {
+            for (int old : counts) {
+                deleteLayout(old);
+            }
+            return 0;
+        }
+        return counts.first();
+    }
+
+    private boolean existsAny(int n) {
+        for (int i = 0; i < n; i++) {
+            File f = shardFile(i, n);
+            if (f.exists() || new File(f.getPath() + ".journal").exists()
+                    || new File(f.getPath() + ".journal.old").exists()) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    private void deleteLayout(int n) {
+        for (int i = 0; i < n; i++) {
+            File f = shardFile(i, n);
+            f.delete();
+            new File(f.getPath() + ".journal").delete();
+            new File(f.getPath() + ".journal.old").delete();
+        }
+    }
+
+    /**
+     * Rewrites the accounts of an n-shard layout into snapshots for the current shard count,
+     * shard 0 last, then removes the old files. Returns the accounts still waiting for
+     * relinkLegacyHistory, since snapshots do not record that.
+     */
+    private List<String> reshard(int n, long commitWindowMicros, int maxBatch) {
+        deleteLayout(shards.length);
+        UserShard[] old = openShards(n, commitWindowMicros, maxBatch);
+        recover(old);
+        List<List<User>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        List<String> legacy = new ArrayList<>();
+        int moved = 0;
+        for (UserShard shard : old) {
+            for (User u : shard.accounts().all()) {
+                parts.get(shardOf(u.getPhoneNumber(), shards.length)).add(u);
+                if (u.hasLegacyHistory()) legacy.add(u.getPhoneNumber());
+                moved++;
+            }
+            shard.close();
+        }
+        try {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                UserShard.writeSnapshot(shardFile(i, shards.length), key, parts.get(i), batchIds.get() + 1);
+            }
+            deleteLayout(n);
+            System.out.println("✅ Resharded " + moved + " accounts from " + n + " to " + shards.length + " shards");
         } catch (Exception e) {
-            System.out.println("[UserRepository] Could not load DB, starting fresh: " + e.getMessage());
-            users = new HashMap<>();
+            // The old layout stays authoritative until shard 0 of the new one exists; starting
+            // on an empty new layout would strand every account written meanwhile.
+            System.out.println("[UserRepository] Reshard failed: " + e.getMessage());
+            deleteLayout(shards.length);
+            throw new IllegalStateException("Could not reshard accounts", e);
+        }
+        return legacy;
+    }
+
+    /**
+     * Accounts loaded from the original format lost their UUID history lists; rebuilds them
+     * from the transaction store and writes a snapshot so this happens only once.
+     */
+    public void relinkLegacyHistory(TransactionStore txStore) {
+        for (UserShard shard : shards) {
+            shard.relinkLegacyHistory(txStore);
         }
     }
 
-    private void persist() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
-            oos.writeObject(users);
-            oos.flush();
-            byte[] plain = bos.toByteArray();
-            byte[] cipher = CryptoUtil.encrypt(plain, key);
-            try (FileOutputStream fos = new FileOutputStream(dbFile)) {
-                fos.write(cipher);
+    public boolean exists(String phone) {
+        return shardFor(phone).accounts().contains(phone);
+    }
+
+    /** Returns once the change is durable on disk. */
+    public void save(User user) {
+        saveAll(List.of(user));
+    }
+
+    /**
+     * Journals all given accounts atomically; returns once the whole batch is durable, or
+     * throws PersistenceException. Accounts in one shard go out in a single commit, otherwise
+     * see saveAcross.
+     */
+    public void saveAll(Collection<User> batch) {
+        long start = System.nanoTime();
+        try {
+            TreeMap<Integer, List<User>> byShard = new TreeMap<>();
+            for (User user : batch) {
+                byShard.computeIfAbsent(shardOf(user.getPhoneNumber(), shards.length), s -> new ArrayList<>()).add(user);
+            }
+            if (byShard.size() == 1) {
+                Map.Entry<Integer, List<User>> only = byShard.firstEntry();
+                shards[only.getKey()].save(only.getValue()).join();
+            } else if (byShard.size() > 1) {
+                saveAcross(byShard);
             }
         } catch (Exception e) {
-            System.out.println("[UserRepository] Persist failed: " + e.getMessage());
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            System.out.println("[UserRepository] Persist failed: " + cause.getMessage());
+            throw new PersistenceException("Accounts were not saved", cause);
+        }
+        PERSIST_TIME.recordSince(start);
+        ChangeFeed f = feed;
+        if (f != null) f.publishUsers(batch);
+    }
+
+    /**
+     * Takes the participants' shared locks in shard order, so compaction cannot snapshot past
+     * the batch id until every part is durable, and commits one batch part per shard; the
+     * shards' commit threads flush them in parallel.
+     */
+    private void saveAcross(TreeMap<Integer, List<User>> byShard) throws Exception {
+        int[] participants = byShard.keySet().stream().mapToInt(Integer::intValue).toArray();
+        int locked = 0;
+        try {
+            for (int s : participants) {
+                shards[s].lockShared();
+                locked++;
+            }
+            long id = batchIds.incrementAndGet();
+            List<CompletableFuture<Void>> durable = new ArrayList<>(participants.length);
+            for (Map.Entry<Integer, List<User>> e : byShard.entrySet()) {
+                durable.add(shards[e.getKey()].savePart(id, participants, e.getValue()));
+            }
+            try {
+                CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                for (Map.Entry<Integer, List<User>> part : byShard.entrySet()) {
+                    shards[part.getKey()].forgetJournaled(part.getValue());
+                }
+                throw e;
+            }
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                shards[participants[i]].unlockShared();
+            }
         }
     }
 
-    public synchronized boolean exists(String phone) {
-        return users.containsKey(phone);
+    /** Publishes every account change committed from now on to the feed, once durable. */
+    public void publishTo(ChangeFeed feed) {
+        this.feed = feed;
+    }
+
+    /** The account as a live view of its off-heap record, or null. */
+    public User findByPhone(String phone) {
+        return shardFor(phone).accounts().find(phone);
+    }
+
+    /** Balance in minor units without materializing the account, or -1 if there is none. */
+    public long balanceMinorOf(String phone) {
+        return shardFor(phone).accounts().balanceMinor(phone);
     }
 
-    public synchronized void save(User user) {
-        users.put(user.getPhoneNumber(), user);
-        persist();
+    public Map<String, User> findAll() {
+        Map<String, User> all = new HashMap<>();
+        for (UserShard shard : shards) {
+            shard.accounts().forEach(u -> all.put(u.getPhoneNumber(), u));
+        }
+        return all;
     }
 
-    public synchronized User findByPhone(String phone) {
-        return users.get(phone);
+    public void close() {
+        for (UserShard shard : shards) {
+            shard.close();
+        }
     }
 
-    public synchronized Map<String, User> findAll() {
-        return new HashMap<>(users);
+    /**
+     * Journal entry for an account that is already on disk: absolute balance and PIN plus new tx ids.
+     * Stays Serializable only so journals written before RecordCodec can be replayed.
+     */
+    static class Delta implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String phone;
+        long balanceMinor;
+        String pinHash;
+        int txOffset;
+        long[] txSeqs;
+        transient boolean legacyHistory;
+
+        Delta(String phone, long balanceMinor, String pinHash, int txOffset, long[] txSeqs) {
+            this.phone = phone;
+            this.balanceMinor = balanceMinor;
+            this.pinHash = pinHash;
+            this.txOffset = txOffset;
+            this.txSeqs = txSeqs;
+        }
+
+        /** Journals written before ids became sequence numbers carry a double balance and UUIDs. */
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField f = in.readFields();
+            phone = (String) f.get("phone", null);
+            pinHash = (String) f.get("pinHash", null);
+            txOffset = f.get("txOffset", 0);
+            if (!f.defaulted("txSeqs")) {
+                balanceMinor = f.get("balanceMinor", 0L);
+                txSeqs = (long[]) f.get("txSeqs", null);
+                return;
+            }
+            balanceMinor = Money.toMinor(f.get("balance", 0.0));
+            List<?> legacy = (List<?>) f.get("txIds", null);
+            legacyHistory = legacy != null && !legacy.isEmpty();
+            txSeqs = new long[0];
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,481 @@
+package src.repository;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+import src.model.User;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * One partition of the account store: a snapshot plus a journal of per-account changes, each
+ * with its own lock, group committer and compactor. A save appends only what changed; once the
+ * journal passes COMPACT_THRESHOLD_BYTES, or every javapay.users.checkpointSeconds if it has
+ * anything at all, a background compaction folds it into a fresh snapshot, so a shard's files
+ * stay bounded by its share of the accounts and a restart replays little.
+ *
+ * The accounts themselves live off-heap in an AccountTable. Lookups never lock. Saves share
+ * the read side of journalLock so they proceed in parallel (callers serialize changes to one
+ * account themselves); compaction takes the write side while it rotates the journal.
+ *
+ * Loading happens in two steps so UserRepository can decide, across all shards, which
+ * cross-shard batch parts completed before a crash: read() collects the journal, finish()
+ * replays it.
+ */
+final class UserShard {
+    private static final long COMPACT_THRESHOLD_BYTES = 4 * 1024 * 1024;
+    private static final int SNAPSHOT_SEGMENT_USERS = 2048;
+    private static final long CHECKPOINT_SECONDS = Long.getLong("javapay.users.checkpointSeconds", 300);
+    private static final LatencyHistogram COMPACT_TIME = Metrics.timer("users.compact");
+    private static final LatencyHistogram COMPACT_PAUSE = Metrics.timer("users.compactPause");
+    private static final LongAdder SNAPSHOT_BYTES = Metrics.counter("users.snapshotBytes");
+
+    private final File dbFile;
+    private final File oldJournalFile;
+    private final SecretKey key;
+    private final LongSupplier nextBatchId;
+    private final ScheduledExecutorService compactor;
+    private final ReadWriteLock journalLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    /** Something was journaled since the last rotation. */
+    private volatile boolean dirty;
+    private final AtomicBoolean sawJavaSerialized = new AtomicBoolean();
+    private final RecordLog journal;
+    private final GroupCommitter committer;
+    private final AccountTable accounts = new AccountTable();
+
+    private List<Object> pending = List.of();
+    private final Set<Long> journaledBatches = new HashSet<>();
+    /** Cross-shard batch parts that recovery found incomplete; compaction leaves them out too. */
+    private final Set<Long> droppedBatches = ConcurrentHashMap.newKeySet();
+    private long batchFloor;
+    private boolean interrupted;
+
+    /**
+     * threadSuffix tells the shards' threads apart; nextBatchId is the id the next cross-shard
+     * batch will get, recorded in snapshots as the floor below which every batch is complete.
+     */
+    UserShard(File dbFile, SecretKey key, String threadSuffix, long commitWindowMicros, int maxBatch,
+              LongSupplier nextBatchId) {
+        this.dbFile = dbFile;
+        this.oldJournalFile = new File(dbFile.getPath() + ".journal.old");
+        this.key = key;
+        this.nextBatchId = nextBatchId;
+        this.journal = new RecordLog(new File(dbFile.getPath() + ".journal"), key);
+        this.committer = new GroupCommitter(journal::commit, "user-commit" + threadSuffix, commitWindowMicros, maxBatch);
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-compactor" + threadSuffix);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Loads the snapshot and collects the journal entries without applying them yet. */
+    void read() {
+        try {
+            if (dbFile.exists()) {
+                batchFloor = readSnapshot(accounts);
+            }
+            List<Object> entries = new ArrayList<>();
+            interrupted = oldJournalFile.exists();
+            if (interrupted) {
+                RecordLog old = new RecordLog(oldJournalFile, key);
+                entries.addAll(old.open(this::decode));
+                old.close();
+            }
+            entries.addAll(journal.open(this::decode));
+            for (Object entry : entries) {
+                if (entry instanceof BatchPart part) journaledBatches.add(part.id());
+            }
+            pending = entries;
+        } catch (Exception e) {
+            startFresh(e);
+        }
+    }
+
+    /** Replays the collected journal, skipping cross-shard batch parts that are not complete. */
+    void finish(Predicate<BatchPart> complete) {
+        try {
+            int dropped = replay(accounts, pending, complete);
+            pending = List.of();
+            accounts.markJournaled();
+            // Rewriting the snapshot also rotates the journal, so both end up in the binary format
+            // and dropped batch parts are gone before any other shard's floor passes them.
+            if (interrupted || dropped > 0 || sawJavaSerialized.get()) {
+                compact();
+            }
+        } catch (Exception e) {
+            startFresh(e);
+        }
+        if (CHECKPOINT_SECONDS > 0) {
+            compactor.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void startFresh(Exception cause) {
+        System.out.println("[UserShard] Could not load " + dbFile.getName() + ", starting fresh: " + cause.getMessage());
+        accounts.clear();
+        journaledBatches.clear();
+        droppedBatches.clear();
+        pending = List.of();
+        batchFloor = 0;
+        try {
+            journal.close();
+            RecordLog.moveAside(dbFile);
+            RecordLog.moveAside(oldJournalFile);
+            RecordLog.moveAside(journal.file());
+            journal.open();
+        } catch (Exception ex) {
+            System.out.println("[UserShard] Could not create " + dbFile.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    /** Every cross-shard batch with a smaller id touching this shard was complete at the last snapshot. */
+    long batchFloor() {
+        return batchFloor;
+    }
+
+    boolean hasBatch(long id) {
+        return journaledBatches.contains(id);
+    }
+
+    long maxBatchId() {
+        long max = 0;
+        for (long id : journaledBatches) {
+            max = Math.max(max, id);
+        }
+        return max;
+    }
+
+    /**
+     * The snapshot is a record file of independently sealed segments of SNAPSHOT_SEGMENT_USERS
+     * accounts, decoded in parallel, led by the batch floor. Snapshots from before segmenting
+     * are one encrypted map. Loads the accounts into the table and returns the floor.
+     */
+    @SuppressWarnings("unchecked")
+    private long readSnapshot(AccountTable into) throws Exception {
+        long floor = 0;
+        if (RecordLog.isRecordLog(dbFile)) {
+            for (Object record : RecordLog.readAll(dbFile, key, this::decode)) {
+                if (record instanceof BatchFloor f) {
+                    floor = f.value();
+                    continue;
+                }
+                for (User u : (List<User>) record) {
+                    into.put(u);
+                }
+            }
+            return floor;
+        }
+        sawJavaSerialized.set(true);
+        try (ObjectInputStream ois = new ObjectInputStream(EncryptedFiles.open(dbFile, key))) {
+            for (User u : ((Map<String, User>) ois.readObject()).values()) {
+                into.put(u);
+            }
+        }
+        return floor;
+    }
+
+    /** Reads binary records, and Java-serialized ones from before RecordCodec for migration. */
+    private Object decode(byte[] record) throws IOException, ClassNotFoundException {
+        if (!RecordCodec.isJavaSerialized(record)) {
+            return RecordCodec.decodeUserRecord(record);
+        }
+        sawJavaSerialized.set(true);
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record))) {
+            return ois.readObject();
+        }
+    }
+
+    private int replay(AccountTable into, List<Object> entries, Predicate<BatchPart> complete) {
+        int dropped = 0;
+        for (Object entry : entries) {
+            if (entry instanceof User u) {
+                into.put(u);
+            } else if (entry instanceof UserRepository.Delta d) {
+                User u = into.find(d.phone);
+                if (u == null) continue;
+                u.restore(d.balanceMinor, d.pinHash);
+                if (d.legacyHistory) u.markLegacyHistory();
+                // Deltas carry absolute positions so replaying one twice is harmless.
+                for (int i = u.getTransactionCount() - d.txOffset; i < d.txSeqs.length; i++) {
+                    if (i >= 0) u.addTransaction(d.txSeqs[i]);
+                }
+            } else if (entry instanceof BatchPart part) {
+                if (complete.test(part)) {
+                    replay(into, part.entries(), complete);
+                } else if (droppedBatches.add(part.id())) {
+                    System.out.println("[UserShard] Dropping incomplete cross-shard save " + part.id()
+                            + " from " + dbFile.getName());
+                    dropped++;
+                } else {
+                    dropped++;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    AccountTable accounts() {
+        return accounts;
+    }
+
+    void lockShared() {
+        journalLock.readLock().lock();
+    }
+
+    void unlockShared() {
+        journalLock.readLock().unlock();
+    }
+
+    /**
+     * Journals the accounts in one commit; the future completes once they are durable, or
+     * exceptionally with nothing applied to the table.
+     */
+    CompletableFuture<Void> save(Collection<User> batch) throws Exception {
+        journalLock.readLock().lock();
+        try {
+            return append(batch, 0, null);
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Journals this shard's part of a cross-shard batch as a single record naming all
+     * participants. The caller holds lockShared() until every part is durable.
+     */
+    CompletableFuture<Void> savePart(long batchId, int[] participants, Collection<User> part) throws Exception {
+        return append(part, batchId, participants);
+    }
+
+    /**
+     * Makes the next save of each account journal it in full, for a cross-shard batch that
+     * failed on another shard: recovery drops this shard's part too, with the history it held.
+     */
+    void forgetJournaled(Collection<User> part) {
+        for (User user : part) {
+            AccountTable.Row row = accounts.rowOf(user);
+            if (row == null) row = accounts.find(user.getPhoneNumber());
+            if (row != null) accounts.setJournaled(row.record(), -1);
+        }
+    }
+
+    /**
+     * Rows of this table are journaled as deltas from what is already journaled; any other
+     * User is journaled in full and copied into the table once durable. Journaled counts only
+     * advance once the commit succeeds, so after a failed one the next save repeats its ids.
+     */
+    private CompletableFuture<Void> append(Collection<User> batch, long batchId, int[] participants) throws Exception {
+        List<byte[]> records = new ArrayList<>(batch.size());
+        AccountTable.Row[] rows = new AccountTable.Row[batch.size()];
+        int[] txCounts = new int[batch.size()];
+        int i = 0;
+        for (User user : batch) {
+            AccountTable.Row row = accounts.rowOf(user);
+            rows[i] = row;
+            int journaled = row == null ? -1 : accounts.journaled(row.record());
+            if (journaled < 0) {
+                // Counted before encoding: replay skips ids below an account's count, so a
+                // count that lags the encoded history is harmless, one that runs ahead is not.
+                txCounts[i++] = user.getTransactionCount();
+                records.add(RecordCodec.encodeUser(user));
+            } else {
+                long[] since = row.getTransactionsSince(journaled);
+                txCounts[i++] = journaled + since.length;
+                records.add(RecordCodec.encodeDelta(new UserRepository.Delta(row.getPhoneNumber(),
+                        row.getBalanceMinor(), row.getPinHash(), journaled, since)));
+            }
+        }
+        List<byte[]> frames = new ArrayList<>(records.size());
+        if (participants != null) {
+            frames.add(journal.seal(RecordCodec.encodeBatchPart(batchId, participants, records)));
+        } else {
+            for (byte[] record : records) {
+                frames.add(journal.seal(record));
+            }
+        }
+        CompletableFuture<Void> durable = committer.submit(frames).thenRun(() -> {
+            int k = 0;
+            for (User user : batch) {
+                AccountTable.Row row = rows[k] != null ? rows[k] : accounts.put(user);
+                accounts.setJournaled(row.record(), txCounts[k++]);
+            }
+        });
+        dirty = true;
+        if (journal.size() > COMPACT_THRESHOLD_BYTES && compacting.compareAndSet(false, true)) {
+            compactor.execute(this::compactQuietly);
+        }
+        return durable;
+    }
+
+    /** Periodic compaction, skipped while the journal is empty or a compaction is already running. */
+    private void checkpoint() {
+        if (dirty && compacting.compareAndSet(false, true)) {
+            compactQuietly();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            System.out.println("[UserShard] Compaction of " + dbFile.getName() + " failed: " + e.getMessage());
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Rotates the journal and writes a snapshot covering everything in the rotated part. Only
+     * the rotation and reading the batch floor happen under the journal write lock. The snapshot
+     * is not taken from the live table: services change rows before saving them, and batches at
+     * or above the floor keep changing them while the snapshot is written, so live rows can be
+     * ahead of anything durable. Instead the previous snapshot and the rotated journal are
+     * folded into a scratch table, which holds exactly the durable state below the floor: every
+     * batch part in the rotated journal has a smaller id and completed, apart from those recovery
+     * dropped. Saves carry on meanwhile; the scratch table costs a second copy of the shard's
+     * accounts off-heap until the snapshot is written.
+     */
+    void compact() throws Exception {
+        long start = System.nanoTime();
+        long floor;
+        journalLock.writeLock().lock();
+        try {
+            // A leftover rotated journal means an earlier compaction did not finish; the live
+            // journal then stays in place and is simply replayed on top of the new snapshot.
+            if (!oldJournalFile.exists()) {
+                committer.flush().join();
+                journal.close();
+                Files.move(journal.file().toPath(), oldJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                journal.open();
+                dirty = false;
+            }
+            // Cross-shard batches hold the read side until all parts are durable, so every id
+            // issued so far touching this shard is complete.
+            floor = nextBatchId.getAsLong();
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+        COMPACT_PAUSE.recordSince(start);
+        AccountTable durable = new AccountTable();
+        try {
+            if (dbFile.exists()) {
+                readSnapshot(durable);
+            }
+            RecordLog rotated = new RecordLog(oldJournalFile, key);
+            List<Object> entries = rotated.open(this::decode);
+            rotated.close();
+            replay(durable, entries, part -> !droppedBatches.contains(part.id()));
+            RecordLog.rewrite(dbFile, key, segments(durable.size(), durable::range, floor));
+        } finally {
+            durable.clear();
+        }
+        oldJournalFile.delete();
+        SNAPSHOT_BYTES.add(dbFile.length());
+        COMPACT_TIME.recordSince(start);
+    }
+
+    /**
+     * Accounts loaded from the original format lost their UUID history lists; rebuilds them
+     * from the transaction store, journals them in full and writes a snapshot so this happens
+     * only once.
+     */
+    void relinkLegacyHistory(TransactionStore txStore) {
+        List<User> relinked = new ArrayList<>();
+        for (AccountTable.Row row : accounts.all()) {
+            if (!row.hasLegacyHistory()) continue;
+            row.relinkHistory(txStore.findByPhone(row.getPhoneNumber()));
+            accounts.setJournaled(row.record(), -1);
+            relinked.add(row);
+        }
+        if (relinked.isEmpty()) return;
+        try {
+            save(relinked).join();
+            compact();
+        } catch (Exception e) {
+            System.out.println("[UserShard] Relink snapshot failed: " + e.getMessage());
+        }
+    }
+
+    static void writeSnapshot(File file, SecretKey key, List<? extends User> all, long batchFloor) throws Exception {
+        RecordLog.rewrite(file, key, segments(all.size(), all::subList, batchFloor));
+    }
+
+    /**
+     * Serializes one snapshot segment of the first size accounts at a time as the writer asks
+     * for it, after the batch floor; slice(from, to) supplies the accounts of a segment.
+     */
+    private static Iterable<byte[]> segments(int size, BiFunction<Integer, Integer, List<? extends User>> slice,
+                                             long batchFloor) {
+        return () -> new Iterator<>() {
+            private int next = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public byte[] next() {
+                if (next < 0) {
+                    next = 0;
+                    return RecordCodec.encodeBatchFloor(batchFloor);
+                }
+                int end = Math.min(size, next + SNAPSHOT_SEGMENT_USERS);
+                List<? extends User> segment = slice.apply(next, end);
+                next = end;
+                return RecordCodec.encodeUsers(segment);
+            }
+        };
+    }
+
+    /** Files this shard owns, for resharding. */
+    List<File> files() {
+        return List.of(dbFile, journal.file(), oldJournalFile);
+    }
+
+    void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        committer.close();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.out.println("[UserShard] Close of " + dbFile.getName() + " failed: " + e.getMessage());
+        }
+    }
+
+    /** One shard's records of a save that spanned several shards, applied only if every part made it. */
+    record BatchPart(long id, int[] shards, List<Object> entries) {
+    }
+
+    /** First record of a snapshot: see batchFloor(). */
+    record BatchFloor(long value) {
+    }
+}
@@ -0,0 +1,204 @@
+package src.server;
+
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
+import src.model.Transaction;
+import src.model.TransactionPage;
+import src.service.BankService;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client for BankServer. The BankService methods send one request and wait for its answer;
+ * checkBalance and the history calls need a successful login, openSession or resumeSession on
+ * the same connection first.
+ * For pipelining, queue several requests with enqueue(), flush() once, then read the
+ * answers in the same order with next(). Not thread-safe: use one client per thread.
+ */
+public class BankClient implements BankService, Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(128);
+    private final DataOutputStream frameOut = new DataOutputStream(frame);
+    private int nextRequestId;
+    private int expectedId;
+
+    public BankClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Buffers a request; args are Strings (or null), Doubles, Integers, Booleans or a List of
+     * DisbursementLines, in protocol order.
+     */
+    @SuppressWarnings("unchecked")
+    public void enqueue(byte op, Object... args) throws IOException {
+        frame.reset();
+        frameOut.writeInt(nextRequestId++);
+        frameOut.writeByte(op);
+        for (Object arg : args) {
+            if (arg == null || arg instanceof String) Protocol.writeString(frameOut, (String) arg);
+            else if (arg instanceof Double d) frameOut.writeDouble(d);
+            else if (arg instanceof Integer i) frameOut.writeInt(i);
+            else if (arg instanceof Boolean b) frameOut.writeBoolean(b);
+            else if (arg instanceof List<?> lines) Protocol.writeLines(frameOut, (List<DisbursementLine>) lines);
+            else throw new IllegalArgumentException("Unsupported argument " + arg.getClass());
+        }
+        out.writeInt(frame.size());
+        frame.writeTo(out);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Reads the answer to the oldest outstanding request; throws if the server reported an error. */
+    public DataInputStream next() throws IOException {
+        int len = in.readInt();
+        if (len < 5 || len > Protocol.MAX_FRAME) throw new IOException("Bad frame length " + len);
+        byte[] body = new byte[len];
+        in.readFully(body);
+        DataInputStream r = new DataInputStream(new ByteArrayInputStream(body));
+        int id = r.readInt();
+        if (id != expectedId++) throw new IOException("Out-of-order response " + id);
+        if (r.readByte() == Protocol.ERROR) throw new IOException(r.readUTF());
+        return r;
+    }
+
+    private DataInputStream call(byte op, Object... args) {
+        try {
+            enqueue(op, args);
+            flush();
+            return next();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean callBoolean(byte op, Object... args) {
+        try {
+            return call(op, args).readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean register(String phone, String name, String pin) {
+        return callBoolean(Protocol.REGISTER, phone, name, pin);
+    }
+
+    @Override
+    public boolean login(String phone, String pin) {
+        return callBoolean(Protocol.LOGIN, phone, pin);
+    }
+
+    @Override
+    public String openSession(String phone, String pin) {
+        try {
+            return Protocol.readString(call(Protocol.OPEN_SESSION, phone, pin));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean resumeSession(String phone, String token) {
+        return callBoolean(Protocol.RESUME_SESSION, phone, token);
+    }
+
+    @Override
+    public void closeSession(String token) {
+        call(Protocol.CLOSE_SESSION, token);
+    }
+
+    @Override
+    public boolean addMoney(String phone, double amount, String pin) {
+        return callBoolean(Protocol.ADD_MONEY, phone, amount, pin);
+    }
+
+    @Override
+    public boolean sendMoney(String fromPhone, String toPhone, double amount, String pin) {
+        return callBoolean(Protocol.SEND_MONEY, fromPhone, toPhone, amount, pin);
+    }
+
+    @Override
+    public DisbursementReport disburse(String fromPhone, List<DisbursementLine> lines, String pin,
+                                       boolean allOrNothing) {
+        try {
+            return Protocol.readReport(call(Protocol.DISBURSE, fromPhone, pin, allOrNothing, lines));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean cashOut(String phone, double amount, String pin) {
+        return callBoolean(Protocol.CASH_OUT, phone, amount, pin);
+    }
+
+    @Override
+    public boolean payment(String fromPhone, String merchantId, double amount, String pin) {
+        return callBoolean(Protocol.PAYMENT, fromPhone, merchantId, amount, pin);
+    }
+
+    @Override
+    public boolean recharge(String phone, String topupNumber, double amount, String pin) {
+        return callBoolean(Protocol.RECHARGE, phone, topupNumber, amount, pin);
+    }
+
+    @Override
+    public double checkBalance(String phone) {
+        try {
+            return call(Protocol.CHECK_BALANCE, phone).readDouble();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<Transaction> getTransactions(String phone) {
+        try {
+            return readTransactions(call(Protocol.HISTORY, phone));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public TransactionPage getTransactions(String phone, String cursor, int pageSize, boolean newestFirst) {
+        try {
+            DataInputStream r = call(Protocol.HISTORY_PAGE, phone, cursor, pageSize, newestFirst);
+            List<Transaction> items = readTransactions(r);
+            return new TransactionPage(items, Protocol.readString(r));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean changePin(String phone, String oldPin, String newPin) {
+        return callBoolean(Protocol.CHANGE_PIN, phone, oldPin, newPin);
+    }
+
+    private static List<Transaction> readTransactions(DataInputStream r) throws IOException {
+        int n = r.readInt();
+        List<Transaction> txs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            txs.add(Protocol.readTransaction(r));
+        }
+        return txs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
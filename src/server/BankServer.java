@@ -0,0 +1,246 @@
+package src.server;
+
+import src.model.Transaction;
+import src.model.TransactionPage;
+import src.service.BankService;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves BankService over the Protocol frame format, one virtual thread per connection.
+ * Connections stay open for any number of requests (keep-alive) and requests may be
+ * pipelined: answers are buffered while more requests are already waiting in the input and
+ * flushed together once the input runs dry.
+ *
+ * Each connection is a session. LOGIN or OPEN_SESSION with the PIN, or RESUME_SESSION with a
+ * live token, binds it to an account, and balance and history reads are only answered for
+ * that account; operations that move money still check the PIN or token.
+ *
+ * The server listens on the loopback interface unless it is given another address to bind.
+ */
+public class BankServer implements Closeable {
+    private static final int BACKLOG = 4096;
+    private static final int BUFFER_SIZE = 2048;
+    private static final int IDLE_TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final BankService service;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private volatile boolean closed;
+
+    public BankServer(BankService service, int port) throws IOException {
+        this(service, InetAddress.getLoopbackAddress(), port);
+    }
+
+    public BankServer(BankService service, InetAddress bindAddress, int port) throws IOException {
+        this.service = service;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port), BACKLOG);
+    }
+
+    public InetAddress getBindAddress() {
+        return serverSocket.getInetAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getActiveSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Accepts connections until close() is called. Other accept failures, such as running out
+     * of file descriptors, are retried after a growing pause instead of in a tight loop.
+     */
+    public void serve() {
+        long backoffMillis = 0;
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed || serverSocket.isClosed()) return;
+                System.out.println("[BankServer] Accept failed: " + e.getMessage());
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(10, backoffMillis * 2));
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            connections.add(socket);
+            Thread.ofVirtual().name("session-", 0).start(() -> handle(socket));
+        }
+    }
+
+    /** Starts serve() on a background thread. */
+    public void start() {
+        Thread t = new Thread(this::serve, "bank-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void handle(Socket socket) {
+        sessions.incrementAndGet();
+        Session session = new Session();
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (len < 5 || len > Protocol.MAX_FRAME) throw new IOException("Bad frame length " + len);
+                byte[] request = new byte[len];
+                in.readFully(request);
+                byte[] response = dispatch(session, request);
+                out.writeInt(response.length);
+                out.write(response);
+                if (in.available() == 0) out.flush();
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // idle or reset by the peer
+        } catch (IOException e) {
+            if (!closed) System.out.println("[BankServer] Connection failed: " + e.getMessage());
+        } finally {
+            connections.remove(socket);
+            sessions.decrementAndGet();
+        }
+    }
+
+    private byte[] dispatch(Session session, byte[] request) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        int requestId = in.readInt();
+        byte op = in.readByte();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(requestId);
+        out.writeByte(Protocol.OK);
+        try {
+            execute(session, op, in, out);
+        } catch (EOFException e) {
+            return error(requestId, "Truncated request");
+        } catch (RuntimeException e) {
+            return error(requestId, e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        return bos.toByteArray();
+    }
+
+    private void execute(Session session, byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case Protocol.REGISTER -> out.writeBoolean(service.register(str(in), str(in), str(in)));
+            case Protocol.LOGIN -> {
+                String phone = str(in);
+                boolean ok = service.login(phone, str(in));
+                session.phone = ok ? phone : null;
+                out.writeBoolean(ok);
+            }
+            case Protocol.OPEN_SESSION -> {
+                String phone = str(in);
+                String token = service.openSession(phone, str(in));
+                session.phone = token != null ? phone : null;
+                Protocol.writeString(out, token);
+            }
+            case Protocol.RESUME_SESSION -> {
+                String phone = str(in);
+                boolean ok = service.resumeSession(phone, str(in));
+                session.phone = ok ? phone : null;
+                out.writeBoolean(ok);
+            }
+            case Protocol.CLOSE_SESSION -> service.closeSession(str(in));
+            case Protocol.ADD_MONEY -> out.writeBoolean(service.addMoney(str(in), in.readDouble(), str(in)));
+            case Protocol.SEND_MONEY -> out.writeBoolean(service.sendMoney(str(in), str(in), in.readDouble(), str(in)));
+            case Protocol.CASH_OUT -> out.writeBoolean(service.cashOut(str(in), in.readDouble(), str(in)));
+            case Protocol.PAYMENT -> out.writeBoolean(service.payment(str(in), str(in), in.readDouble(), str(in)));
+            case Protocol.RECHARGE -> out.writeBoolean(service.recharge(str(in), str(in), in.readDouble(), str(in)));
+            case Protocol.CHECK_BALANCE -> out.writeDouble(service.checkBalance(session.require(str(in))));
+            case Protocol.HISTORY -> writeTransactions(out, service.getTransactions(session.require(str(in))));
+            case Protocol.HISTORY_PAGE -> {
+                String phone = session.require(str(in));
+                TransactionPage page = service.getTransactions(phone, str(in), in.readInt(), in.readBoolean());
+                writeTransactions(out, page.getItems());
+                Protocol.writeString(out, page.getNextCursor());
+            }
+            case Protocol.DISBURSE -> {
+                String from = str(in);
+                String pin = str(in);
+                boolean allOrNothing = in.readBoolean();
+                Protocol.writeReport(out, service.disburse(from, Protocol.readLines(in), pin, allOrNothing));
+            }
+            case Protocol.CHANGE_PIN -> out.writeBoolean(service.changePin(str(in), str(in), str(in)));
+            default -> throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    private static String str(DataInputStream in) throws IOException {
+        return Protocol.readString(in);
+    }
+
+    private static void writeTransactions(DataOutputStream out, List<Transaction> txs) throws IOException {
+        out.writeInt(txs.size());
+        for (Transaction tx : txs) {
+            Protocol.writeTransaction(out, tx);
+        }
+    }
+
+    private static byte[] error(int requestId, String message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(requestId);
+        out.writeByte(Protocol.ERROR);
+        out.writeUTF(message);
+        return bos.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("[BankServer] Close failed: " + e.getMessage());
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    private static final class Session {
+        private String phone;
+
+        String require(String requested) {
+            if (phone == null || !phone.equals(requested)) {
+                throw new IllegalStateException("Not logged in as " + requested);
+            }
+            return requested;
+        }
+    }
+}
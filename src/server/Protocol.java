@@ -0,0 +1,121 @@
+package src.server;
+
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
+import src.model.Transaction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format shared by BankServer and BankClient. Every message is a frame of
+ * [int length][payload]. A request payload is [int requestId][byte op][arguments] and the
+ * response is [int requestId][byte status][result], where status ERROR carries a message
+ * string instead of a result. Responses come back in request order, so a client may send
+ * many requests before reading any answers (pipelining).
+ *
+ * Strings are a presence byte followed by writeUTF; amounts are doubles, as in BankService.
+ * Wherever a pin is expected, a token from OPEN_SESSION may be sent instead, except for LOGIN
+ * and OPEN_SESSION themselves, which need the real PIN; RESUME_SESSION binds a connection to
+ * an open session.
+ */
+public final class Protocol {
+    public static final int MAX_FRAME = 1 << 20;
+
+    public static final byte REGISTER = 1;       // phone, name, pin -> boolean
+    public static final byte LOGIN = 2;          // phone, pin -> boolean; binds the session to phone
+    public static final byte ADD_MONEY = 3;      // phone, amount, pin -> boolean
+    public static final byte SEND_MONEY = 4;     // from, to, amount, pin -> boolean
+    public static final byte CASH_OUT = 5;       // phone, amount, pin -> boolean
+    public static final byte PAYMENT = 6;        // from, merchant, amount, pin -> boolean
+    public static final byte RECHARGE = 7;       // phone, topup number, amount, pin -> boolean
+    public static final byte CHECK_BALANCE = 8;  // phone -> double; session phone only
+    public static final byte HISTORY = 9;        // phone -> int n, n transactions; session phone only
+    public static final byte HISTORY_PAGE = 10;  // phone, cursor, int size, boolean newestFirst -> n, transactions, cursor
+    public static final byte CHANGE_PIN = 11;    // phone, old pin, new pin -> boolean
+    public static final byte DISBURSE = 12;      // from, pin, boolean allOrNothing, int n, n (recipient, amount)
+                                                 //   -> n (byte status, long txId), double debited
+    public static final byte OPEN_SESSION = 13;  // phone, pin -> token or null; binds the session to phone
+    public static final byte CLOSE_SESSION = 14; // token -> nothing
+    public static final byte RESUME_SESSION = 15; // phone, token -> boolean; binds the session to phone
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    private Protocol() {
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeLines(DataOutput out, List<DisbursementLine> lines) throws IOException {
+        out.writeInt(lines.size());
+        for (DisbursementLine line : lines) {
+            writeString(out, line.getRecipient());
+            out.writeDouble(line.getAmount());
+        }
+    }
+
+    public static List<DisbursementLine> readLines(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > MAX_FRAME / 10) throw new IOException("Bad line count " + n);
+        List<DisbursementLine> lines = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            lines.add(new DisbursementLine(readString(in), in.readDouble()));
+        }
+        return lines;
+    }
+
+    public static void writeReport(DataOutput out, DisbursementReport report) throws IOException {
+        int n = report.getLines().size();
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeByte(report.getStatus(i).ordinal());
+            out.writeLong(report.getTransactionId(i));
+        }
+        out.writeDouble(report.getDebited());
+    }
+
+    public static DisbursementReport readReport(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > MAX_FRAME / 9) throw new IOException("Bad line count " + n);
+        DisbursementReport.Status[] statuses = DisbursementReport.Status.values();
+        List<DisbursementReport.Status> lines = new ArrayList<>(n);
+        long[] txIds = new long[n];
+        for (int i = 0; i < n; i++) {
+            int status = in.readUnsignedByte();
+            if (status >= statuses.length) throw new IOException("Unknown line status " + status);
+            lines.add(statuses[status]);
+            txIds[i] = in.readLong();
+        }
+        return new DisbursementReport(lines, txIds, in.readDouble());
+    }
+
+    public static void writeTransaction(DataOutput out, Transaction tx) throws IOException {
+        out.writeLong(tx.getId());
+        out.writeByte(tx.getType().ordinal());
+        writeString(out, tx.getFrom());
+        writeString(out, tx.getTo());
+        out.writeLong(tx.getAmountMinor());
+        out.writeLong(tx.getEpochMillis());
+        writeString(out, tx.hasDefaultDescription() ? null : tx.getDescription());
+    }
+
+    public static Transaction readTransaction(DataInput in) throws IOException {
+        long id = in.readLong();
+        int type = in.readUnsignedByte();
+        Transaction.Type[] types = Transaction.Type.values();
+        if (type >= types.length) throw new IOException("Unknown transaction type " + type);
+        return Transaction.restore(id, types[type], readString(in), readString(in), in.readLong(), in.readLong(),
+                readString(in));
+    }
+}
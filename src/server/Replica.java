@@ -0,0 +1,232 @@
+package src.server;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+import src.model.Transaction;
+import src.model.User;
+import src.repository.ChangeFeed;
+import src.repository.PersistenceException;
+import src.repository.TransactionStore;
+import src.repository.UserRepository;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Follows a primary's ReplicationServer and applies its changes to this process's own
+ * repositories, one commit per store for each received frame, reconnecting after a second
+ * whenever the stream breaks. A frame counts as applied only once both commits are durable;
+ * if either fails the stream is dropped and the replica resumes after the last applied frame.
+ *
+ * The lag is published as gauges replication.lagMillis (how old the newest applied change
+ * is while changes are outstanding, 0 when caught up) and replication.lagChanges, plus the
+ * histogram replication.lag of commit-to-apply delays.
+ */
+public class Replica implements Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final LatencyHistogram LAG = Metrics.timer("replication.lag");
+    private static final LatencyHistogram APPLY_TIME = Metrics.timer("replication.apply");
+    private static final LongAdder APPLIED = Metrics.counter("replication.applied");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String host;
+    private final int port;
+    private final SecretKey key;
+    private final UserRepository users;
+    private final TransactionStore txs;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    private long epoch;
+    private volatile long appliedSeq;
+    private volatile long headSeq;
+    private volatile long appliedCommittedAt;
+    private volatile boolean synced;
+    private boolean copying;
+    /** Transaction ids already stored, kept only while a full copy may still be repeated. */
+    private Set<Long> knownTxIds;
+    private long repeatsUpTo;
+
+    public Replica(String host, int port, SecretKey key, UserRepository users, TransactionStore txs) {
+        this.host = host;
+        this.port = port;
+        this.key = key;
+        this.users = users;
+        this.txs = txs;
+        Metrics.gauge("replication.lagChanges", () -> Math.max(0, headSeq - appliedSeq));
+        Metrics.gauge("replication.lagMillis", () -> headSeq > appliedSeq
+                ? Math.max(0, System.currentTimeMillis() - appliedCommittedAt) : 0);
+    }
+
+    public void start() {
+        Thread t = new Thread(this::run, "replica");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** True once a full copy or resumed stream has been applied at least up to the primary's head. */
+    public boolean isCaughtUp() {
+        return synced && appliedSeq >= headSeq;
+    }
+
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                s.setSoTimeout(READ_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                follow(new DataInputStream(new BufferedInputStream(s.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+            } catch (EOFException e) {
+                if (!closed) System.out.println("[Replica] Primary at " + host + ":" + port + " closed the stream");
+            } catch (IOException e) {
+                if (!closed) System.out.println("[Replica] Stream from " + host + ":" + port + " failed: " + e.getMessage());
+            }
+            synced = false;
+            copying = false;
+            if (closed) return;
+            try {
+                TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException {
+        long stream = RANDOM.nextLong();
+        ByteArrayOutputStream hello = new ByteArrayOutputStream(25);
+        DataOutputStream h = new DataOutputStream(hello);
+        h.writeByte(ReplicationServer.HELLO);
+        h.writeLong(epoch);
+        h.writeLong(appliedSeq);
+        h.writeLong(stream);
+        ReplicationServer.writeFrame(out, key, hello.toByteArray());
+        for (long expected = 0; !closed; expected++) {
+            DataInputStream frame = ReplicationServer.readFrame(in, key);
+            if (frame.readLong() != stream) throw new IOException("Replication frame belongs to another stream");
+            long number = frame.readLong();
+            if (number != expected) throw new IOException("Replication frame " + number + " out of order, expected " + expected);
+            apply(frame);
+        }
+    }
+
+    private void apply(DataInputStream frame) throws IOException {
+        long start = System.nanoTime();
+        List<Transaction> newTxs = new ArrayList<>();
+        Map<String, User> changed = new LinkedHashMap<>();
+        long lastSeq = appliedSeq;
+        long frameEpoch = epoch;
+        long committedAt = appliedCommittedAt;
+        List<Long> commitTimes = new ArrayList<>();
+        while (true) {
+            byte type = frame.readByte();
+            switch (type) {
+                case ReplicationServer.SYNC_START -> {
+                    // Until SYNC_END arrives a reconnect has to ask for a new copy.
+                    epoch = frameEpoch = 0;
+                    copying = true;
+                    knownTxIds = storedTxIds();
+                }
+                case ReplicationServer.RECORD -> collect(ReplicationServer.readRecord(frame), newTxs, changed);
+                case ReplicationServer.SYNC_END -> {
+                    frameEpoch = frame.readLong();
+                    lastSeq = frame.readLong();
+                    repeatsUpTo = frame.readLong();
+                    committedAt = System.currentTimeMillis();
+                    copying = false;
+                }
+                case ReplicationServer.CHANGE -> {
+                    long seq = frame.readLong();
+                    if (copying || seq != lastSeq + 1) {
+                        throw new IOException("Replication change " + seq + " does not follow " + lastSeq);
+                    }
+                    lastSeq = seq;
+                    committedAt = frame.readLong();
+                    commitTimes.add(committedAt);
+                    collect(ReplicationServer.readRecord(frame), newTxs, changed);
+                }
+                case ReplicationServer.HEAD -> {
+                    long head = frame.readLong();
+                    if (head < lastSeq) throw new IOException("Replication head " + head + " is behind change " + lastSeq);
+                    try {
+                        txs.restoreAll(newTxs);
+                        users.saveAll(changed.values());
+                    } catch (PersistenceException e) {
+                        // Some of the frame's transactions may be stored even so; the frame is
+                        // resent after reconnecting, and those must not be stored twice.
+                        knownTxIds = storedTxIds();
+                        repeatsUpTo = Math.max(repeatsUpTo, lastSeq);
+                        throw new IOException("Could not apply replicated changes: " + e.getMessage(), e);
+                    }
+                    epoch = frameEpoch;
+                    finish(lastSeq, committedAt, head, commitTimes, start);
+                    return;
+                }
+                default -> throw new IOException("Unknown replication message " + type);
+            }
+        }
+    }
+
+    private Set<Long> storedTxIds() {
+        Set<Long> ids = new HashSet<>();
+        for (Transaction tx : txs.findAll()) {
+            ids.add(tx.getId());
+        }
+        return ids;
+    }
+
+    private void collect(byte[] record, List<Transaction> newTxs, Map<String, User> changed) throws IOException {
+        Object change = ChangeFeed.decode(record);
+        if (change instanceof Transaction tx) {
+            if (knownTxIds == null || knownTxIds.add(tx.getId())) newTxs.add(tx);
+        } else {
+            User u = (User) change;
+            changed.put(u.getPhoneNumber(), u);
+        }
+    }
+
+    private void finish(long lastSeq, long committedAt, long head, List<Long> commitTimes, long start) {
+        appliedSeq = lastSeq;
+        appliedCommittedAt = committedAt;
+        headSeq = head;
+        synced = !copying;
+        if (knownTxIds != null && !copying && lastSeq >= repeatsUpTo) knownTxIds = null;
+        long now = System.currentTimeMillis();
+        for (long t : commitTimes) {
+            LAG.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, now - t)));
+        }
+        APPLIED.add(commitTimes.size());
+        if (!commitTimes.isEmpty()) APPLY_TIME.recordSince(start);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException ignored) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package src.server;
+
+import src.model.Transaction;
+import src.model.TransactionPage;
+import src.model.User;
+import src.repository.ChangeFeed;
+import src.repository.TransactionStore;
+import src.repository.UserRepository;
+import src.util.CryptoUtil;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ships the primary's ChangeFeed to read replicas. Every frame is [int length][payload sealed
+ * with the data key], so only a process holding the same key can follow the stream, and a
+ * payload holds one or more messages, each a type byte and its fields.
+ *
+ * A replica opens with HELLO(epoch, lastSeq, stream), stream being a random id of this
+ * connection. Every frame the server sends starts with that stream id and the frame's number
+ * on the connection, counting from 0, and the replica rejects any frame that is not the next
+ * one of its own stream, so frames cannot be replayed, reordered or carried over from another
+ * connection. When the feed still holds every change after
+ * lastSeq of that epoch the stream resumes there. Otherwise the server first sends a full
+ * copy: SYNC_START, a RECORD per transaction and then per account, and
+ * SYNC_END(epoch, from, repeatsUpTo); the stream continues after from, and changes up to
+ * repeatsUpTo may repeat what the copy already held. After that come
+ * CHANGE(seq, committedAtMillis, record) messages; every frame ends with HEAD(lastSeq), and
+ * an idle second sends a frame with just that.
+ */
+public class ReplicationServer implements Closeable {
+    static final byte HELLO = 1;       // long epoch, long lastSeq, long stream
+    static final byte SYNC_START = 2;  // nothing
+    static final byte RECORD = 3;      // int length, record
+    static final byte SYNC_END = 4;    // long epoch, long seq streamed from, long seq up to which changes may repeat the copy
+    static final byte CHANGE = 5;      // long seq, long committedAtMillis, int length, record
+    static final byte HEAD = 6;        // long lastSeq
+
+    private static final int BATCH = 512;
+    private static final int FRAME_BYTES = 64 * 1024;
+    private static final int COPY_PAGE = 1000;
+    private static final long IDLE_MILLIS = 1000;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final ChangeFeed feed;
+    private final UserRepository users;
+    private final TransactionStore txs;
+    private final SecretKey key;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public ReplicationServer(ChangeFeed feed, UserRepository users, TransactionStore txs, SecretKey key,
+                             InetAddress bindAddress, int port) throws IOException {
+        this.feed = feed;
+        this.users = users;
+        this.txs = txs;
+        this.key = key;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getReplicaCount() {
+        return connections.size();
+    }
+
+    /** Accepts replicas on a background thread until close() is called. */
+    public void start() {
+        Thread t = new Thread(this::serve, "replication-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void serve() {
+        long backoffMillis = 0;
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed || serverSocket.isClosed()) return;
+                System.out.println("[ReplicationServer] Accept failed: " + e.getMessage());
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(10, backoffMillis * 2));
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            connections.add(socket);
+            Thread.ofVirtual().name("replication-", 0).start(() -> ship(socket));
+        }
+    }
+
+    private void ship(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            DataInputStream hello = readFrame(in, key);
+            if (hello.readByte() != HELLO) throw new IOException("Expected HELLO");
+            boolean copy = hello.readLong() != feed.epoch();
+            long cursor = hello.readLong();
+            Batch batch = new Batch(out, hello.readLong());
+            while (!closed) {
+                if (copy) {
+                    cursor = fullCopy(batch);
+                    copy = false;
+                }
+                List<ChangeFeed.Change> changes = feed.after(cursor, BATCH, IDLE_MILLIS);
+                if (changes == null) {
+                    copy = true;
+                    continue;
+                }
+                for (ChangeFeed.Change c : changes) {
+                    batch.msg.writeByte(CHANGE);
+                    batch.msg.writeLong(c.seq());
+                    batch.msg.writeLong(c.committedAtMillis());
+                    writeRecord(batch.msg, c.record());
+                    cursor = c.seq();
+                    batch.sendIfFull();
+                }
+                batch.send();
+            }
+        } catch (SocketException | EOFException e) {
+            // the replica went away
+        } catch (Exception e) {
+            if (!closed) System.out.println("[ReplicationServer] Replica stream failed: " + e.getMessage());
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * Sends every transaction and account; returns the sequence number to stream from, taken
+     * before the copy so nothing committed meanwhile is missed.
+     */
+    private long fullCopy(Batch batch) throws IOException {
+        long from = feed.lastSeq();
+        batch.msg.writeByte(SYNC_START);
+        String cursor = null;
+        do {
+            TransactionPage page = txs.findAll(cursor, COPY_PAGE, false);
+            for (Transaction tx : page.getItems()) {
+                batch.msg.writeByte(RECORD);
+                writeRecord(batch.msg, ChangeFeed.encode(tx));
+                batch.sendIfFull();
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        for (User u : users.findAll().values()) {
+            batch.msg.writeByte(RECORD);
+            writeRecord(batch.msg, ChangeFeed.encode(u));
+            batch.sendIfFull();
+        }
+        batch.msg.writeByte(SYNC_END);
+        batch.msg.writeLong(feed.epoch());
+        batch.msg.writeLong(from);
+        batch.msg.writeLong(feed.lastSeq());
+        batch.send();
+        return from;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    static byte[] readRecord(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > Protocol.MAX_FRAME) throw new IOException("Bad record length " + len);
+        byte[] record = new byte[len];
+        in.readFully(record);
+        return record;
+    }
+
+    static void writeFrame(DataOutputStream out, SecretKey key, byte[] plain) throws IOException {
+        byte[] sealed;
+        try {
+            sealed = CryptoUtil.encrypt(plain, key);
+        } catch (Exception e) {
+            throw new IOException("Could not seal frame", e);
+        }
+        out.writeInt(sealed.length);
+        out.write(sealed);
+        out.flush();
+    }
+
+    /** Reads and opens one frame; a frame sealed with another key fails here. */
+    static DataInputStream readFrame(DataInputStream in, SecretKey key) throws IOException {
+        int len = in.readInt();
+        if (len < 1 || len > 2 * Protocol.MAX_FRAME) throw new IOException("Bad frame length " + len);
+        byte[] sealed = new byte[len];
+        in.readFully(sealed);
+        try {
+            return new DataInputStream(new ByteArrayInputStream(CryptoUtil.decrypt(sealed, key)));
+        } catch (Exception e) {
+            throw new IOException("Frame failed authentication", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("[ReplicationServer] Close failed: " + e.getMessage());
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Messages gathered into one sealed frame behind the stream id and frame number; send()
+     * appends HEAD and writes it out.
+     */
+    private final class Batch {
+        private final DataOutputStream out;
+        private final long stream;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(FRAME_BYTES);
+        final DataOutputStream msg = new DataOutputStream(bytes);
+        private long frames;
+
+        Batch(DataOutputStream out, long stream) throws IOException {
+            this.out = out;
+            this.stream = stream;
+            begin();
+        }
+
+        private void begin() throws IOException {
+            msg.writeLong(stream);
+            msg.writeLong(frames++);
+        }
+
+        void sendIfFull() throws IOException {
+            if (bytes.size() >= FRAME_BYTES) send();
+        }
+
+        void send() throws IOException {
+            msg.writeByte(HEAD);
+            msg.writeLong(feed.lastSeq());
+            writeFrame(out, key, bytes.toByteArray());
+            bytes.reset();
+            begin();
+        }
+    }
+}
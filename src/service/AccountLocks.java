@@ -0,0 +1,69 @@
+package src.service;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock striping keyed by phone number. Operations on accounts that hash to different
+ * stripes run in parallel; multi-account operations take their stripes in ascending
+ * index order so two transfers in opposite directions can never deadlock.
+ */
+class AccountLocks {
+    private static final LatencyHistogram LOCK_WAIT = Metrics.timer("service.lockWait");
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    AccountLocks(int minStripes) {
+        int n = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = n - 1;
+    }
+
+    private int stripeOf(String phone) {
+        int h = phone == null ? 0 : phone.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Locks the stripes of all given accounts; release by closing the returned guard. */
+    Guard lock(String... phones) {
+        int[] idx = new int[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            idx[i] = stripeOf(phones[i]);
+        }
+        Arrays.sort(idx);
+        int n = 0;
+        for (int i = 0; i < idx.length; i++) {
+            if (i == 0 || idx[i] != idx[i - 1]) idx[n++] = idx[i];
+        }
+        ReentrantLock[] held = new ReentrantLock[n];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            held[i] = stripes[idx[i]];
+            held[i].lock();
+        }
+        LOCK_WAIT.recordSince(start);
+        return new Guard(held);
+    }
+
+    static final class Guard implements AutoCloseable {
+        private final ReentrantLock[] held;
+
+        private Guard(ReentrantLock[] held) {
+            this.held = held;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.length - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+        }
+    }
+}
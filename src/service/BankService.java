@@ -1,17 +1,28 @@
 package src.service;
 
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
 import src.model.Transaction;
+import src.model.TransactionPage;
 import java.util.List;
 
 public interface BankService {
     boolean register(String phone, String name, String pin);
+    /** Checks the PIN itself; a session token is not accepted here. */
     boolean login(String phone, String pin);
+    /** Checks the PIN and returns a session token usable in place of it for money operations, or null. */
+    String openSession(String phone, String pin);
+    /** True when token is a live session of phone, so a connection can be bound to it without the PIN. */
+    boolean resumeSession(String phone, String token);
+    void closeSession(String token);
     boolean addMoney(String phone, double amount, String pin);  // ← NEW
     boolean sendMoney(String fromPhone, String toPhone, double amount, String pin);
+    DisbursementReport disburse(String fromPhone, List<DisbursementLine> lines, String pin, boolean allOrNothing);
     boolean cashOut(String phone, double amount, String pin);
     boolean payment(String fromPhone, String merchantId, double amount, String pin);
     boolean recharge(String phone, String topupNumber, double amount, String pin);
     double checkBalance(String phone);
     List<Transaction> getTransactions(String phone);
+    TransactionPage getTransactions(String phone, String cursor, int pageSize, boolean newestFirst);
     boolean changePin(String phone, String oldPin, String newPin);
 }
\ No newline at end of file
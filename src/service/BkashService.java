@@ -1,56 +1,182 @@
 package src.service;
 
 import src.service.BankService;
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
+import src.model.DisbursementReport.Status;
+import src.event.EventPipeline;
 import src.model.Transaction;
 import src.model.Transaction.Type;
+import src.model.TransactionPage;
 import src.model.User;
-import src.repository.TransactionRepository;
+import src.repository.PersistenceException;
+import src.repository.TransactionStore;
 import src.repository.UserRepository;
+import src.util.Money;
 import src.util.SecurityUtil;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+/**
+ * Money operations change balances in memory, save the transaction, then save the accounts
+ * with their new history in a single commit, so account locks are held across two commits.
+ * If the transaction does not become durable, the balances are put back and the operation
+ * returns false. Once it is durable it has happened, so a failure to save the accounts after
+ * it is thrown to the caller as PersistenceException instead.
+ */
+// AccountLocks guards only mark the scope of a try block and are never referenced inside it.
+@SuppressWarnings("try")
 public class BkashService implements BankService {
     private final UserRepository userRepo;
-    private final TransactionRepository txRepo;
+    private final TransactionStore txRepo;
+
+    private final SessionManager sessions;
+    private final EventPipeline events;
+    private final AccountLocks locks = new AccountLocks(LOCK_STRIPES);
 
     private static final double SEND_FEE = 3.0;
     private static final double CASHOUT_FEE = 5.0;
+    private static final long SEND_FEE_MINOR = Money.toMinor(SEND_FEE);
+    private static final long CASHOUT_FEE_MINOR = Money.toMinor(CASHOUT_FEE);
+    private static final int LOCK_STRIPES = 1024;
+
+    public BkashService(UserRepository userRepo, TransactionStore txRepo) {
+        this(userRepo, txRepo, new SessionManager());
+    }
+
+    public BkashService(UserRepository userRepo, TransactionStore txRepo, SessionManager sessions) {
+        this(userRepo, txRepo, sessions, null);
+    }
 
-    public BkashService(UserRepository userRepo, TransactionRepository txRepo) {
+    /** events, when given, receives every committed transaction. */
+    public BkashService(UserRepository userRepo, TransactionStore txRepo, SessionManager sessions,
+                        EventPipeline events) {
         this.userRepo = userRepo;
         this.txRepo = txRepo;
+        this.sessions = sessions;
+        this.events = events;
+    }
+
+    /** Fee the sender paid on top of the transaction amount, in minor units. */
+    public static long feeMinor(Transaction tx) {
+        return feeMinor(tx.getType());
+    }
+
+    /** Fee charged on top of the amount for a transaction of this type, in minor units. */
+    public static long feeMinor(Type type) {
+        return switch (type) {
+            case SEND_MONEY -> SEND_FEE_MINOR;
+            case CASH_OUT -> CASHOUT_FEE_MINOR;
+            default -> 0;
+        };
+    }
+
+    /** The amount in minor units, or 0, which every operation rejects, if it is not a valid amount. */
+    private static long minorUnits(double amount) {
+        try {
+            return Money.toMinor(amount);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
     }
 
     @Override
     public boolean register(String phone, String name, String pin) {
         if (userRepo.exists(phone)) return false;
         String pinHash = SecurityUtil.hashPin(pin);
-        User u = new User(phone, name, pinHash, 0.0, "USER");
-        userRepo.save(u);
-        return true;
+        try (AccountLocks.Guard g = locks.lock(phone)) {
+            if (userRepo.exists(phone)) return false;
+            User u = new User(phone, name, pinHash, 0.0, "USER");
+            try {
+                userRepo.save(u);
+            } catch (PersistenceException e) {
+                return false;
+            }
+            return true;
+        }
     }
 
     @Override
     public boolean login(String phone, String pin) {
+        return login(phone, pin, true);
+    }
+
+    /** With rehash false the PIN is only checked, never re-hashed and saved, as on a read replica. */
+    boolean login(String phone, String pin, boolean rehash) {
         User u = userRepo.findByPhone(phone);
-        if (u == null) return false;
-        return SecurityUtil.verifyPin(pin, u.getPinHash());
+        if (u == null || SessionManager.isToken(pin)) return false;
+        if (!SecurityUtil.verifyPin(pin, u.getPinHash())) return false;
+        if (rehash) upgradePinHash(u, pin);
+        return true;
+    }
+
+    /** Only the real PIN opens a session, so a stolen token cannot be renewed past its expiry. */
+    @Override
+    public String openSession(String phone, String pin) {
+        return openSession(phone, pin, true);
+    }
+
+    String openSession(String phone, String pin, boolean rehash) {
+        return login(phone, pin, rehash) ? sessions.issue(phone) : null;
+    }
+
+    @Override
+    public boolean resumeSession(String phone, String token) {
+        return phone != null && SessionManager.isToken(token) && phone.equals(sessions.phoneOf(token));
+    }
+
+    @Override
+    public void closeSession(String token) {
+        sessions.revoke(token);
+    }
+
+    private void committed(Transaction t) {
+        if (events != null) events.publish(t);
+    }
+
+    /** Money operations take either the PIN or a session token of the same account. */
+    private boolean authorized(User u, String credential) {
+        if (SessionManager.isToken(credential)) return u.getPhoneNumber().equals(sessions.phoneOf(credential));
+        return SecurityUtil.verifyPin(credential, u.getPinHash());
+    }
+
+    /** Re-hashes a PIN stored in an older or cheaper format once the plain PIN is at hand. */
+    private void upgradePinHash(User u, String pin) {
+        if (!SecurityUtil.needsRehash(u.getPinHash())) return;
+        String newHash = SecurityUtil.hashPin(pin);
+        try (AccountLocks.Guard g = locks.lock(u.getPhoneNumber())) {
+            String oldHash = u.getPinHash();
+            if (!SecurityUtil.needsRehash(oldHash)) return;
+            u.setPinHash(newHash);
+            try {
+                userRepo.save(u);
+            } catch (PersistenceException e) {
+                u.setPinHash(oldHash);
+            }
+        }
     }
 
     @Override
     public boolean addMoney(String phone, double amount, String pin) {
-        if (amount <= 0) return false;
+        long amountMinor = minorUnits(amount);
+        if (amountMinor <= 0) return false;
         User u = userRepo.findByPhone(phone);
         if (u == null) return false;
-        if (!SecurityUtil.verifyPin(pin, u.getPinHash())) return false;
-
-        synchronized (this) {
-            u.deposit(amount);
-            userRepo.save(u);
+        if (!authorized(u, pin)) return false;
 
-            Transaction t = new Transaction(Type.TOPUP, null, phone, amount, "Add money via agent/bank");
-            txRepo.save(t);
+        try (AccountLocks.Guard g = locks.lock(phone)) {
+            u.deposit(amountMinor);
+            Transaction t = new Transaction(Type.TOPUP, null, phone, amountMinor);
+            try {
+                txRepo.save(t);
+            } catch (PersistenceException e) {
+                u.withdraw(amountMinor);
+                return false;
+            }
+            committed(t);
             u.addTransaction(t.getId());
             userRepo.save(u);
             return true;
@@ -59,43 +185,157 @@ public class BkashService implements BankService {
 
     @Override
     public boolean sendMoney(String fromPhone, String toPhone, double amount, String pin) {
-        if (amount <= 0) return false;
+        long amountMinor = minorUnits(amount);
+        if (amountMinor <= 0) return false;
         User from = userRepo.findByPhone(fromPhone);
         User to = userRepo.findByPhone(toPhone);
         if (from == null || to == null) return false;
-        if (!SecurityUtil.verifyPin(pin, from.getPinHash())) return false;
+        if (!authorized(from, pin)) return false;
 
-        double total = amount + SEND_FEE;
-        synchronized (this) {
+        long total;
+        try {
+            total = Math.addExact(amountMinor, SEND_FEE_MINOR);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+        try (AccountLocks.Guard g = locks.lock(fromPhone, toPhone)) {
             if (!from.withdraw(total)) return false;
-            to.deposit(amount);
-            userRepo.save(from);
-            userRepo.save(to);
-
-            Transaction t = new Transaction(Type.SEND_MONEY, fromPhone, toPhone, amount, "Send money");
-            txRepo.save(t);
+            to.deposit(amountMinor);
+            Transaction t = new Transaction(Type.SEND_MONEY, fromPhone, toPhone, amountMinor);
+            try {
+                txRepo.save(t);
+            } catch (PersistenceException e) {
+                to.withdraw(amountMinor);
+                from.deposit(total);
+                return false;
+            }
+            committed(t);
             from.addTransaction(t.getId());
             to.addTransaction(t.getId());
-            userRepo.save(from);
-            userRepo.save(to);
+            userRepo.saveAll(List.of(from, to));
             return true;
         }
     }
 
+    /**
+     * Pays many recipients from one sender with a single PIN check, one debit and one commit
+     * per store. Each line costs its amount plus the send fee. All-or-nothing pays every line
+     * or none; best-effort pays, in input order, each valid line the balance still covers.
+     */
+    @Override
+    public DisbursementReport disburse(String fromPhone, List<DisbursementLine> lines, String pin,
+                                       boolean allOrNothing) {
+        int n = lines.size();
+        User from = userRepo.findByPhone(fromPhone);
+        if (from == null || !authorized(from, pin)) {
+            return DisbursementReport.rejected(n, Status.UNAUTHORIZED);
+        }
+
+        Status[] status = new Status[n];
+        User[] to = new User[n];
+        long[] amounts = new long[n];
+        String[] phones = new String[n + 1];
+        phones[n] = fromPhone;
+        boolean allValid = true;
+        for (int i = 0; i < n; i++) {
+            String recipient = lines.get(i).getRecipient();
+            phones[i] = recipient;
+            amounts[i] = minorUnits(lines.get(i).getAmount());
+            if (recipient != null && !recipient.equals(fromPhone)) to[i] = userRepo.findByPhone(recipient);
+            if (amounts[i] <= 0) status[i] = Status.INVALID_AMOUNT;
+            else if (to[i] == null) status[i] = Status.INVALID_RECIPIENT;
+            allValid &= status[i] == null;
+        }
+        if (allOrNothing && !allValid) return unpaid(status);
+
+        try (AccountLocks.Guard g = locks.lock(phones)) {
+            long available = from.getBalanceMinor();
+            long debit = 0;
+            boolean shortfall = false;
+            for (int i = 0; i < n; i++) {
+                if (status[i] != null) continue;
+                long next;
+                try {
+                    next = Math.addExact(debit, Math.addExact(amounts[i], SEND_FEE_MINOR));
+                } catch (ArithmeticException e) {
+                    next = -1;
+                }
+                if (next >= 0 && next <= available) {
+                    debit = next;
+                    status[i] = Status.PAID;
+                } else {
+                    status[i] = Status.INSUFFICIENT_FUNDS;
+                    shortfall = true;
+                }
+            }
+            if (debit == 0 || (allOrNothing && shortfall) || !from.withdraw(debit)) {
+                return unpaid(status);
+            }
+
+            long[] txIds = new long[n];
+            List<Transaction> txs = new ArrayList<>();
+            Set<User> touched = new LinkedHashSet<>();
+            touched.add(from);
+            for (int i = 0; i < n; i++) {
+                if (status[i] != Status.PAID) continue;
+                to[i].deposit(amounts[i]);
+                touched.add(to[i]);
+                txs.add(new Transaction(Type.SEND_MONEY, fromPhone, phones[i], amounts[i]));
+            }
+            try {
+                txRepo.saveAll(txs);
+            } catch (PersistenceException e) {
+                for (int i = 0; i < n; i++) {
+                    if (status[i] == Status.PAID) to[i].withdraw(amounts[i]);
+                }
+                from.deposit(debit);
+                return unpaid(status);
+            }
+            if (events != null) events.publishAll(txs);
+            int t = 0;
+            for (int i = 0; i < n; i++) {
+                if (status[i] != Status.PAID) continue;
+                txIds[i] = txs.get(t++).getId();
+                from.addTransaction(txIds[i]);
+                to[i].addTransaction(txIds[i]);
+            }
+            userRepo.saveAll(touched);
+            return new DisbursementReport(List.of(status), txIds, Money.toMajor(debit));
+        }
+    }
+
+    /** Report for a batch that moved no money: lines that were valid become NOT_ATTEMPTED. */
+    private static DisbursementReport unpaid(Status[] status) {
+        for (int i = 0; i < status.length; i++) {
+            if (status[i] == null || status[i] == Status.PAID) status[i] = Status.NOT_ATTEMPTED;
+        }
+        return new DisbursementReport(List.of(status), new long[status.length], 0.0);
+    }
+
     @Override
     public boolean cashOut(String phone, double amount, String pin) {
-        if (amount <= 0) return false;
+        long amountMinor = minorUnits(amount);
+        if (amountMinor <= 0) return false;
         User u = userRepo.findByPhone(phone);
         if (u == null) return false;
-        if (!SecurityUtil.verifyPin(pin, u.getPinHash())) return false;
+        if (!authorized(u, pin)) return false;
 
-        double total = amount + CASHOUT_FEE;
-        synchronized (this) {
+        long total;
+        try {
+            total = Math.addExact(amountMinor, CASHOUT_FEE_MINOR);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+        try (AccountLocks.Guard g = locks.lock(phone)) {
             if (!u.withdraw(total)) return false;
-            userRepo.save(u);
-
-            Transaction t = new Transaction(Type.CASH_OUT, phone, null, amount, "Cash out via agent");
-            txRepo.save(t);
+            Transaction t = new Transaction(Type.CASH_OUT, phone, null, amountMinor);
+            try {
+                txRepo.save(t);
+            } catch (PersistenceException e) {
+                u.deposit(total);
+                return false;
+            }
+            committed(t);
             u.addTransaction(t.getId());
             userRepo.save(u);
             return true;
@@ -104,17 +344,22 @@ public class BkashService implements BankService {
 
     @Override
     public boolean payment(String fromPhone, String merchantId, double amount, String pin) {
-        if (amount <= 0) return false;
+        long amountMinor = minorUnits(amount);
+        if (amountMinor <= 0) return false;
         User u = userRepo.findByPhone(fromPhone);
         if (u == null) return false;
-        if (!SecurityUtil.verifyPin(pin, u.getPinHash())) return false;
-
-        synchronized (this) {
-            if (!u.withdraw(amount)) return false;
-            userRepo.save(u);
+        if (!authorized(u, pin)) return false;
 
-            Transaction t = new Transaction(Type.PAYMENT, fromPhone, merchantId, amount, "Payment to merchant");
-            txRepo.save(t);
+        try (AccountLocks.Guard g = locks.lock(fromPhone)) {
+            if (!u.withdraw(amountMinor)) return false;
+            Transaction t = new Transaction(Type.PAYMENT, fromPhone, merchantId, amountMinor);
+            try {
+                txRepo.save(t);
+            } catch (PersistenceException e) {
+                u.deposit(amountMinor);
+                return false;
+            }
+            committed(t);
             u.addTransaction(t.getId());
             userRepo.save(u);
             return true;
@@ -123,17 +368,22 @@ public class BkashService implements BankService {
 
     @Override
     public boolean recharge(String phone, String topupNumber, double amount, String pin) {
-        if (amount <= 0) return false;
+        long amountMinor = minorUnits(amount);
+        if (amountMinor <= 0) return false;
         User u = userRepo.findByPhone(phone);
         if (u == null) return false;
-        if (!SecurityUtil.verifyPin(pin, u.getPinHash())) return false;
-
-        synchronized (this) {
-            if (!u.withdraw(amount)) return false;
-            userRepo.save(u);
+        if (!authorized(u, pin)) return false;
 
-            Transaction t = new Transaction(Type.RECHARGE, phone, topupNumber, amount, "Mobile recharge");
-            txRepo.save(t);
+        try (AccountLocks.Guard g = locks.lock(phone)) {
+            if (!u.withdraw(amountMinor)) return false;
+            Transaction t = new Transaction(Type.RECHARGE, phone, topupNumber, amountMinor);
+            try {
+                txRepo.save(t);
+            } catch (PersistenceException e) {
+                u.deposit(amountMinor);
+                return false;
+            }
+            committed(t);
             u.addTransaction(t.getId());
             userRepo.save(u);
             return true;
@@ -142,9 +392,8 @@ public class BkashService implements BankService {
 
     @Override
     public double checkBalance(String phone) {
-        User u = userRepo.findByPhone(phone);
-        if (u == null) return -1;
-        return u.getBalance();
+        long balance = userRepo.balanceMinorOf(phone);
+        return balance < 0 ? -1 : Money.toMajor(balance);
     }
 
     @Override
@@ -152,14 +401,30 @@ public class BkashService implements BankService {
         return txRepo.findByPhone(phone);
     }
 
+    @Override
+    public TransactionPage getTransactions(String phone, String cursor, int pageSize, boolean newestFirst) {
+        if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be positive");
+        return txRepo.findByPhone(phone, cursor, pageSize, newestFirst);
+    }
+
     @Override
     public boolean changePin(String phone, String oldPin, String newPin) {
         User u = userRepo.findByPhone(phone);
         if (u == null) return false;
         if (!SecurityUtil.verifyPin(oldPin, u.getPinHash())) return false;
 
-        u.setPinHash(SecurityUtil.hashPin(newPin));
-        userRepo.save(u);
+        String newHash = SecurityUtil.hashPin(newPin);
+        try (AccountLocks.Guard g = locks.lock(phone)) {
+            String oldHash = u.getPinHash();
+            u.setPinHash(newHash);
+            try {
+                userRepo.save(u);
+            } catch (PersistenceException e) {
+                u.setPinHash(oldHash);
+                return false;
+            }
+        }
+        sessions.revokeAll(phone);
         return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+package src.service;
+
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
+import src.model.Transaction;
+import src.model.TransactionPage;
+
+import java.util.List;
+
+/** Records the latency of every call into a per-method histogram named service.<method>. */
+public class InstrumentedBankService implements BankService {
+    private static final LatencyHistogram REGISTER = Metrics.timer("service.register");
+    private static final LatencyHistogram LOGIN = Metrics.timer("service.login");
+    private static final LatencyHistogram OPEN_SESSION = Metrics.timer("service.openSession");
+    private static final LatencyHistogram ADD_MONEY = Metrics.timer("service.addMoney");
+    private static final LatencyHistogram SEND_MONEY = Metrics.timer("service.sendMoney");
+    private static final LatencyHistogram DISBURSE = Metrics.timer("service.disburse");
+    private static final LatencyHistogram CASH_OUT = Metrics.timer("service.cashOut");
+    private static final LatencyHistogram PAYMENT = Metrics.timer("service.payment");
+    private static final LatencyHistogram RECHARGE = Metrics.timer("service.recharge");
+    private static final LatencyHistogram CHECK_BALANCE = Metrics.timer("service.checkBalance");
+    private static final LatencyHistogram HISTORY = Metrics.timer("service.getTransactions");
+    private static final LatencyHistogram HISTORY_PAGE = Metrics.timer("service.getTransactionsPage");
+    private static final LatencyHistogram CHANGE_PIN = Metrics.timer("service.changePin");
+
+    private final BankService delegate;
+
+    public InstrumentedBankService(BankService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean register(String phone, String name, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.register(phone, name, pin);
+        } finally {
+            REGISTER.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean login(String phone, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.login(phone, pin);
+        } finally {
+            LOGIN.recordSince(start);
+        }
+    }
+
+    @Override
+    public String openSession(String phone, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.openSession(phone, pin);
+        } finally {
+            OPEN_SESSION.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean resumeSession(String phone, String token) {
+        return delegate.resumeSession(phone, token);
+    }
+
+    @Override
+    public void closeSession(String token) {
+        delegate.closeSession(token);
+    }
+
+    @Override
+    public boolean addMoney(String phone, double amount, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.addMoney(phone, amount, pin);
+        } finally {
+            ADD_MONEY.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean sendMoney(String fromPhone, String toPhone, double amount, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.sendMoney(fromPhone, toPhone, amount, pin);
+        } finally {
+            SEND_MONEY.recordSince(start);
+        }
+    }
+
+    @Override
+    public DisbursementReport disburse(String fromPhone, List<DisbursementLine> lines, String pin,
+                                       boolean allOrNothing) {
+        long start = System.nanoTime();
+        try {
+            return delegate.disburse(fromPhone, lines, pin, allOrNothing);
+        } finally {
+            DISBURSE.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean cashOut(String phone, double amount, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.cashOut(phone, amount, pin);
+        } finally {
+            CASH_OUT.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean payment(String fromPhone, String merchantId, double amount, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.payment(fromPhone, merchantId, amount, pin);
+        } finally {
+            PAYMENT.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean recharge(String phone, String topupNumber, double amount, String pin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.recharge(phone, topupNumber, amount, pin);
+        } finally {
+            RECHARGE.recordSince(start);
+        }
+    }
+
+    @Override
+    public double checkBalance(String phone) {
+        long start = System.nanoTime();
+        try {
+            return delegate.checkBalance(phone);
+        } finally {
+            CHECK_BALANCE.recordSince(start);
+        }
+    }
+
+    @Override
+    public List<Transaction> getTransactions(String phone) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getTransactions(phone);
+        } finally {
+            HISTORY.recordSince(start);
+        }
+    }
+
+    @Override
+    public TransactionPage getTransactions(String phone, String cursor, int pageSize, boolean newestFirst) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getTransactions(phone, cursor, pageSize, newestFirst);
+        } finally {
+            HISTORY_PAGE.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean changePin(String phone, String oldPin, String newPin) {
+        long start = System.nanoTime();
+        try {
+            return delegate.changePin(phone, oldPin, newPin);
+        } finally {
+            CHANGE_PIN.recordSince(start);
+        }
+    }
+}
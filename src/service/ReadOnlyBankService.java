@@ -0,0 +1,101 @@
+package src.service;
+
+import src.model.DisbursementLine;
+import src.model.DisbursementReport;
+import src.model.Transaction;
+import src.model.TransactionPage;
+
+import java.util.List;
+
+/**
+ * BankService for a read replica: sign-in, balance and history go to the delegate, and
+ * anything that changes an account is refused, since the primary owns all writes. Sign-in
+ * checks the PIN without upgrading its stored hash, which would be a write.
+ */
+public class ReadOnlyBankService implements BankService {
+    private final BkashService delegate;
+
+    public ReadOnlyBankService(BkashService delegate) {
+        this.delegate = delegate;
+    }
+
+    private static UnsupportedOperationException readOnly(String operation) {
+        return new UnsupportedOperationException("Read-only replica: send " + operation + " to the primary");
+    }
+
+    @Override
+    public boolean register(String phone, String name, String pin) {
+        throw readOnly("register");
+    }
+
+    @Override
+    public boolean login(String phone, String pin) {
+        return delegate.login(phone, pin, false);
+    }
+
+    @Override
+    public String openSession(String phone, String pin) {
+        return delegate.openSession(phone, pin, false);
+    }
+
+    @Override
+    public boolean resumeSession(String phone, String token) {
+        return delegate.resumeSession(phone, token);
+    }
+
+    @Override
+    public void closeSession(String token) {
+        delegate.closeSession(token);
+    }
+
+    @Override
+    public boolean addMoney(String phone, double amount, String pin) {
+        throw readOnly("addMoney");
+    }
+
+    @Override
+    public boolean sendMoney(String fromPhone, String toPhone, double amount, String pin) {
+        throw readOnly("sendMoney");
+    }
+
+    @Override
+    public DisbursementReport disburse(String fromPhone, List<DisbursementLine> lines, String pin,
+                                       boolean allOrNothing) {
+        throw readOnly("disburse");
+    }
+
+    @Override
+    public boolean cashOut(String phone, double amount, String pin) {
+        throw readOnly("cashOut");
+    }
+
+    @Override
+    public boolean payment(String fromPhone, String merchantId, double amount, String pin) {
+        throw readOnly("payment");
+    }
+
+    @Override
+    public boolean recharge(String phone, String topupNumber, double amount, String pin) {
+        throw readOnly("recharge");
+    }
+
+    @Override
+    public double checkBalance(String phone) {
+        return delegate.checkBalance(phone);
+    }
+
+    @Override
+    public List<Transaction> getTransactions(String phone) {
+        return delegate.getTransactions(phone);
+    }
+
+    @Override
+    public TransactionPage getTransactions(String phone, String cursor, int pageSize, boolean newestFirst) {
+        return delegate.getTransactions(phone, cursor, pageSize, newestFirst);
+    }
+
+    @Override
+    public boolean changePin(String phone, String oldPin, String newPin) {
+        throw readOnly("changePin");
+    }
+}
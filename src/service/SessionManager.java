@@ -0,0 +1,151 @@
+package src.service;
+
+import src.util.Pool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived session tokens issued after a successful PIN check. A token is
+ * "s1." + base64url(phone|expiry|nonce) + "." + base64url(HMAC-SHA256 of that payload) under a
+ * key generated at startup, so tokens die with the process and cannot be forged or altered.
+ *
+ * Live sessions are also kept in a bounded cache. That makes logout and PIN changes revoke
+ * tokens immediately, and caps memory: once maxSessions are live the oldest ones are dropped.
+ * Since every token gets the same lifetime, issue order is expiry order and one FIFO queue
+ * serves for both expiry and eviction. Revoked tokens leave the queue with their session, so it
+ * never holds more than the live sessions plus those expired since the last issue.
+ */
+public class SessionManager {
+    static final String PREFIX = "s1.";
+
+    private static final long DEFAULT_TTL_MILLIS =
+            TimeUnit.SECONDS.toMillis(Long.getLong("javapay.session.ttlSeconds", 900));
+    private static final int DEFAULT_MAX_SESSIONS = Integer.getInteger("javapay.session.max", 100_000);
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64_DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec macKey;
+    private final Pool<Mac> macs;
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMillis;
+    private final int maxSessions;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Queue<String> issueOrder = new ConcurrentLinkedQueue<>();
+
+    public SessionManager() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_SESSIONS);
+    }
+
+    public SessionManager(long ttlMillis, int maxSessions) {
+        if (ttlMillis <= 0 || maxSessions < 1) throw new IllegalArgumentException("ttl and size must be positive");
+        byte[] k = new byte[32];
+        random.nextBytes(k);
+        this.macKey = new SecretKeySpec(k, "HmacSHA256");
+        this.macs = new Pool<>(() -> {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(macKey);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        });
+        this.ttlMillis = ttlMillis;
+        this.maxSessions = maxSessions;
+    }
+
+    /** True when the credential is shaped like a session token rather than a PIN. */
+    public static boolean isToken(String credential) {
+        return credential != null && credential.startsWith(PREFIX);
+    }
+
+    /** Opens a session for an account whose PIN the caller has already checked. */
+    public String issue(String phone) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        byte[] nonce = new byte[12];
+        random.nextBytes(nonce);
+        String payload = B64.encodeToString((phone + "|" + expiresAt + "|" + B64.encodeToString(nonce))
+                .getBytes(StandardCharsets.UTF_8));
+        String token = PREFIX + payload + "." + B64.encodeToString(sign(payload));
+        sessions.put(token, new Session(phone, expiresAt));
+        issueOrder.add(token);
+        evict();
+        return token;
+    }
+
+    /** Account the token belongs to, or null when it is forged, expired or revoked. */
+    public String phoneOf(String token) {
+        if (!isToken(token)) return null;
+        Session s = sessions.get(token);
+        if (s == null) return null;
+        if (s.expiresAt <= System.currentTimeMillis()) {
+            sessions.remove(token);
+            return null;
+        }
+        int dot = token.lastIndexOf('.');
+        if (dot <= PREFIX.length()) return null;
+        byte[] signature;
+        try {
+            signature = B64_DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return MessageDigest.isEqual(signature, sign(token.substring(PREFIX.length(), dot))) ? s.phone : null;
+    }
+
+    public void revoke(String token) {
+        if (token != null && sessions.remove(token) != null) issueOrder.remove(token);
+    }
+
+    /** Ends every session of the account, e.g. after its PIN changed. */
+    public void revokeAll(String phone) {
+        Set<String> revoked = new HashSet<>();
+        sessions.entrySet().removeIf(e -> e.getValue().phone.equals(phone) && revoked.add(e.getKey()));
+        if (!revoked.isEmpty()) issueOrder.removeIf(revoked::contains);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private byte[] sign(String payload) {
+        Mac mac = macs.take();
+        try {
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            macs.give(mac);
+        }
+    }
+
+    /**
+     * Drops expired sessions from the head of the queue, and the oldest live ones beyond the cap.
+     * Only the thread whose remove(head) succeeds drops that session, so a concurrent evict that
+     * saw the same head cannot take the next, younger one with it.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        String head;
+        while ((head = issueOrder.peek()) != null) {
+            Session s = sessions.get(head);
+            boolean stale = s == null || s.expiresAt <= now;
+            if (!stale && sessions.size() <= maxSessions) return;
+            if (issueOrder.remove(head)) sessions.remove(head);
+        }
+    }
+
+    private record Session(String phone, long expiresAt) {
+    }
+}
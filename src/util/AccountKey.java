@@ -0,0 +1,28 @@
+package src.util;
+
+/**
+ * Packs numeric account ids (phone numbers, including leading zeros) into a positive long:
+ * the digits' value shifted left by four bits, with the digit count in the low bits.
+ */
+public class AccountKey {
+    public static final long NOT_PACKABLE = -1;
+    private static final int MAX_DIGITS = 15;
+
+    public static long pack(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_DIGITS) return NOT_PACKABLE;
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') return NOT_PACKABLE;
+            value = value * 10 + (c - '0');
+        }
+        return (value << 4) | id.length();
+    }
+
+    public static String unpack(long key) {
+        if (key <= 0) throw new IllegalArgumentException("Not a packed account key: " + key);
+        int digits = (int) (key & 0xF);
+        String value = Long.toString(key >>> 4);
+        return "0".repeat(Math.max(0, digits - value.length())) + value;
+    }
+}
@@ -0,0 +1,82 @@
+package src.util;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Reads and authenticates the chunked format written by ChunkedCipherOutputStream. */
+public class ChunkedCipherInputStream extends InputStream {
+    private final DataInputStream in;
+    private final SecretKey key;
+    private final byte[] sealed;
+    private final byte[] plain;
+    private int pos;
+    private int limit;
+    private long chunkIndex;
+    private boolean last;
+
+    public ChunkedCipherInputStream(InputStream in, SecretKey key) throws IOException {
+        this.in = new DataInputStream(in);
+        this.key = key;
+        if (this.in.readInt() != ChunkedCipherOutputStream.MAGIC) throw new IOException("Not a chunked encrypted stream");
+        int chunkSize = this.in.readInt();
+        if (chunkSize <= 0 || chunkSize > 16 * 1024 * 1024) throw new IOException("Bad chunk size " + chunkSize);
+        this.sealed = new byte[CryptoUtil.sealedLength(chunkSize)];
+        this.plain = new byte[chunkSize];
+    }
+
+    /** Loads the next chunk; returns false once the final chunk has been consumed. */
+    private boolean fill() throws IOException {
+        while (pos == limit) {
+            if (last) return false;
+            int len;
+            try {
+                len = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Encrypted stream is truncated", e);
+            }
+            boolean isLast = (len & ChunkedCipherOutputStream.LAST_FLAG) != 0;
+            len &= ~ChunkedCipherOutputStream.LAST_FLAG;
+            if (len < CryptoUtil.sealedLength(0) || len > sealed.length) throw new IOException("Bad chunk length " + len);
+            try {
+                in.readFully(sealed, 0, len);
+            } catch (EOFException e) {
+                throw new IOException("Encrypted stream is truncated", e);
+            }
+            try {
+                limit = CryptoUtil.decrypt(sealed, 0, len, key,
+                        ChunkedCipherOutputStream.chunkAad(chunkIndex, isLast), plain, 0);
+            } catch (Exception e) {
+                throw new IOException("Chunk " + chunkIndex + " failed authentication", e);
+            }
+            pos = 0;
+            last = isLast;
+            chunkIndex++;
+            if (last && in.read() != -1) throw new IOException("Data after final chunk");
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return plain[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(plain, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
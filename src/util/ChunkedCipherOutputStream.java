@@ -0,0 +1,90 @@
+package src.util;
+
+import javax.crypto.SecretKey;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a stream as a header (magic, chunk size) followed by chunks of at most CHUNK_SIZE
+ * plaintext bytes, each sealed on its own as [int length][IV][ciphertext + tag], with the top
+ * bit of the length marking the final chunk. The chunk index and that flag are authenticated
+ * with every chunk, so reordered, dropped or
+ * truncated chunks fail to open. Only one chunk is ever held in memory.
+ */
+public class ChunkedCipherOutputStream extends OutputStream {
+    static final int MAGIC = 0x4A504353; // "JPCS"
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int LAST_FLAG = 0x8000_0000;
+
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final byte[] plain = new byte[CHUNK_SIZE];
+    private final byte[] sealed = new byte[CryptoUtil.sealedLength(CHUNK_SIZE)];
+    private int pos;
+    private long chunkIndex;
+    private boolean closed;
+
+    public ChunkedCipherOutputStream(OutputStream out, SecretKey key) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.key = key;
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(CHUNK_SIZE);
+    }
+
+    static byte[] chunkAad(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == CHUNK_SIZE) writeChunk(false);
+        plain[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (pos == CHUNK_SIZE) writeChunk(false);
+            int n = Math.min(len, CHUNK_SIZE - pos);
+            System.arraycopy(b, off, plain, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        int sealedLen = CryptoUtil.sealedLength(pos);
+        try {
+            CryptoUtil.encrypt(plain, 0, pos, key, chunkAad(chunkIndex, last), sealed, 0);
+        } catch (Exception e) {
+            throw new IOException("Chunk encryption failed", e);
+        }
+        out.writeInt(last ? sealedLen | LAST_FLAG : sealedLen);
+        out.write(sealed, 0, sealedLen);
+        chunkIndex++;
+        pos = 0;
+    }
+
+    /** Flushes sealed chunks only; a partly filled chunk is sealed on close. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Seals the final chunk and flushes, leaving the underlying stream open (e.g. to sync it). */
+    public void finish() throws IOException {
+        if (closed) return;
+        closed = true;
+        writeChunk(true);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
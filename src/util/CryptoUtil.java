@@ -1,43 +1,138 @@
 package src.util;
 
+import src.metrics.LatencyHistogram;
+import src.metrics.Metrics;
+
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
+/**
+ * AES-GCM helpers. A sealed buffer is IV followed by ciphertext and tag. Cipher and
+ * SecureRandom instances are pooled instead of being created on every call.
+ * Large files go through the chunked streams so they never sit in memory whole.
+ */
 public class CryptoUtil {
     private static final String ALGO = "AES";
     private static final String TRANSFORMATION = "AES/GCM/NoPadding";
-    private static final int IV_LENGTH = 12;
-    private static final int TAG_LENGTH_BIT = 128;
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH_BIT = 128;
+    static final int TAG_LENGTH = TAG_LENGTH_BIT / 8;
+
+    private static final Pool<Cipher> CIPHERS = new Pool<>(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+    private static final Pool<SecureRandom> RANDOMS = new Pool<>(SecureRandom::new);
+    private static final LatencyHistogram ENCRYPT_TIME = Metrics.timer("crypto.encrypt");
+    private static final LatencyHistogram DECRYPT_TIME = Metrics.timer("crypto.decrypt");
 
     public static SecretKey keyFromBytes(byte[] keyBytes) {
         byte[] k = Arrays.copyOf(keyBytes, 32);
         return new SecretKeySpec(k, ALGO);
     }
 
+    /** Length of the sealed form of a plaintext of the given length. */
+    public static int sealedLength(int plainLength) {
+        return IV_LENGTH + plainLength + TAG_LENGTH;
+    }
+
     public static byte[] encrypt(byte[] plain, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        byte[] iv = new byte[IV_LENGTH];
-        SecureRandom r = new SecureRandom();
-        r.nextBytes(iv);
-        GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH_BIT, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        byte[] cipherText = cipher.doFinal(plain);
-        byte[] out = new byte[iv.length + cipherText.length];
-        System.arraycopy(iv, 0, out, 0, iv.length);
-        System.arraycopy(cipherText, 0, out, iv.length, cipherText.length);
+        byte[] out = new byte[sealedLength(plain.length)];
+        encrypt(plain, 0, plain.length, key, null, out, 0);
         return out;
     }
 
+    /**
+     * Seals plain[off, off + len) into out at outOff, which must have sealedLength(len) bytes
+     * free. aad, when given, is authenticated but not stored.
+     */
+    public static void encrypt(byte[] plain, int off, int len, SecretKey key, byte[] aad,
+                               byte[] out, int outOff) throws Exception {
+        long start = System.nanoTime();
+        byte[] iv = new byte[IV_LENGTH];
+        SecureRandom random = RANDOMS.take();
+        random.nextBytes(iv);
+        RANDOMS.give(random);
+        System.arraycopy(iv, 0, out, outOff, IV_LENGTH);
+        Cipher cipher = CIPHERS.take();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, iv));
+            if (aad != null) cipher.updateAAD(aad);
+            cipher.doFinal(plain, off, len, out, outOff + IV_LENGTH);
+        } finally {
+            CIPHERS.give(cipher);
+        }
+        ENCRYPT_TIME.recordSince(start);
+    }
+
     public static byte[] decrypt(byte[] cipherWithIv, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        byte[] iv = Arrays.copyOfRange(cipherWithIv, 0, IV_LENGTH);
-        byte[] cipherText = Arrays.copyOfRange(cipherWithIv, IV_LENGTH, cipherWithIv.length);
-        GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH_BIT, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, spec);
-        return cipher.doFinal(cipherText);
-    }
-}
\ No newline at end of file
+        return decrypt(cipherWithIv, 0, cipherWithIv.length, key, null);
+    }
+
+    /** Opens a sealed buffer in place, without copying the IV or ciphertext out first. */
+    public static byte[] decrypt(byte[] sealed, int off, int len, SecretKey key, byte[] aad) throws Exception {
+        if (len < IV_LENGTH + TAG_LENGTH) throw new GeneralSecurityException("Sealed data too short");
+        Cipher cipher = CIPHERS.take();
+        long start = System.nanoTime();
+        byte[] plain;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, sealed, off, IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            plain = cipher.doFinal(sealed, off + IV_LENGTH, len - IV_LENGTH);
+        } finally {
+            CIPHERS.give(cipher);
+        }
+        DECRYPT_TIME.recordSince(start);
+        return plain;
+    }
+
+    /** Opens a sealed buffer into out at outOff and returns the plaintext length. */
+    public static int decrypt(byte[] sealed, int off, int len, SecretKey key, byte[] aad,
+                              byte[] out, int outOff) throws Exception {
+        if (len < IV_LENGTH + TAG_LENGTH) throw new GeneralSecurityException("Sealed data too short");
+        Cipher cipher = CIPHERS.take();
+        long start = System.nanoTime();
+        int n;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, sealed, off, IV_LENGTH));
+            if (aad != null) cipher.updateAAD(aad);
+            n = cipher.doFinal(sealed, off + IV_LENGTH, len - IV_LENGTH, out, outOff);
+        } finally {
+            CIPHERS.give(cipher);
+        }
+        DECRYPT_TIME.recordSince(start);
+        return n;
+    }
+
+    /** Streams plaintext into out as independently sealed chunks; see ChunkedCipherOutputStream. */
+    public static ChunkedCipherOutputStream encryptingStream(OutputStream out, SecretKey key) throws IOException {
+        return new ChunkedCipherOutputStream(out, key);
+    }
+
+    /** Reads a stream written by encryptingStream, authenticating each chunk as it arrives. */
+    public static InputStream decryptingStream(InputStream in, SecretKey key) throws IOException {
+        return new ChunkedCipherInputStream(in, key);
+    }
+
+    /** True if the file starts with the chunked stream header rather than a single sealed buffer. */
+    public static boolean isChunked(File file) throws IOException {
+        if (file.length() < 4) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == ChunkedCipherOutputStream.MAGIC;
+        }
+    }
+}
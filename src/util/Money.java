@@ -0,0 +1,22 @@
+package src.util;
+
+/**
+ * Amounts are kept as whole minor units (paisa) so repeated deposits and withdrawals
+ * never accumulate floating-point drift; doubles are only used at the console edge.
+ */
+public class Money {
+    public static final int MINOR_PER_MAJOR = 100;
+
+    /** Rejects NaN, infinities and amounts whose minor units do not fit in a long. */
+    public static long toMinor(double amount) {
+        double minor = amount * MINOR_PER_MAJOR;
+        if (!Double.isFinite(minor) || Math.abs(minor) >= 0x1p63) {
+            throw new IllegalArgumentException("Amount out of range: " + amount);
+        }
+        return Math.round(minor);
+    }
+
+    public static double toMajor(long minor) {
+        return (double) minor / MINOR_PER_MAJOR;
+    }
+}
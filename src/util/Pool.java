@@ -0,0 +1,47 @@
+package src.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of reusable objects that are expensive to build and not thread-safe, such as
+ * Cipher and Mac instances. Unlike a ThreadLocal it does not tie an instance to each thread,
+ * which with a virtual thread per connection would build one per connection and throw it away
+ * when the connection ends. Callers take an instance, use it and give it back; at most
+ * capacity idle ones are kept, and a pool that runs dry just builds another.
+ */
+public final class Pool<T> {
+    /** Enough for every carrier thread to hold one with some to spare. */
+    public static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Supplier<T> factory;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    public Pool(Supplier<T> factory, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.factory = factory;
+        this.capacity = capacity;
+    }
+
+    public Pool(Supplier<T> factory) {
+        this(factory, DEFAULT_CAPACITY);
+    }
+
+    public T take() {
+        T t = idle.poll();
+        if (t == null) return factory.get();
+        idleCount.decrementAndGet();
+        return t;
+    }
+
+    public void give(T t) {
+        if (idleCount.incrementAndGet() <= capacity) {
+            idle.offer(t);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
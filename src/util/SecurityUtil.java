@@ -1,25 +1,75 @@
 package src.util;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HexFormat;
 
+/**
+ * PIN hashing. New hashes use PBKDF2-HmacSHA256 with a random salt, stored as
+ * "pbkdf2$iterations$salt$hash"; the cost is set by -Djavapay.pin.iterations. Plain SHA-256 hex
+ * hashes from earlier versions still verify, and needsRehash tells callers to upgrade them.
+ */
 public class SecurityUtil {
-    
+    private static final String PBKDF2_PREFIX = "pbkdf2$";
+    private static final int ITERATIONS = Integer.getInteger("javapay.pin.iterations", 100_000);
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     public static String hashPin(String pin) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PBKDF2_PREFIX + ITERATIONS + "$" + b64.encodeToString(salt) + "$"
+                + b64.encodeToString(pbkdf2(pin, salt, ITERATIONS));
+    }
+
+    public static boolean verifyPin(String inputPin, String storedHash) {
+        if (inputPin == null || storedHash == null) return false;
+        if (!storedHash.startsWith(PBKDF2_PREFIX)) {
+            return MessageDigest.isEqual(sha256Hex(inputPin).getBytes(StandardCharsets.US_ASCII),
+                    storedHash.getBytes(StandardCharsets.US_ASCII));
+        }
+        String[] parts = storedHash.split("\\$");
+        if (parts.length != 4) return false;
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(pbkdf2(inputPin, salt, iterations), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /** True for hashes weaker than what hashPin produces now. */
+    public static boolean needsRehash(String storedHash) {
+        return storedHash == null || !storedHash.startsWith(PBKDF2_PREFIX + ITERATIONS + "$");
+    }
+
+    private static byte[] pbkdf2(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("PBKDF2 algorithm not found", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String sha256Hex(String pin) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(pin.getBytes());
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return HexFormat.of().formatHex(md.digest(pin.getBytes()));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("SHA-256 algorithm not found", e);
         }
     }
-
-    public static boolean verifyPin(String inputPin, String storedHash) {
-        return hashPin(inputPin).equals(storedHash);
-    }
-}
\ No newline at end of file
+}